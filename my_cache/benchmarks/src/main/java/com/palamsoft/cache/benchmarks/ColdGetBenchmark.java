@@ -0,0 +1,76 @@
+package com.palamsoft.cache.benchmarks;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.palamsoft.cache.MyCache;
+
+/**
+ *
+ * Reads of values that are almost always on disk: memory holds one percent of the data, so a read goes to a
+ * spill segment and the value it brings back pushes another one out. Single reads and batched reads.
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dlog4j.configuration=log4j-benchmarks.properties")
+@State(Scope.Benchmark)
+public class ColdGetBenchmark {
+
+	@Param({ "100000" })
+	public int entries;
+
+	@Param({ "1024" })
+	public int valueSize;
+
+	@Param({ "16" })
+	public int batchSize;
+
+	private MyCache cache;
+	private int[] ids;
+
+	@Setup
+	public void setUp() throws InterruptedException {
+		cache = MyCache.builder(entries * (long) valueSize / 100).build();
+		ids = new int[entries];
+		for (int i = 0; i < entries; i++) {
+			ids[i] = cache.putToCache(Fixtures.value(valueSize, i), 10, TimeUnit.SECONDS);
+		}
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		System.out.println("\nHit ratio: " + cache.getHitRatio() + ", " + cache.getMetrics().getDiskLoadLatency());
+		cache.close();
+	}
+
+	@Benchmark
+	public byte[] get() {
+		return cache.getFromCache(ids[ThreadLocalRandom.current().nextInt(entries)]);
+	}
+
+	@Benchmark
+	public byte[][] getAll() {
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		int[] batch = new int[batchSize];
+		for (int i = 0; i < batchSize; i++) {
+			batch[i] = ids[random.nextInt(entries)];
+		}
+		return cache.getAll(batch);
+	}
+}
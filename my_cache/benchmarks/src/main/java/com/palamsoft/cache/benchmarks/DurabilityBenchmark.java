@@ -0,0 +1,82 @@
+package com.palamsoft.cache.benchmarks;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.palamsoft.cache.Durability;
+import com.palamsoft.cache.MyCache;
+
+/**
+ *
+ * Keyed puts to a persistent cache in each durability mode. The data set fits in memory, so the difference is
+ * what the writer costs: nothing, a background write within the lag, or a wait for a group commit that
+ * concurrent puts share.
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dlog4j.configuration=log4j-benchmarks.properties")
+@Threads(4)
+@State(Scope.Benchmark)
+public class DurabilityBenchmark {
+
+	@Param({ "MEMORY_ONLY", "WRITE_BEHIND", "WRITE_THROUGH" })
+	public Durability durability;
+
+	@Param({ "10000" })
+	public int keyCount;
+
+	@Param({ "1024" })
+	public int valueSize;
+
+	private Path directory;
+	private MyCache cache;
+	private String[] keys;
+	private byte[] value;
+
+	@Setup
+	public void setUp() throws IOException, InterruptedException {
+		directory = Files.createTempDirectory("my_cache_durability_benchmark");
+		// twice the data, so nothing is ever evicted
+		cache = MyCache.builder(2L * keyCount * valueSize).spillDirectory(directory).persistent(true)
+				.durability(durability).build();
+		keys = Fixtures.keys(keyCount);
+		value = Fixtures.value(valueSize, 0);
+		Fixtures.fill(cache, keys, valueSize);
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		System.out.println("\nPut latency: " + cache.getMetrics().getPutLatency());
+		cache.close();
+		try (Stream<Path> files = Files.walk(directory)) {
+			files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+		}
+	}
+
+	@Benchmark
+	public void put() {
+		cache.put(keys[ThreadLocalRandom.current().nextInt(keyCount)], value);
+	}
+}
@@ -0,0 +1,46 @@
+package com.palamsoft.cache.benchmarks;
+
+import java.util.Random;
+
+import com.palamsoft.cache.MyCache;
+import com.palamsoft.cache.MyCache.CacheUnavailableException;
+
+/**
+ *
+ * Data shared by the benchmarks.
+ *
+ */
+final class Fixtures {
+
+	private Fixtures() {
+	}
+
+	static byte[] value(int size, long seed) {
+		byte[] value = new byte[size];
+		new Random(seed).nextBytes(value);
+		return value;
+	}
+
+	static String[] keys(int count) {
+		String[] keys = new String[count];
+		for (int i = 0; i < count; i++) {
+			keys[i] = "key-" + i;
+		}
+		return keys;
+	}
+
+	// Puts every key, waiting for the cleaner whenever memory is full
+	static void fill(MyCache cache, String[] keys, int valueSize) throws InterruptedException {
+		for (int i = 0; i < keys.length; i++) {
+			byte[] value = value(valueSize, i);
+			while (true) {
+				try {
+					cache.put(keys[i], value);
+					break;
+				} catch (CacheUnavailableException e) {
+					Thread.sleep(1);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,78 @@
+package com.palamsoft.cache.benchmarks;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.palamsoft.cache.MyCache;
+
+/**
+ *
+ * Reads of values that are all in memory: the copying get, the zero-copy read and the keyed get.
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dlog4j.configuration=log4j-benchmarks.properties")
+@State(Scope.Benchmark)
+public class HitBenchmark {
+
+	@Param({ "10000" })
+	public int entries;
+
+	@Param({ "100", "4096" })
+	public int valueSize;
+
+	@Param({ "false", "true" })
+	public boolean offHeap;
+
+	private MyCache cache;
+	private int[] ids;
+	private String[] keys;
+
+	@Setup
+	public void setUp() throws InterruptedException {
+		// twice the data, so nothing is ever evicted
+		cache = MyCache.builder(2L * entries * Math.max(valueSize, 64)).offHeap(offHeap).build();
+		keys = Fixtures.keys(entries);
+		Fixtures.fill(cache, keys, valueSize);
+		ids = new int[entries];
+		for (int i = 0; i < entries; i++) {
+			ids[i] = cache.putToCache(Fixtures.value(valueSize, i), 10, TimeUnit.SECONDS);
+		}
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		cache.close();
+	}
+
+	@Benchmark
+	public byte[] copyingGet() {
+		return cache.getFromCache(ids[ThreadLocalRandom.current().nextInt(entries)]);
+	}
+
+	@Benchmark
+	public Byte zeroCopyRead() {
+		return cache.readFromCache(ids[ThreadLocalRandom.current().nextInt(entries)], value -> value.get(0));
+	}
+
+	@Benchmark
+	public byte[] keyedGet() {
+		return cache.get(keys[ThreadLocalRandom.current().nextInt(entries)]);
+	}
+}
@@ -0,0 +1,78 @@
+package com.palamsoft.cache.benchmarks;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ *
+ * Picks keys in [0, n). Zipfian keys are drawn from a precomputed cumulative distribution with skew 0.99, the
+ * usual YCSB setting: a few keys take most of the traffic.
+ *
+ */
+public abstract class KeyDistribution {
+
+	public static final String UNIFORM = "uniform";
+	public static final String ZIPFIAN = "zipfian";
+
+	public abstract int next();
+
+	public static KeyDistribution of(String name, int n) {
+		switch (name) {
+		case UNIFORM:
+			return new Uniform(n);
+		case ZIPFIAN:
+			return new Zipfian(n, 0.99);
+		default:
+			throw new IllegalArgumentException("Unknown key distribution: " + name);
+		}
+	}
+
+	private static final class Uniform extends KeyDistribution {
+		private final int n;
+
+		Uniform(int n) {
+			this.n = n;
+		}
+
+		@Override
+		public int next() {
+			return ThreadLocalRandom.current().nextInt(n);
+		}
+	}
+
+	private static final class Zipfian extends KeyDistribution {
+		private final double[] cumulative;
+		// ranks are scattered over the key space, so hot keys are not neighbours
+		private final int[] keys;
+
+		Zipfian(int n, double skew) {
+			cumulative = new double[n];
+			double sum = 0;
+			for (int i = 0; i < n; i++) {
+				sum += 1 / Math.pow(i + 1, skew);
+				cumulative[i] = sum;
+			}
+			for (int i = 0; i < n; i++) {
+				cumulative[i] /= sum;
+			}
+			keys = new int[n];
+			for (int i = 0; i < n; i++) {
+				keys[i] = i;
+			}
+			Random random = new Random(42);
+			for (int i = n - 1; i > 0; i--) {
+				int j = random.nextInt(i + 1);
+				int t = keys[i];
+				keys[i] = keys[j];
+				keys[j] = t;
+			}
+		}
+
+		@Override
+		public int next() {
+			int i = Arrays.binarySearch(cumulative, ThreadLocalRandom.current().nextDouble());
+			return keys[(i >= 0) ? i : Math.min(-i - 1, keys.length - 1)];
+		}
+	}
+}
@@ -0,0 +1,82 @@
+package com.palamsoft.cache.benchmarks;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.palamsoft.cache.MyCache;
+import com.palamsoft.cache.MyCache.CacheUnavailableException;
+
+/**
+ *
+ * Keyed reads and overwrites mixed in one operation stream, with a third of the data fitting in memory.
+ * Contention is set with JMH's thread count, e.g. for t in 1 2 4 8; do java -jar benchmarks.jar Mixed -t $t; done
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dlog4j.configuration=log4j-benchmarks.properties")
+@State(Scope.Benchmark)
+public class MixedBenchmark {
+
+	@Param({ "100000" })
+	public int keyCount;
+
+	@Param({ "1024" })
+	public int valueSize;
+
+	@Param({ KeyDistribution.UNIFORM, KeyDistribution.ZIPFIAN })
+	public String distribution;
+
+	@Param({ "90", "50" })
+	public int readPercent;
+
+	private MyCache cache;
+	private String[] keys;
+	private byte[] value;
+	private KeyDistribution keyDistribution;
+
+	@Setup
+	public void setUp() throws InterruptedException {
+		cache = MyCache.builder(keyCount * (long) valueSize / 3).build();
+		keys = Fixtures.keys(keyCount);
+		value = Fixtures.value(valueSize, 0);
+		keyDistribution = KeyDistribution.of(distribution, keyCount);
+		Fixtures.fill(cache, keys, valueSize);
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		System.out.println("\nHit ratio: " + cache.getHitRatio() + ", rejected puts: "
+				+ cache.getMetrics().getRejectedPutCount());
+		cache.close();
+	}
+
+	@Benchmark
+	public byte[] operation() {
+		String key = keys[keyDistribution.next()];
+		if (ThreadLocalRandom.current().nextInt(100) < readPercent) {
+			return cache.get(key);
+		}
+		try {
+			cache.put(key, value);
+		} catch (CacheUnavailableException e) {
+			// counted by the cache's metrics
+		}
+		return null;
+	}
+}
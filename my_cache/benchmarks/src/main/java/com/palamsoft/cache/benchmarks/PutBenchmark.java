@@ -0,0 +1,108 @@
+package com.palamsoft.cache.benchmarks;
+
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.palamsoft.cache.MyCache;
+import com.palamsoft.cache.MyCache.CacheUnavailableException;
+
+/**
+ *
+ * Overwrites under memory pressure: the data set is ten times the memory limit, so every put depends on the
+ * cleaner spilling older values. Rejected puts are counted, not retried.
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dlog4j.configuration=log4j-benchmarks.properties")
+@State(Scope.Benchmark)
+public class PutBenchmark {
+
+	@Param({ "10000", "100000" })
+	public int keyCount;
+
+	@Param({ "1024" })
+	public int valueSize;
+
+	private MyCache cache;
+	private String[] keys;
+	private byte[] value;
+
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	@State(Scope.Thread)
+	public static class Outcomes {
+		public long rejected;
+
+		@Setup(Level.Iteration)
+		public void reset() {
+			rejected = 0;
+		}
+	}
+
+	// ids this thread has put, the oldest one is removed by the next put
+	@State(Scope.Thread)
+	public static class Window {
+		int[] ids;
+		int next;
+
+		@Setup
+		public void setUp(PutBenchmark benchmark) {
+			ids = new int[benchmark.keyCount];
+			Arrays.fill(ids, -1);
+		}
+	}
+
+	@Setup
+	public void setUp() throws InterruptedException {
+		cache = MyCache.builder(keyCount * (long) valueSize / 10).build();
+		keys = Fixtures.keys(keyCount);
+		value = Fixtures.value(valueSize, 0);
+		Fixtures.fill(cache, keys, valueSize);
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		System.out.println("\nPut latency: " + cache.getMetrics().getPutLatency());
+		cache.close();
+	}
+
+	@Benchmark
+	public void put(Outcomes outcomes) {
+		try {
+			cache.put(keys[ThreadLocalRandom.current().nextInt(keyCount)], value);
+		} catch (CacheUnavailableException e) {
+			outcomes.rejected++;
+		}
+	}
+
+	@Benchmark
+	public int waitingPut(Window window) throws InterruptedException {
+		int id = cache.putToCache(value, 1, TimeUnit.SECONDS);
+		// every thread keeps keyCount values, so the id space and the spill files stay bounded
+		int oldest = window.ids[window.next];
+		if (oldest >= 0) {
+			cache.remove(oldest);
+		}
+		window.ids[window.next] = id;
+		window.next = (window.next + 1) % window.ids.length;
+		return id;
+	}
+}
@@ -0,0 +1,84 @@
+package com.palamsoft.cache.benchmarks;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.palamsoft.cache.ShardedCache;
+
+/**
+ *
+ * Write throughput of a {@link ShardedCache} against the number of shards, with the same total budget: one
+ * shard is a single MyCache behind the sharded id space. Run with -t to vary the writer threads.
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dlog4j.configuration=log4j-benchmarks.properties")
+@Threads(Threads.MAX)
+@State(Scope.Benchmark)
+public class ShardedPutBenchmark {
+
+	@Param({ "1", "4", "16" })
+	public int shards;
+
+	@Param({ "1024" })
+	public int valueSize;
+
+	// values every thread keeps, the budget holds a tenth of them over all threads
+	private static final int WINDOW = 10_000;
+
+	private ShardedCache cache;
+	private byte[] value;
+
+	// ids this thread has put, the oldest one is removed by the next put
+	@State(Scope.Thread)
+	public static class Window {
+		final int[] ids = new int[WINDOW];
+		int next;
+
+		@Setup
+		public void setUp() {
+			Arrays.fill(ids, -1);
+		}
+	}
+
+	@Setup
+	public void setUp() {
+		int threads = Runtime.getRuntime().availableProcessors();
+		cache = ShardedCache.builder((long) threads * WINDOW * valueSize / 10).shards(shards).build();
+		value = Fixtures.value(valueSize, 0);
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		cache.close();
+	}
+
+	@Benchmark
+	public int waitingPut(Window window) throws InterruptedException {
+		int id = cache.putToCache(value, 1, TimeUnit.SECONDS);
+		int oldest = window.ids[window.next];
+		if (oldest >= 0) {
+			cache.remove(oldest);
+		}
+		window.ids[window.next] = id;
+		window.next = (window.next + 1) % WINDOW;
+		return id;
+	}
+}
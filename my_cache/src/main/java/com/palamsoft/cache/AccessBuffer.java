@@ -0,0 +1,75 @@
+package com.palamsoft.cache;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntConsumer;
+
+import net.jcip.annotations.ThreadSafe;
+
+/**
+ *
+ * Lossy, striped buffer of node accesses. Readers record hits without locking, the eviction policy replays
+ * them later under its own lock. When a stripe is full or contended the access is dropped: a policy only needs
+ * a representative sample of hits, not every one of them.
+ *
+ */
+@ThreadSafe
+final class AccessBuffer {
+
+	private static final int STRIPE_SIZE = 256;
+	private static final int STRIPE_MASK = STRIPE_SIZE - 1;
+
+	private static final class Stripe {
+		// id + 1, 0 means the slot is empty
+		final AtomicIntegerArray slots = new AtomicIntegerArray(STRIPE_SIZE);
+		final AtomicLong writes = new AtomicLong();
+		volatile long reads = 0;
+	}
+
+	private final Stripe[] stripes;
+	private final int stripeMask;
+
+	AccessBuffer() {
+		int count = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors()) * 2 - 1) << 1;
+		stripes = new Stripe[count];
+		for (int i = 0; i < count; i++) {
+			stripes[i] = new Stripe();
+		}
+		stripeMask = count - 1;
+	}
+
+	/**
+	 * Returns true if the stripe is at least half full, so the caller should try to drain.
+	 */
+	boolean record(int id) {
+		Stripe stripe = stripes[(int) Thread.currentThread().getId() & stripeMask];
+		long w = stripe.writes.get();
+		long pending = w - stripe.reads;
+		if (pending >= STRIPE_SIZE) {
+			return true;
+		}
+		if (stripe.writes.compareAndSet(w, w + 1)) {
+			stripe.slots.lazySet((int) w & STRIPE_MASK, id + 1);
+		}
+		return pending >= STRIPE_SIZE / 2;
+	}
+
+	// must not be called concurrently
+	void drain(IntConsumer consumer) {
+		for (Stripe stripe : stripes) {
+			long r = stripe.reads;
+			long w = stripe.writes.get();
+			for (; r < w; r++) {
+				int index = (int) r & STRIPE_MASK;
+				int value = stripe.slots.get(index);
+				if (value == 0) {
+					// claimed but not written yet
+					break;
+				}
+				stripe.slots.lazySet(index, 0);
+				consumer.accept(value - 1);
+			}
+			stripe.reads = r;
+		}
+	}
+}
@@ -1,20 +1,44 @@
 package com.palamsoft.cache;
 
-import java.util.HashMap;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.file.Paths;
+import java.util.concurrent.CountDownLatch;
+
+import com.palamsoft.cache.server.CacheServer;
 
 /**
- * Hello world!
+ * Runs a cache server: App [port [memory limit in bytes [spill directory]]]. The low limit is 80% of the
+ * memory limit. Stops on SIGTERM or Ctrl-C.
  *
  */
-public class App 
-{
-    public static void main( String[] args )
-    {
-    	MyCache myCache = new MyCache(100, 100_000_000, 80_000_000);
-        
-    	
-    
-    }
-    
+public class App {
+
+	private static final int DEFAULT_PORT = 11311;
+
+	private static final long DEFAULT_MEMORY_LIMIT = 100_000_000;
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		int port = (args.length > 0) ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+		long highLimit = (args.length > 1) ? Long.parseLong(args[1]) : DEFAULT_MEMORY_LIMIT;
+		MyCache.Builder builder = MyCache.builder(highLimit).lowLimit(highLimit / 5 * 4);
+		if (args.length > 2) {
+			builder.spillDirectory(Paths.get(args[2]));
+		}
 
+		MyCache cache = builder.build();
+		CacheServer server = new CacheServer(cache, new InetSocketAddress(port));
+		CountDownLatch stopped = new CountDownLatch(1);
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+			try {
+				server.close();
+				cache.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			stopped.countDown();
+		}, "my_cache-shutdown"));
+		System.out.println("my_cache listening on port " + server.getPort());
+		stopped.await();
+	}
 }
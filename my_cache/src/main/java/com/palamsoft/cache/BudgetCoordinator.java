@@ -0,0 +1,97 @@
+package com.palamsoft.cache;
+
+import net.jcip.annotations.NotThreadSafe;
+
+/**
+ *
+ * Splits one memory budget between the shards of a {@link ShardedCache}. Every shard keeps a floor of half its
+ * even share, the rest follows demand: the bytes each shard's puts and loads brought in or asked for since the
+ * last round. A shard moves half way to its target per round, so a short burst does not empty the others, and
+ * shrinking shards are applied first, so their cleaners start evicting before the growing ones admit more.
+ *
+ * The limits always add up to the budget. Memory in use can exceed it for as long as a shrunk shard's cleaner
+ * needs to evict down to its new limit.
+ *
+ */
+@NotThreadSafe
+final class BudgetCoordinator {
+
+	// of the even share, kept by every shard whatever its demand
+	private static final double FLOOR_SHARE = 0.5;
+
+	private final MyCache[] shards;
+	private final long budget;
+	// low limit as a fraction of the high one
+	private final double lowRatio;
+
+	// confined to the thread that rebalances
+	private final long[] limits;
+	private final long[] lastRequested;
+
+	BudgetCoordinator(MyCache[] shards, long budget, double lowRatio) {
+		this.shards = shards;
+		this.budget = budget;
+		this.lowRatio = lowRatio;
+		this.limits = new long[shards.length];
+		this.lastRequested = new long[shards.length];
+		for (int i = 0; i < shards.length; i++) {
+			limits[i] = shards[i].highMemoryLimit();
+			lastRequested[i] = shards[i].requestedBytes();
+		}
+	}
+
+	/**
+	 * One round. Returns false if no shard asked for memory since the last one, then limits stay as they are.
+	 */
+	boolean rebalance() {
+		int n = shards.length;
+		long[] requested = new long[n];
+		long total = 0;
+		for (int i = 0; i < n; i++) {
+			long now = shards[i].requestedBytes();
+			requested[i] = now - lastRequested[i];
+			lastRequested[i] = now;
+			total += requested[i];
+		}
+		if (total == 0) {
+			return false;
+		}
+
+		long floor = (long) (budget * FLOOR_SHARE / n);
+		long pool = budget - floor * n;
+		long[] next = new long[n];
+		long assigned = 0;
+		int largest = 0;
+		for (int i = 0; i < n; i++) {
+			long target = floor + (long) ((double) pool * requested[i] / total);
+			next[i] = limits[i] + (target - limits[i]) / 2;
+			assigned += next[i];
+			if (next[i] > next[largest]) {
+				largest = i;
+			}
+		}
+		// rounding
+		next[largest] += budget - assigned;
+
+		for (int i = 0; i < n; i++) {
+			if (next[i] < limits[i]) {
+				apply(i, next[i]);
+			}
+		}
+		for (int i = 0; i < n; i++) {
+			if (next[i] > limits[i]) {
+				apply(i, next[i]);
+			}
+		}
+		return true;
+	}
+
+	private void apply(int shard, long limit) {
+		limits[shard] = limit;
+		shards[shard].setMemoryLimits(limit, (long) (limit * lowRatio));
+	}
+
+	long limit(int shard) {
+		return limits[shard];
+	}
+}
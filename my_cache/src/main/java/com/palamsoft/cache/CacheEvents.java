@@ -0,0 +1,171 @@
+package com.palamsoft.cache;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Threshold;
+
+/**
+ *
+ * Java Flight Recorder events of the cache, all in the "MyCache" category. The thresholds keep a continuous
+ * recording down to the outliers, a recording can lower them, e.g. com.palamsoft.cache.Get#threshold=0 ms.
+ *
+ * Usage: beginX() where the timed section starts, fill in the fields and commit() if shouldCommit(event). beginX()
+ * returns null while no recording enables the event type, so a disabled event costs a branch and no allocation.
+ *
+ */
+final class CacheEvents {
+
+	private static final String CATEGORY = "MyCache";
+
+	private static final EventType GET = EventType.getEventType(Get.class);
+	private static final EventType PUT = EventType.getEventType(Put.class);
+	private static final EventType LOCK_WAIT = EventType.getEventType(LockWait.class);
+	private static final EventType EVICTION = EventType.getEventType(Eviction.class);
+	private static final EventType SPILL_READ = EventType.getEventType(SpillRead.class);
+	private static final EventType SPILL_WRITE = EventType.getEventType(SpillWrite.class);
+
+	private CacheEvents() {
+	}
+
+	static boolean shouldCommit(Event event) {
+		return event != null && event.shouldCommit();
+	}
+
+	private static <T extends Event> T begin(T event) {
+		event.begin();
+		return event;
+	}
+
+	static Get beginGet() {
+		return GET.isEnabled() ? begin(new Get()) : null;
+	}
+
+	static Put beginPut() {
+		return PUT.isEnabled() ? begin(new Put()) : null;
+	}
+
+	static LockWait beginLockWait() {
+		return LOCK_WAIT.isEnabled() ? begin(new LockWait()) : null;
+	}
+
+	static Eviction beginEviction() {
+		return EVICTION.isEnabled() ? begin(new Eviction()) : null;
+	}
+
+	static SpillRead beginSpillRead() {
+		return SPILL_READ.isEnabled() ? begin(new SpillRead()) : null;
+	}
+
+	static SpillWrite beginSpillWrite() {
+		return SPILL_WRITE.isEnabled() ? begin(new SpillWrite()) : null;
+	}
+
+	@Name("com.palamsoft.cache.Get")
+	@Label("Cache Get")
+	@Category(CATEGORY)
+	@Description("A read of one value, or of a batch of values")
+	@Threshold("1 ms")
+	static final class Get extends Event {
+		@Label("Id")
+		@Description("Id of the value, of the first one in a batch")
+		int id;
+
+		@Label("Count")
+		int count;
+
+		@Label("Size")
+		@DataAmount
+		long bytes;
+	}
+
+	@Name("com.palamsoft.cache.Put")
+	@Label("Cache Put")
+	@Category(CATEGORY)
+	@Description("A put of one value, or of a batch of values, including any wait for memory")
+	@Threshold("1 ms")
+	static final class Put extends Event {
+		@Label("Id")
+		@Description("Id given to the value, to the first one in a batch, -1 if it was rejected")
+		int id;
+
+		@Label("Count")
+		int count;
+
+		@Label("Size")
+		@DataAmount
+		long bytes;
+	}
+
+	@Name("com.palamsoft.cache.LockWait")
+	@Label("Cache Lock Wait")
+	@Category(CATEGORY)
+	@Description("Time a thread waited for the cache lock")
+	@Threshold("1 ms")
+	static final class LockWait extends Event {
+		@Label("Queue Length")
+		@Description("Threads still waiting for the lock when this one got it")
+		int queueLength;
+	}
+
+	@Name("com.palamsoft.cache.Eviction")
+	@Label("Cache Eviction")
+	@Category(CATEGORY)
+	@Description("A pass of the cleaner that compresses or spills values to get under the memory limit")
+	@Threshold("10 ms")
+	static final class Eviction extends Event {
+		@Label("Victims")
+		int victims;
+
+		@Label("Requested")
+		@DataAmount
+		long requestedBytes;
+
+		@Label("Freed")
+		@DataAmount
+		long freedBytes;
+	}
+
+	@Name("com.palamsoft.cache.SpillRead")
+	@Label("Cache Spill Read")
+	@Category(CATEGORY)
+	@Description("A read of spilled values from disk")
+	@Threshold("1 ms")
+	static final class SpillRead extends Event {
+		@Label("Id")
+		@Description("Id of the value, of the first one in a batch")
+		int id;
+
+		@Label("Count")
+		int count;
+
+		@Label("Size")
+		@DataAmount
+		long bytes;
+	}
+
+	@Name("com.palamsoft.cache.SpillWrite")
+	@Label("Cache Spill Write")
+	@Category(CATEGORY)
+	@Description("A write of evicted values to disk")
+	@Threshold("10 ms")
+	static final class SpillWrite extends Event {
+		@Label("Id")
+		@Description("Id of the first value in the batch")
+		int id;
+
+		@Label("Count")
+		int count;
+
+		@Label("Size")
+		@DataAmount
+		long bytes;
+
+		@Label("Synced")
+		boolean synced;
+	}
+}
@@ -0,0 +1,143 @@
+package com.palamsoft.cache;
+
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+import java.util.function.LongSupplier;
+
+import net.jcip.annotations.ThreadSafe;
+
+/**
+ *
+ * Counters and latency histograms of one cache. The cache updates the fields directly, gauges are read from
+ * the cache through suppliers when asked for.
+ *
+ */
+@ThreadSafe
+final class CacheMetrics implements MyCacheMXBean {
+
+	final LongAdder hits = new LongAdder();
+	final LongAdder misses = new LongAdder();
+	final LongAdder diskLoads = new LongAdder();
+	final LongAdder loadsNotAdmitted = new LongAdder();
+	final LongAdder promotions = new LongAdder();
+	final LongAdder promotionsSkipped = new LongAdder();
+	final LongAdder forcedPromotions = new LongAdder();
+	final LongAdder rejectedPuts = new LongAdder();
+	final LongAdder deduplicatedPuts = new LongAdder();
+	final LongAdder evictions = new LongAdder();
+	final LongAdder flushedBytes = new LongAdder();
+
+	final LatencyHistogram getLatency = new LatencyHistogram();
+	final LatencyHistogram putLatency = new LatencyHistogram();
+	final LatencyHistogram diskLoadLatency = new LatencyHistogram();
+
+	private final LongSupplier memorySize;
+	private final LongSupplier compressedSize;
+	private final IntSupplier idSpaceSize;
+	private final IntSupplier freeIdCount;
+
+	CacheMetrics(LongSupplier memorySize, LongSupplier compressedSize, IntSupplier idSpaceSize,
+			IntSupplier freeIdCount) {
+		this.memorySize = memorySize;
+		this.compressedSize = compressedSize;
+		this.idSpaceSize = idSpaceSize;
+		this.freeIdCount = freeIdCount;
+	}
+
+	@Override
+	public long getHitCount() {
+		return hits.sum();
+	}
+
+	@Override
+	public long getMissCount() {
+		return misses.sum();
+	}
+
+	@Override
+	public double getHitRatio() {
+		long h = hits.sum();
+		long total = h + misses.sum();
+		return (total == 0) ? 1.0 : (double) h / total;
+	}
+
+	@Override
+	public long getDiskLoadCount() {
+		return diskLoads.sum();
+	}
+
+	@Override
+	public long getLoadsNotAdmittedCount() {
+		return loadsNotAdmitted.sum();
+	}
+
+	@Override
+	public long getPromotionCount() {
+		return promotions.sum();
+	}
+
+	@Override
+	public long getPromotionsSkippedCount() {
+		return promotionsSkipped.sum();
+	}
+
+	@Override
+	public long getForcedPromotionCount() {
+		return forcedPromotions.sum();
+	}
+
+	@Override
+	public long getRejectedPutCount() {
+		return rejectedPuts.sum();
+	}
+
+	@Override
+	public long getDeduplicatedPutCount() {
+		return deduplicatedPuts.sum();
+	}
+
+	@Override
+	public long getEvictionCount() {
+		return evictions.sum();
+	}
+
+	@Override
+	public long getFlushedBytes() {
+		return flushedBytes.sum();
+	}
+
+	@Override
+	public long getMemorySize() {
+		return memorySize.getAsLong();
+	}
+
+	@Override
+	public long getCompressedSize() {
+		return compressedSize.getAsLong();
+	}
+
+	@Override
+	public int getIdSpaceSize() {
+		return idSpaceSize.getAsInt();
+	}
+
+	@Override
+	public int getFreeIdCount() {
+		return freeIdCount.getAsInt();
+	}
+
+	@Override
+	public LatencySummary getGetLatency() {
+		return getLatency.summary();
+	}
+
+	@Override
+	public LatencySummary getPutLatency() {
+		return putLatency.summary();
+	}
+
+	@Override
+	public LatencySummary getDiskLoadLatency() {
+		return diskLoadLatency.summary();
+	}
+}
@@ -0,0 +1,53 @@
+package com.palamsoft.cache;
+
+import java.util.BitSet;
+
+/**
+ *
+ * CLOCK over an {@link IdLists} ring: the head is the hand. A referenced node is moved behind the hand with its
+ * bit cleared, so a full sweep visits every node at most twice.
+ *
+ */
+final class ClockPolicy extends EvictionPolicy {
+
+	private static final int RING = 0;
+
+	private final IdLists ring = new IdLists(1);
+	private final BitSet referenced = new BitSet();
+
+	ClockPolicy() {
+		super("CLOCK");
+	}
+
+	@Override
+	void onAccess(int id) {
+		if (ring.contains(id)) {
+			referenced.set(id);
+		}
+	}
+
+	@Override
+	void onInsert(int id, int weight) {
+		ring.addLast(RING, id, weight);
+		referenced.clear(id);
+	}
+
+	@Override
+	int onEvict() {
+		for (int id = ring.first(RING); id != IdLists.NONE; id = ring.first(RING)) {
+			if (!referenced.get(id)) {
+				ring.remove(id);
+				return id;
+			}
+			referenced.clear(id);
+			ring.moveToLast(RING, id);
+		}
+		return IdLists.NONE;
+	}
+
+	@Override
+	void onRemove(int id) {
+		ring.remove(id);
+		referenced.clear(id);
+	}
+}
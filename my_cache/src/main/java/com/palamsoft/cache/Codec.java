@@ -0,0 +1,32 @@
+package com.palamsoft.cache;
+
+import java.nio.ByteBuffer;
+import java.util.zip.Deflater;
+
+/**
+ *
+ * Compression for the compressed tier of {@link MyCache}. Implementations must be thread-safe: the cleaner
+ * compresses while readers decompress.
+ *
+ */
+public interface Codec {
+
+	String getName();
+
+	// compresses the remaining bytes of src without changing its position
+	byte[] compress(ByteBuffer src);
+
+	// length is the size of the original value
+	byte[] decompress(byte[] src, int length);
+
+	/**
+	 * java.util.zip deflate at the given level, see {@link Deflater}.
+	 */
+	static Codec deflate(int level) {
+		return new DeflateCodec(level);
+	}
+
+	static Codec deflate() {
+		return deflate(Deflater.BEST_SPEED);
+	}
+}
@@ -0,0 +1,97 @@
+package com.palamsoft.cache;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import net.jcip.annotations.ThreadSafe;
+
+/**
+ *
+ * Raw deflate (no zlib header) with one Deflater and one Inflater per thread, so nothing is allocated but the
+ * output arrays.
+ *
+ */
+@ThreadSafe
+final class DeflateCodec implements Codec {
+
+	private final int level;
+
+	private final ThreadLocal<Deflater> deflaters;
+
+	private final ThreadLocal<Inflater> inflaters = ThreadLocal.withInitial(() -> new Inflater(true));
+
+	DeflateCodec(int level) {
+		if (level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION) {
+			throw new IllegalArgumentException("Invalid deflate level: " + level);
+		}
+		this.level = level;
+		this.deflaters = ThreadLocal.withInitial(() -> new Deflater(level, true));
+	}
+
+	@Override
+	public String getName() {
+		return "deflate-" + level;
+	}
+
+	@Override
+	public byte[] compress(ByteBuffer src) {
+		byte[] input;
+		int offset;
+		int length = src.remaining();
+		if (src.hasArray()) {
+			input = src.array();
+			offset = src.arrayOffset() + src.position();
+		} else {
+			input = new byte[length];
+			src.duplicate().get(input);
+			offset = 0;
+		}
+
+		Deflater deflater = deflaters.get();
+		deflater.reset();
+		deflater.setInput(input, offset, length);
+		deflater.finish();
+		// deflate expands incompressible input by a few bytes per 16K block at most
+		byte[] output = new byte[length + (length >> 12) + 16];
+		int written = 0;
+		while (!deflater.finished()) {
+			if (written == output.length) {
+				output = Arrays.copyOf(output, output.length * 2);
+			}
+			written += deflater.deflate(output, written, output.length - written);
+		}
+		return Arrays.copyOf(output, written);
+	}
+
+	@Override
+	public byte[] decompress(byte[] src, int length) {
+		Inflater inflater = inflaters.get();
+		inflater.reset();
+		inflater.setInput(src);
+		byte[] output = new byte[length];
+		try {
+			int read = 0;
+			while (read < length && !inflater.finished()) {
+				int n = inflater.inflate(output, read, length - read);
+				if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+					break;
+				}
+				read += n;
+			}
+			if (read != length) {
+				throw new IllegalStateException("Corrupt compressed value: " + read + " of " + length + " bytes");
+			}
+		} catch (DataFormatException e) {
+			throw new IllegalStateException("Corrupt compressed value", e);
+		}
+		return output;
+	}
+
+	@Override
+	public String toString() {
+		return getName();
+	}
+}
@@ -0,0 +1,20 @@
+package com.palamsoft.cache;
+
+/**
+ *
+ * When a put to a persistent {@link MyCache} reaches the disk, see {@link MyCache.Builder#durability(Durability)}.
+ * In the durable modes a writer thread writes new values to the spill segments and logs their index entries to a
+ * journal, so a crash loses at most what it had not committed yet. The cleaner does not write a value the writer
+ * already has.
+ *
+ */
+public enum Durability {
+	// values reach the disk when they are evicted or the cache is closed, a crash loses what changed since the
+	// last checkpoint
+	MEMORY_ONLY,
+	// puts return at once, the writer commits within the write-behind lag. Puts wait only while more than a
+	// bounded amount of bytes is waiting for it.
+	WRITE_BEHIND,
+	// a put returns once its value is on the device. Concurrent puts share one commit and one fsync.
+	WRITE_THROUGH
+}
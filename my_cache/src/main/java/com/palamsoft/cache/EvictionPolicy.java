@@ -0,0 +1,196 @@
+package com.palamsoft.cache;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.IntConsumer;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+
+/**
+ *
+ * Decides which resident node the cleaner flushes next. Every operation is O(1): policies keep resident ids in
+ * intrusive lists (see {@link IdLists}) instead of ranking all nodes on each pass.
+ *
+ * Hits come from lock-free readers, so they are only recorded into an {@link AccessBuffer} and replayed under
+ * the policy lock before the next structural change. Inserts and evictions are applied under the lock directly.
+ *
+ * A policy instance belongs to one cache. Use the factory methods to pick one when building the cache.
+ *
+ */
+@ThreadSafe
+public abstract class EvictionPolicy {
+
+	private final String name;
+
+	private final ReentrantLock lock = new ReentrantLock();
+
+	private final AccessBuffer accesses = new AccessBuffer();
+	// one instance, so a drain on the hit path allocates nothing
+	private final IntConsumer replay = this::onAccess;
+
+	private final AtomicLong evictions = new AtomicLong();
+
+	// time spent in the policy under its lock
+	private final AtomicLong cpuNanos = new AtomicLong();
+
+	EvictionPolicy(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * CLOCK (second chance): resident nodes form a ring, a hit sets the node's reference bit and the hand
+	 * evicts the first node whose bit is clear.
+	 */
+	public static EvictionPolicy clock() {
+		return new ClockPolicy();
+	}
+
+	/**
+	 * Segmented LRU: new nodes enter a probation segment and move to a protected segment (80% of resident
+	 * bytes) on a hit, so a one-off scan only churns probation.
+	 */
+	public static EvictionPolicy segmentedLru() {
+		return new SegmentedLruPolicy();
+	}
+
+	/**
+	 * W-TinyLFU: a small LRU window in front of a segmented LRU, admission to the main segment is decided by
+	 * comparing decaying access frequencies from a count-min sketch.
+	 */
+	public static EvictionPolicy windowTinyLfu() {
+		return new WindowTinyLfuPolicy();
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public long getEvictionCount() {
+		return evictions.get();
+	}
+
+	public long getCpuNanos() {
+		return cpuNanos.get();
+	}
+
+	// Called by readers on a hit, never blocks
+	final void recordAccess(int id) {
+		if (accesses.record(id) && lock.tryLock()) {
+			long start = System.nanoTime();
+			try {
+				accesses.drain(replay);
+			} finally {
+				cpuNanos.addAndGet(System.nanoTime() - start);
+				lock.unlock();
+			}
+		}
+	}
+
+	// Called when a node becomes resident, weight is the number of bytes it is charged
+	final void recordInsert(int id, int weight) {
+		lock.lock();
+		long start = System.nanoTime();
+		try {
+			accesses.drain(replay);
+			// the cleaner may have flushed a recycled id that had not left the policy yet
+			onRemove(id);
+			onInsert(id, weight);
+		} finally {
+			cpuNanos.addAndGet(System.nanoTime() - start);
+			lock.unlock();
+		}
+	}
+
+	// Called when a node is removed from the cache and its id is recycled, resident or not
+	final void recordFree(int id) {
+		lock.lock();
+		long start = System.nanoTime();
+		try {
+			// accesses of the old node still buffered must not count for the next one
+			accesses.drain(replay);
+			onRemove(id);
+			onFree(id);
+		} finally {
+			cpuNanos.addAndGet(System.nanoTime() - start);
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Removes the next victim from the policy and returns its id, or -1 if no node is resident.
+	 */
+	final int evict() {
+		lock.lock();
+		long start = System.nanoTime();
+		try {
+			accesses.drain(replay);
+			int id = onEvict();
+			if (id != IdLists.NONE) {
+				evictions.incrementAndGet();
+			}
+			return id;
+		} finally {
+			cpuNanos.addAndGet(System.nanoTime() - start);
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Access frequencies (0..15) of count ids, for a checkpoint. Policies that do not count accesses report 0.
+	 */
+	final int[] frequencies(int[] ids, int count) {
+		int[] frequencies = new int[count];
+		lock.lock();
+		try {
+			accesses.drain(replay);
+			for (int i = 0; i < count; i++) {
+				frequencies[i] = frequency(ids[i]);
+			}
+		} finally {
+			lock.unlock();
+		}
+		return frequencies;
+	}
+
+	// Feeds frequencies saved by frequencies() back, so a restarted cache remembers what was popular
+	final void restoreFrequencies(int[] ids, int[] frequencies, int count) {
+		lock.lock();
+		try {
+			onRestore(ids, frequencies, count);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@GuardedBy("lock")
+	int frequency(int id) {
+		return 0;
+	}
+
+	@GuardedBy("lock")
+	void onRestore(int[] ids, int[] frequencies, int count) {
+	}
+
+	// Forgets what the policy knows about an id beyond its residency, the id will belong to another node
+	@GuardedBy("lock")
+	void onFree(int id) {
+	}
+
+	@GuardedBy("lock")
+	abstract void onAccess(int id);
+
+	@GuardedBy("lock")
+	abstract void onInsert(int id, int weight);
+
+	@GuardedBy("lock")
+	abstract int onEvict();
+
+	@GuardedBy("lock")
+	abstract void onRemove(int id);
+
+	@Override
+	public String toString() {
+		return name + " [evictions: " + getEvictionCount() + ", cpu (ms): " + getCpuNanos() / 1_000_000 + "]";
+	}
+}
@@ -0,0 +1,54 @@
+package com.palamsoft.cache;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+
+/**
+ *
+ * Promotes by disk read frequency. Only disk reads are counted: a resident value needs no promotion, and
+ * counting hits as well would let the hot set age out every spilled entry from the sketch.
+ *
+ */
+@ThreadSafe
+final class FrequencyPromotionPolicy extends PromotionPolicy {
+
+	// counters are 4 bits wide
+	private static final int MAX_READS = 15;
+
+	private final int minReads;
+
+	// 0 if nothing is forced
+	private final int forceReads;
+
+	@GuardedBy("this")
+	private final FrequencySketch sketch = new FrequencySketch(1024);
+
+	FrequencyPromotionPolicy(int minReads, int forceReads) {
+		super((forceReads == 0) ? "frequency-" + minReads : "frequency-" + minReads + "-force-" + forceReads);
+		if (minReads < 1 || minReads > MAX_READS) {
+			throw new IllegalArgumentException("minReads must be in 1.." + MAX_READS + ": " + minReads);
+		}
+		if (forceReads < 0 || forceReads > MAX_READS) {
+			throw new IllegalArgumentException("forceReads must be in 0.." + MAX_READS + ": " + forceReads);
+		}
+		this.minReads = minReads;
+		this.forceReads = forceReads;
+	}
+
+	@Override
+	synchronized Decision onDiskRead(int id) {
+		// ids are dense, so the largest one seen bounds the number of entries
+		sketch.ensureCapacity(id + 1);
+		sketch.increment(id);
+		int reads = sketch.frequency(id);
+		if (forceReads > 0 && reads >= forceReads) {
+			return Decision.FORCE;
+		}
+		return (reads >= minReads) ? Decision.IF_ROOM : Decision.SKIP;
+	}
+
+	@Override
+	synchronized void onFree(int id) {
+		sketch.forget(id);
+	}
+}
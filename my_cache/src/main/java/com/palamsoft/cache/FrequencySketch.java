@@ -0,0 +1,116 @@
+package com.palamsoft.cache;
+
+import java.util.Arrays;
+
+import net.jcip.annotations.NotThreadSafe;
+
+/**
+ *
+ * Count-min sketch of access frequencies with four 4-bit counters per id. Once the number of increments
+ * reaches ten times the table width all counters are halved, so frequencies decay and entries that were hot
+ * long ago stop looking hot.
+ *
+ */
+@NotThreadSafe
+final class FrequencySketch {
+
+	private static final long[] SEEDS = {
+			0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L };
+	private static final long RESET_MASK = 0x7777777777777777L;
+
+	private long[] table;
+	private int mask;
+	private int sampleSize;
+	private int additions;
+
+	FrequencySketch(int expectedEntries) {
+		resize(expectedEntries);
+	}
+
+	/**
+	 * Grows the table if it is too small for this number of entries. The table is doubled by copying it into
+	 * both halves: an id's counters move to the same index or to index + old width, so counts are kept.
+	 */
+	void ensureCapacity(int expectedEntries) {
+		while (expectedEntries > table.length) {
+			long[] doubled = Arrays.copyOf(table, table.length * 2);
+			System.arraycopy(table, 0, doubled, table.length, table.length);
+			table = doubled;
+			mask = table.length - 1;
+			sampleSize = 10 * table.length;
+		}
+	}
+
+	private void resize(int expectedEntries) {
+		int width = Integer.highestOneBit(Math.max(64, expectedEntries) - 1) << 1;
+		table = new long[width];
+		mask = width - 1;
+		sampleSize = 10 * width;
+		additions = 0;
+	}
+
+	// 0..15
+	int frequency(int id) {
+		long hash = spread(id);
+		int frequency = Integer.MAX_VALUE;
+		for (int i = 0; i < SEEDS.length; i++) {
+			long h = hash * SEEDS[i];
+			int offset = (int) ((h >>> 40) & 15) << 2;
+			frequency = Math.min(frequency, (int) ((table[index(h)] >>> offset) & 15));
+		}
+		return frequency;
+	}
+
+	void increment(int id) {
+		long hash = spread(id);
+		boolean added = false;
+		for (int i = 0; i < SEEDS.length; i++) {
+			long h = hash * SEEDS[i];
+			int index = index(h);
+			int offset = (int) ((h >>> 40) & 15) << 2;
+			if (((table[index] >>> offset) & 15) != 15) {
+				table[index] += 1L << offset;
+				added = true;
+			}
+		}
+		if (added && ++additions >= sampleSize) {
+			reset();
+		}
+	}
+
+	/**
+	 * Brings the frequency of a recycled id back to 0 by taking its estimate off each of its counters. Ids that
+	 * share a counter may lose part of their count, the same kind of error the periodic halving makes.
+	 */
+	void forget(int id) {
+		int frequency = frequency(id);
+		if (frequency == 0) {
+			return;
+		}
+		long hash = spread(id);
+		for (int i = 0; i < SEEDS.length; i++) {
+			long h = hash * SEEDS[i];
+			int index = index(h);
+			int offset = (int) ((h >>> 40) & 15) << 2;
+			// two of the id's counters may be the same one
+			long count = Math.min((table[index] >>> offset) & 15, frequency);
+			table[index] -= count << offset;
+		}
+	}
+
+	private void reset() {
+		for (int i = 0; i < table.length; i++) {
+			table[i] = (table[i] >>> 1) & RESET_MASK;
+		}
+		additions /= 2;
+	}
+
+	private int index(long h) {
+		return (int) (h ^ (h >>> 32)) & mask;
+	}
+
+	private static long spread(int id) {
+		long h = (id + 1) * 0x9e3779b97f4a7c15L;
+		return h ^ (h >>> 29);
+	}
+}
@@ -0,0 +1,131 @@
+package com.palamsoft.cache;
+
+import java.util.Arrays;
+
+import net.jcip.annotations.NotThreadSafe;
+
+/**
+ *
+ * A fixed number of intrusive doubly-linked lists of node ids. Links live in arrays indexed by id, so moving
+ * an id costs a few array writes and no allocation. An id belongs to at most one list at a time.
+ *
+ * Each id carries a weight (the bytes it is charged), lists keep the sum of their weights.
+ *
+ */
+@NotThreadSafe
+final class IdLists {
+
+	static final int NONE = -1;
+
+	private int[] prev = new int[0];
+	private int[] next = new int[0];
+	private int[] weight = new int[0];
+	// list index + 1, 0 if the id is in no list
+	private byte[] owner = new byte[0];
+
+	private final int[] head;
+	private final int[] tail;
+	private final int[] sizes;
+	private final long[] weights;
+
+	IdLists(int lists) {
+		head = new int[lists];
+		tail = new int[lists];
+		Arrays.fill(head, NONE);
+		Arrays.fill(tail, NONE);
+		sizes = new int[lists];
+		weights = new long[lists];
+	}
+
+	// NONE if the id is in no list
+	int listOf(int id) {
+		return (id < owner.length) ? owner[id] - 1 : NONE;
+	}
+
+	boolean contains(int id) {
+		return listOf(id) != NONE;
+	}
+
+	int first(int list) {
+		return head[list];
+	}
+
+	int next(int id) {
+		return next[id];
+	}
+
+	int size(int list) {
+		return sizes[list];
+	}
+
+	long weight(int list) {
+		return weights[list];
+	}
+
+	int weightOf(int id) {
+		return weight[id];
+	}
+
+	void addLast(int list, int id, int w) {
+		ensureCapacity(id);
+		if (owner[id] != 0) {
+			throw new IllegalStateException("Id " + id + " is already in list " + (owner[id] - 1));
+		}
+		weight[id] = w;
+		link(list, id);
+	}
+
+	// moves the id to the tail of list, it may be the list the id is in already
+	void moveToLast(int list, int id) {
+		unlink(id);
+		link(list, id);
+	}
+
+	void remove(int id) {
+		if (contains(id)) {
+			unlink(id);
+		}
+	}
+
+	private void link(int list, int id) {
+		owner[id] = (byte) (list + 1);
+		prev[id] = tail[list];
+		next[id] = NONE;
+		if (tail[list] == NONE) {
+			head[list] = id;
+		} else {
+			next[tail[list]] = id;
+		}
+		tail[list] = id;
+		sizes[list]++;
+		weights[list] += weight[id];
+	}
+
+	private void unlink(int id) {
+		int list = owner[id] - 1;
+		if (prev[id] == NONE) {
+			head[list] = next[id];
+		} else {
+			next[prev[id]] = next[id];
+		}
+		if (next[id] == NONE) {
+			tail[list] = prev[id];
+		} else {
+			prev[next[id]] = prev[id];
+		}
+		owner[id] = 0;
+		sizes[list]--;
+		weights[list] -= weight[id];
+	}
+
+	private void ensureCapacity(int id) {
+		if (id < owner.length) {
+			return;
+		}
+		int length = Math.max(id + 1, Math.max(16, owner.length * 2));
+		prev = Arrays.copyOf(prev, length);
+		next = Arrays.copyOf(next, length);
+		weight = Arrays.copyOf(weight, length);
+		owner = Arrays.copyOf(owner, length);
+	}
+}
@@ -0,0 +1,79 @@
+package com.palamsoft.cache;
+
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import java.util.function.IntFunction;
+
+import net.jcip.annotations.NotThreadSafe;
+
+/**
+ *
+ * Spliterator over the ids [from, to) of a {@link NodeTable}. read gives the element of an id, or null to skip
+ * it. Splits halve the remaining range, down to MIN_SPLIT ids, so fork-join workers get runs of adjacent ids
+ * that share table chunks.
+ *
+ */
+@NotThreadSafe
+final class IdSpliterator<T> implements Spliterator<T> {
+
+	static final int MIN_SPLIT = 1024;
+
+	private final IntFunction<T> read;
+
+	private int next;
+
+	private final int end;
+
+	IdSpliterator(IntFunction<T> read, int from, int to) {
+		this.read = read;
+		this.next = from;
+		this.end = to;
+	}
+
+	@Override
+	public boolean tryAdvance(Consumer<? super T> action) {
+		while (next < end) {
+			T element = read.apply(next++);
+			if (element != null) {
+				action.accept(element);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public void forEachRemaining(Consumer<? super T> action) {
+		int id = next;
+		// consumed up front, as action may throw
+		next = end;
+		for (; id < end; id++) {
+			T element = read.apply(id);
+			if (element != null) {
+				action.accept(element);
+			}
+		}
+	}
+
+	@Override
+	public Spliterator<T> trySplit() {
+		if (end - next < 2 * MIN_SPLIT) {
+			return null;
+		}
+		int middle = (next + end) >>> 1;
+		IdSpliterator<T> prefix = new IdSpliterator<>(read, next, middle);
+		next = middle;
+		return prefix;
+	}
+
+	// an upper bound, skipped ids are not known in advance
+	@Override
+	public long estimateSize() {
+		return end - next;
+	}
+
+	@Override
+	public int characteristics() {
+		return ORDERED | NONNULL | CONCURRENT;
+	}
+}
@@ -0,0 +1,221 @@
+package com.palamsoft.cache;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.StampedLock;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+
+/**
+ *
+ * Concurrent hash index from byte[] keys to values. The key space is split into stripes, each stripe is an
+ * open-addressing table with linear probing guarded by its own {@link StampedLock}.
+ *
+ * Lookups are optimistic: they probe without locking and fall back to the read lock only if a writer changed
+ * the stripe meanwhile. A stripe's arrays are replaced together on resize, so a probe never mixes arrays of
+ * different tables. Removed slots are marked with a tombstone and dropped on the next resize.
+ *
+ * Keys are not copied, callers must not modify them after a put.
+ *
+ */
+@ThreadSafe
+final class KeyIndex<V> {
+
+	private static final int STRIPES = 64;
+	private static final int INITIAL_STRIPE_CAPACITY = 16;
+	private static final double LOAD_FACTOR = 0.75;
+
+	private static final byte[] TOMBSTONE = new byte[0];
+
+	private static final class Table {
+		final byte[][] keys;
+		final int[] hashes;
+		final Object[] values;
+
+		Table(int capacity) {
+			keys = new byte[capacity][];
+			hashes = new int[capacity];
+			values = new Object[capacity];
+		}
+	}
+
+	private static final class Stripe {
+		final StampedLock lock = new StampedLock();
+
+		volatile Table table = new Table(INITIAL_STRIPE_CAPACITY);
+
+		@GuardedBy("lock")
+		int size;
+		// live keys plus tombstones
+		@GuardedBy("lock")
+		int used;
+	}
+
+	private final Stripe[] stripes = new Stripe[STRIPES];
+
+	KeyIndex() {
+		for (int i = 0; i < STRIPES; i++) {
+			stripes[i] = new Stripe();
+		}
+	}
+
+	static int hash(byte[] key) {
+		int h = Arrays.hashCode(key) * 0x9e3779b9;
+		return h ^ (h >>> 16);
+	}
+
+	private Stripe stripeFor(int hash) {
+		return stripes[(hash >>> 26) & (STRIPES - 1)];
+	}
+
+	// returns null if there is no such key
+	V get(byte[] key) {
+		int hash = hash(key);
+		Stripe stripe = stripeFor(hash);
+		long stamp = stripe.lock.tryOptimisticRead();
+		Object value = find(stripe.table, key, hash);
+		if (!stripe.lock.validate(stamp)) {
+			stamp = stripe.lock.readLock();
+			try {
+				value = find(stripe.table, key, hash);
+			} finally {
+				stripe.lock.unlockRead(stamp);
+			}
+		}
+		@SuppressWarnings("unchecked")
+		V result = (V) value;
+		return result;
+	}
+
+	private static Object find(Table table, byte[] key, int hash) {
+		int mask = table.keys.length - 1;
+		for (int i = hash & mask, probes = 0; probes <= mask; i = (i + 1) & mask, probes++) {
+			byte[] k = table.keys[i];
+			if (k == null) {
+				return null;
+			}
+			if (k != TOMBSTONE && table.hashes[i] == hash && Arrays.equals(k, key)) {
+				return table.values[i];
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Maps key to value and returns the value it replaced, or null.
+	 */
+	V put(byte[] key, V value) {
+		int hash = hash(key);
+		Stripe stripe = stripeFor(hash);
+		long stamp = stripe.lock.writeLock();
+		try {
+			Table table = stripe.table;
+			int mask = table.keys.length - 1;
+			int free = -1;
+			for (int i = hash & mask, probes = 0; probes <= mask; i = (i + 1) & mask, probes++) {
+				byte[] k = table.keys[i];
+				if (k == null) {
+					if (free < 0) {
+						free = i;
+					}
+					break;
+				}
+				if (k == TOMBSTONE) {
+					if (free < 0) {
+						free = i;
+					}
+				} else if (table.hashes[i] == hash && Arrays.equals(k, key)) {
+					@SuppressWarnings("unchecked")
+					V old = (V) table.values[i];
+					table.values[i] = value;
+					return old;
+				}
+			}
+
+			if (table.keys[free] == null) {
+				stripe.used++;
+			}
+			table.values[free] = value;
+			table.hashes[free] = hash;
+			table.keys[free] = key;
+			stripe.size++;
+			if (stripe.used > table.keys.length * LOAD_FACTOR) {
+				resize(stripe);
+			}
+			return null;
+		} finally {
+			stripe.lock.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * Removes the key only if it is mapped to this very value.
+	 */
+	boolean remove(byte[] key, V expected) {
+		int hash = hash(key);
+		Stripe stripe = stripeFor(hash);
+		long stamp = stripe.lock.writeLock();
+		try {
+			Table table = stripe.table;
+			int mask = table.keys.length - 1;
+			for (int i = hash & mask, probes = 0; probes <= mask; i = (i + 1) & mask, probes++) {
+				byte[] k = table.keys[i];
+				if (k == null) {
+					return false;
+				}
+				if (k != TOMBSTONE && table.hashes[i] == hash && Arrays.equals(k, key)) {
+					if (table.values[i] != expected) {
+						return false;
+					}
+					table.keys[i] = TOMBSTONE;
+					table.values[i] = null;
+					stripe.size--;
+					return true;
+				}
+			}
+			return false;
+		} finally {
+			stripe.lock.unlockWrite(stamp);
+		}
+	}
+
+	// Rehashes into a table sized for the live keys, which also drops tombstones
+	@GuardedBy("stripe.lock")
+	private static void resize(Stripe stripe) {
+		Table old = stripe.table;
+		int capacity = INITIAL_STRIPE_CAPACITY;
+		while (stripe.size >= capacity * LOAD_FACTOR / 2) {
+			capacity <<= 1;
+		}
+		Table table = new Table(capacity);
+		int mask = capacity - 1;
+		for (int j = 0; j < old.keys.length; j++) {
+			byte[] k = old.keys[j];
+			if (k == null || k == TOMBSTONE) {
+				continue;
+			}
+			int i = old.hashes[j] & mask;
+			while (table.keys[i] != null) {
+				i = (i + 1) & mask;
+			}
+			table.keys[i] = k;
+			table.hashes[i] = old.hashes[j];
+			table.values[i] = old.values[j];
+		}
+		stripe.used = stripe.size;
+		stripe.table = table;
+	}
+
+	int size() {
+		int size = 0;
+		for (Stripe stripe : stripes) {
+			long stamp = stripe.lock.readLock();
+			try {
+				size += stripe.size;
+			} finally {
+				stripe.lock.unlockRead(stamp);
+			}
+		}
+		return size;
+	}
+}
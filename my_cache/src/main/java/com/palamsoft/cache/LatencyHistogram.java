@@ -0,0 +1,92 @@
+package com.palamsoft.cache;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import net.jcip.annotations.ThreadSafe;
+
+/**
+ *
+ * Log-linear histogram of latencies in nanoseconds. Every power of two is split into SUB_BUCKETS linear
+ * buckets, so a percentile is off by at most 1/SUB_BUCKETS of its value. Recording is a few LongAdder
+ * increments, it never locks or allocates.
+ *
+ */
+@ThreadSafe
+final class LatencyHistogram {
+
+	private static final int SUB_BUCKET_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	// values below SUB_BUCKETS get a bucket each, above that every power of two up to 2^63 gets SUB_BUCKETS
+	private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+	private final LongAdder[] counts = new LongAdder[BUCKETS];
+	private final LongAdder total = new LongAdder();
+	private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+	LatencyHistogram() {
+		for (int i = 0; i < BUCKETS; i++) {
+			counts[i] = new LongAdder();
+		}
+	}
+
+	void record(long nanos) {
+		if (nanos < 0) {
+			nanos = 0;
+		}
+		counts[bucket(nanos)].increment();
+		total.add(nanos);
+		max.accumulate(nanos);
+	}
+
+	static int bucket(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		int magnitude = 63 - Long.numberOfLeadingZeros(value);
+		int sub = (int) (value >>> (magnitude - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return (magnitude - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+	}
+
+	// highest value that falls into the bucket
+	static long upperBound(int bucket) {
+		if (bucket < SUB_BUCKETS) {
+			return bucket;
+		}
+		int magnitude = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+		long sub = bucket % SUB_BUCKETS;
+		long lower = (1L << magnitude) | (sub << (magnitude - SUB_BUCKET_BITS));
+		return lower + (1L << (magnitude - SUB_BUCKET_BITS)) - 1;
+	}
+
+	/**
+	 * Counts are read one bucket at a time while recording goes on, so a summary is consistent only roughly.
+	 */
+	LatencySummary summary() {
+		long[] snapshot = new long[BUCKETS];
+		long count = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			snapshot[i] = counts[i].sum();
+			count += snapshot[i];
+		}
+		long maxNanos = max.get();
+		return new LatencySummary(count, (count == 0) ? 0 : total.sum() / count,
+				percentile(snapshot, count, 0.50, maxNanos), percentile(snapshot, count, 0.99, maxNanos),
+				percentile(snapshot, count, 0.999, maxNanos), maxNanos);
+	}
+
+	private static long percentile(long[] snapshot, long count, double quantile, long maxNanos) {
+		if (count == 0) {
+			return 0;
+		}
+		long rank = (long) Math.ceil(quantile * count);
+		long seen = 0;
+		for (int i = 0; i < snapshot.length; i++) {
+			seen += snapshot[i];
+			if (seen >= rank) {
+				return Math.min(upperBound(i), maxNanos);
+			}
+		}
+		return maxNanos;
+	}
+}
@@ -0,0 +1,59 @@
+package com.palamsoft.cache;
+
+import java.beans.ConstructorProperties;
+
+/**
+ *
+ * Snapshot of a latency histogram, in nanoseconds. Percentiles are upper bounds of histogram buckets, accurate
+ * to within 1/8 of their value. An MXBean attribute of this type shows up as composite data.
+ *
+ */
+public final class LatencySummary {
+
+	private final long count;
+	private final long meanNanos;
+	private final long p50Nanos;
+	private final long p99Nanos;
+	private final long p999Nanos;
+	private final long maxNanos;
+
+	@ConstructorProperties({ "count", "meanNanos", "p50Nanos", "p99Nanos", "p999Nanos", "maxNanos" })
+	public LatencySummary(long count, long meanNanos, long p50Nanos, long p99Nanos, long p999Nanos, long maxNanos) {
+		this.count = count;
+		this.meanNanos = meanNanos;
+		this.p50Nanos = p50Nanos;
+		this.p99Nanos = p99Nanos;
+		this.p999Nanos = p999Nanos;
+		this.maxNanos = maxNanos;
+	}
+
+	public long getCount() {
+		return count;
+	}
+
+	public long getMeanNanos() {
+		return meanNanos;
+	}
+
+	public long getP50Nanos() {
+		return p50Nanos;
+	}
+
+	public long getP99Nanos() {
+		return p99Nanos;
+	}
+
+	public long getP999Nanos() {
+		return p999Nanos;
+	}
+
+	public long getMaxNanos() {
+		return maxNanos;
+	}
+
+	@Override
+	public String toString() {
+		return "count=" + count + ", mean=" + meanNanos + "ns, p50=" + p50Nanos + "ns, p99=" + p99Nanos
+				+ "ns, p99.9=" + p999Nanos + "ns, max=" + maxNanos + "ns";
+	}
+}
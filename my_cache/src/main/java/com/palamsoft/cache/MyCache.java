@@ -1,273 +1,3332 @@
 package com.palamsoft.cache;
 
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.concurrent.locks.Condition;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
 
 import org.apache.log4j.Logger;
 
 import net.jcip.annotations.GuardedBy;
 
 /**
- * 
- * Cache is backed by a ArrayList. Nodes are never removed. Each node is assigned an id that is equal to node's index.
- * 
- * The list is guarded by a read-write lock. The only write operation on the list itself is adding a node.
- * Readers can change state of the node itself (flush to disk, usage counter). So in addition to a read lock 
- * a reader synchronizes on node's monitor.
- * 
- * Memory usage is controlled by a daemon thread which stores least used entries on disk. Cache signals this
- * thread that memory limit is reached, the thread frees memory until lowMemoryLimit.
- * 
+ *
+ * Cache is backed by a {@link NodeTable}. Each node is assigned an id that is equal to node's index. A removed
+ * or expired node frees its memory, its spilled bytes and its id, and the id is given to a later put. So a
+ * caller must not use an id after removing it. Values can also be put and read by key, see {@link KeyIndex}.
+ *
+ * Readers do not lock: the table publishes nodes through a volatile size, and each node carries its own state
+ * changed by CAS. The only lock guards adding nodes and memory accounting, and it is taken by readers only when
+ * they bring a spilled node back into memory.
+ *
+ * Memory usage is controlled by a daemon thread which stores entries on disk (see {@link SpillStore}) in the order
+ * chosen by an {@link EvictionPolicy}. Cache signals this thread as soon as memory use goes above lowMemoryLimit,
+ * the thread frees memory until lowMemoryLimit. So puts only run into highMemoryLimit when writers outpace the
+ * cleaner, and then they can wait for room instead of failing. A {@link PromotionPolicy} decides which spilled
+ * values a read brings back into memory.
+ *
+ * Off-heap values, compression, persistence, expiry and deduplication are options of the {@link Builder}.
+ *
  */
-public class MyCache {
-	
+public class MyCache implements Closeable {
+
 	private final Logger logger = Logger.getLogger(this.getClass());
-	
+
+	/*
+	 * State transitions:
+	 *   RESIDENT -> EVICTING -> SPILLED    (cleaner)
+	 *   SPILLED  -> LOADING  -> RESIDENT   (reader, if the promotion policy admits it and there is room)
+	 *   LOADING  -> SPILLED                (reader, otherwise)
+	 *   RESIDENT, SPILLED -> REMOVED       (remove, expiry; EVICTING and LOADING are waited out)
+	 * With a codec:
+	 *   RESIDENT   -> EVICTING -> COMPRESSED  (cleaner, if the value compresses well)
+	 *   COMPRESSED -> EVICTING -> SPILLED     (cleaner, coldest first once the compressed budget is exceeded)
+	 *   COMPRESSED -> LOADING  -> RESIDENT    (reader, on a repeated read if there is room)
+	 *   LOADING    -> COMPRESSED              (reader, if there is no room)
+	 *   COMPRESSED -> REMOVED
+	 *
+	 * INVARIANT: value == null && compressed == null only if the value is on disk.
+	 */
+	private static final int RESIDENT = 0;
+	private static final int EVICTING = 1;
+	private static final int SPILLED = 2;
+	private static final int LOADING = 3;
+	private static final int REMOVED = 4;
+	private static final int COMPRESSED = 5;
+
+	// Node kinds. A chunk is a piece of a streamed value or the shared blob of a deduplicated one, reachable only
+	// through the manifests that list it. A manifest's value is the list of its chunks' ids.
+	private static final int VALUE = 0;
+	private static final int CHUNK = 1;
+	// manifest of a value put with putStream, its chunks joined in order
+	private static final int STREAM = 2;
+	// manifest of a value put in dedup mode, its single chunk is the blob
+	private static final int DEDUPLICATED = 3;
+
+	private static final long NEVER = Long.MAX_VALUE;
+
+	private static final long EXPIRY_TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+	private static final int EXPIRY_BUCKETS = 1024;
+
+	private static final long COMPACTION_INTERVAL_MILLIS = TimeUnit.SECONDS.toMillis(30);
+	// segments with less live data than this are rewritten
+	private static final double COMPACTION_LIVE_RATIO = 0.5;
+
+	// nodes the cleaner flushes with one write
+	private static final int FLUSH_BATCH_SIZE = 64;
+
+	// how long the cleaner backs off when it finds nothing to flush
+	private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+	static final int DEFAULT_IO_THREADS = 4;
+
+	// cold async reads queued beyond this fail instead of piling up
+	private static final int IO_QUEUE_CAPACITY = 4096;
+
+	// how long a forced promotion waits for the cleaner to make room
+	private static final long FORCED_PROMOTION_NANOS = TimeUnit.MILLISECONDS.toNanos(20);
+
+	// how long close() waits for the cleaner and the maintenance thread
+	private static final long SHUTDOWN_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(10);
+
+	private static final long DEFAULT_CHECKPOINT_INTERVAL_MILLIS = TimeUnit.SECONDS.toMillis(10);
+
+	private static final long DEFAULT_WRITE_BEHIND_LAG_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+	// in write-behind mode puts wait for the writer while it is behind by this many bytes
+	private static final long MAX_UNPERSISTED_BYTES = 16 * 1024 * 1024;
+
+	// how long the writer backs off after a failed commit
+	private static final long WRITER_RETRY_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+	// a value is kept compressed only if that saves at least a tenth of it
+	private static final double MAX_COMPRESSION_RATIO = 0.9;
+
+	// reads of a compressed node that bring it back to raw form
+	private static final int PROMOTION_READS = 2;
+
+	// below half of the smallest G1 region, so a chunk is never a humongous allocation
+	private static final int DEFAULT_CHUNK_SIZE = 256 * 1024;
+
 	private static class Node {
-		private int usedCount;
+		private static final AtomicIntegerFieldUpdater<Node> STATE =
+				AtomicIntegerFieldUpdater.newUpdater(Node.class, "state");
+		private static final AtomicIntegerFieldUpdater<Node> PINS =
+				AtomicIntegerFieldUpdater.newUpdater(Node.class, "pins");
+		private static final AtomicIntegerFieldUpdater<Node> COMPRESSED_READS =
+				AtomicIntegerFieldUpdater.newUpdater(Node.class, "compressedReads");
+		private static final AtomicIntegerFieldUpdater<Node> REFS =
+				AtomicIntegerFieldUpdater.newUpdater(Node.class, "refs");
+
+		private volatile int state = RESIDENT;
+		// off-heap mode only
+		private volatile int pins;
 
-		// If value == null then data is stored on disk
-		private byte[] value;
+		// If value == null then data is stored on disk. Position is always 0 and limit is the value size,
+		// callers work on duplicates.
+		private volatile ByteBuffer value;
+		// compressed tier only: the compressed value, set before value is dropped
+		private volatile byte[] compressed;
+		// reads since the node was compressed
+		private volatile int compressedReads;
+		// off-heap mode only, published by state
+		private SlabAllocator.Slot slot;
 		private final int size;
-		private boolean alreadyOnDisk = false;
-		
-		public Node(byte[] value) {
+		// bytes charged against memory limits
+		private final int charge;
+		// System.nanoTime() deadline or NEVER
+		private final long expiresAt;
+		// set once the node is published if it expires, cancelled when the node is freed
+		private volatile TimerWheel.Timer<Node> expiryTimer;
+
+		// written by the cleaner, published by state, or by the writer, which does not own the state
+		private volatile boolean alreadyOnDisk = false;
+
+		// set before the node is published
+		private int id;
+		// null unless the node was put by key
+		private byte[] key;
+		// manifests only: the chunks in order. The node's own value is the list of their ids.
+		private volatile Node[] chunks;
+		// set before the node is published, VALUE, CHUNK, STREAM or DEDUPLICATED
+		private int kind = VALUE;
+		// chunks only: manifests that refer to the node, it is removed when the last one lets go
+		private volatile int refs;
+		// dedup mode chunks only, set before the node is published: SHA-256 of the value, the key of the node in
+		// blobs unless an equal node was there first
+		private ByteBuffer fingerprint;
+
+		public Node(ByteBuffer value, int charge, long expiresAt) {
 			this.value = value;
-			this.size = value.length;
+			this.size = value.remaining();
+			this.charge = charge;
+			this.expiresAt = expiresAt;
+		}
+
+		// a node restored from a checkpoint, its value is only on disk
+		Node(int size, int charge, long expiresAt) {
+			this.state = SPILLED;
+			this.size = size;
+			this.charge = charge;
+			this.expiresAt = expiresAt;
+			this.alreadyOnDisk = true;
+		}
+
+		boolean isExpired() {
+			return expiresAt != NEVER && System.nanoTime() - expiresAt >= 0;
+		}
+
+		boolean transition(int from, int to) {
+			return STATE.compareAndSet(this, from, to);
 		}
 	}
-	
-	@GuardedBy("this")
-	private final Map<String, byte[]> disk = new HashMap<String, byte[]>();
 
-	@GuardedBy("rwl")
-	private final List<Node> cache;
-	
-	@GuardedBy("rwl")
-	private long memorySize = 0; 
+	private final SpillStore disk;
+
+	// null unless values are kept off-heap
+	private final SlabAllocator slabs;
 
-	private final long highMemoryLimit;
-	private final long lowMemoryLimit;
+	private final NodeTable<Node> cache;
+
+	private final EvictionPolicy evictionPolicy;
+
+	private final PromotionPolicy promotionPolicy;
+
+	private final KeyIndex<Node> keys = new KeyIndex<>();
+
+	// dedup mode only, distinct values by fingerprint
+	private final ConcurrentHashMap<ByteBuffer, Node> blobs;
+
+	private static final ThreadLocal<MessageDigest> DIGESTS = ThreadLocal.withInitial(() -> {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			// every Java platform has SHA-256
+			throw new AssertionError(e);
+		}
+	});
+
+	// single loads in progress by id, see loadValue()
+	private final ConcurrentHashMap<Integer, InFlightLoad> loads = new ConcurrentHashMap<>();
+
+	// null unless there is a compressed tier
+	private final Codec codec;
+
+	// compressed nodes, least recently compressed first. A read promotes a node out of the tier, so the head
+	// is the node that has gone longest without a read.
+	@GuardedBy("lock")
+	private final IdLists compressedTier = new IdLists(1);
+
+	// compressed bytes, they are part of memorySize too
+	@GuardedBy("lock")
+	private long compressedSize = 0;
+
+	private final long compressedLimit;
+
+	private final TimerWheel<Node> expiryTimers = new TimerWheel<>(EXPIRY_TICK_NANOS, EXPIRY_BUCKETS, System.nanoTime());
+
+	// ids of removed nodes, reused by puts
+	@GuardedBy("lock")
+	private int[] freeIds = new int[16];
+	@GuardedBy("lock")
+	private int freeIdCount = 0;
+
+	// applied to puts that do not set a time to live
+	private final long defaultTimeToLiveNanos;
+
+	// largest chunk of a streamed value
+	private final int chunkSize;
+
+	private final ScheduledExecutorService maintenance;
+
+	// cold reads of the async API and completion of waiting async puts
+	private final ThreadPoolExecutor ioExecutor;
+
+	// set if both executors belong to someone else, who shuts them down
+	private final boolean sharedExecutors;
+
+	// cancelled on close when the maintenance thread is shared
+	private final List<ScheduledFuture<?>> periodicTasks = new ArrayList<>();
+
+	// async puts waiting for room, served in order whenever memory is freed
+	@GuardedBy("lock")
+	private final ArrayDeque<PendingPut> pendingPuts = new ArrayDeque<>();
+	@GuardedBy("lock")
+	private boolean drainScheduled = false;
+
+	private final CacheMetrics metrics = new CacheMetrics(this::memorySize, this::compressedSize, this::idSpaceSize,
+			this::freeIdCount);
+
+	// null unless the metrics are registered with the platform MBean server
+	private final ObjectName objectName;
+
+	@GuardedBy("lock")
+	private long memorySize = 0;
+
+	// fixed unless a ShardedCache moves memory between its shards
+	@GuardedBy("lock")
+	private long highMemoryLimit;
+	@GuardedBy("lock")
+	private long lowMemoryLimit;
+
+	// bytes that puts and loads brought into memory or asked for in vain, how much memory this cache could use
+	private final LongAdder requestedBytes = new LongAdder();
 	private final Thread cleanupThread;
 
-	// fair, so readers and writers get lock "in-order"
-	private final ReadWriteLock rwl = new ReentrantReadWriteLock(true);
-	
-	// CONDITION PREDICATE: noMemory (memorySize + loaded_node_size > highMemoryLimit)
-	private final Condition noMemory = rwl.writeLock().newCondition();
-	
-	public MyCache(int initialCapacity, long highLimitBytes, long lowLimitBytes) {
-		this.cache = (initialCapacity == 0) ? new ArrayList<>() 
-				: new ArrayList<Node>(initialCapacity);
-		this.highMemoryLimit = highLimitBytes;
-		this.lowMemoryLimit = lowLimitBytes;
+	// fair, so writers get lock "in-order"
+	private final ReentrantLock lock = new ReentrantLock(true);
+
+	// bytes a failed put or load asked for since the cleaner's last pass
+	@GuardedBy("lock")
+	private long demand = 0;
+
+	// CONDITION PREDICATE: noMemory (memorySize > lowMemoryLimit || demand > 0)
+	private final Condition noMemory = lock.newCondition();
+
+	// CONDITION PREDICATE: memoryAvailable (the cleaner has freed memory since the waiter last checked)
+	private final Condition memoryAvailable = lock.newCondition();
+
+	private volatile boolean closed = false;
+
+	// force spill segments to the device after every flushed batch
+	private final boolean fsyncSpills;
+
+	// spill segments and a checkpoint of their index outlive the cache
+	private final boolean persistent;
+	// null unless persistent
+	private final Path indexFile;
+	// null unless persistent, only the durable modes log to it
+	private final SpillJournal journal;
+
+	private final Durability durability;
+	// null unless durability is WRITE_BEHIND or WRITE_THROUGH
+	private final SpillWriter<Node> writer;
+	private final Thread writerThread;
+
+	// held by the writer from reading the extents of a group until the journal has them, and by a checkpoint
+	// while it rolls the journal. So the records of a log are older than every checkpoint that replaces it.
+	private final Object journalRoll = new Object();
+
+	private MyCache(Builder builder) {
+		this.cache = new NodeTable<>(builder.initialCapacity);
+		this.highMemoryLimit = builder.highLimitBytes;
+		this.lowMemoryLimit = (builder.lowLimitBytes < 0)
+				? (long) (builder.highLimitBytes * 0.8) : builder.lowLimitBytes;
+		this.evictionPolicy = (builder.evictionPolicy == null)
+				? EvictionPolicy.windowTinyLfu() : builder.evictionPolicy;
+		this.promotionPolicy = (builder.promotionPolicy == null)
+				? PromotionPolicy.always() : builder.promotionPolicy;
+		this.fsyncSpills = builder.fsyncSpills;
+		if (!builder.offHeap) {
+			this.slabs = null;
+		} else {
+			this.slabs = (builder.slabs != null) ? builder.slabs : new SlabAllocator(highMemoryLimit, builder.slabSize);
+		}
+		this.persistent = builder.persistent;
+		if (persistent && builder.spillDirectory == null) {
+			throw new IllegalArgumentException("A persistent cache needs a spill directory");
+		}
+		if (builder.durability != Durability.MEMORY_ONLY && !persistent) {
+			throw new IllegalArgumentException("Durability " + builder.durability + " needs a persistent cache");
+		}
+		Path spillDirectory = (builder.spillDirectory == null) ? newSpillDirectory() : builder.spillDirectory;
+		try {
+			this.disk = new SpillStore(spillDirectory);
+		} catch (IOException e) {
+			throw new UncheckedIOException("Failed to open spill directory " + spillDirectory, e);
+		}
+		this.indexFile = persistent ? spillDirectory.resolve(SpillIndex.FILE_NAME) : null;
+		this.defaultTimeToLiveNanos = builder.timeToLiveNanos;
+		this.chunkSize = builder.chunkSize;
+		this.blobs = builder.deduplicate ? new ConcurrentHashMap<>() : null;
+		this.codec = builder.codec;
+		this.compressedLimit = builder.compressedLimitBytes;
+		this.durability = builder.durability;
+		SpillJournal journal = null;
+		if (persistent) {
+			try {
+				journal = restore();
+			} catch (IOException e) {
+				throw new UncheckedIOException("Failed to restore spill directory " + spillDirectory, e);
+			}
+		}
+		this.journal = journal;
+		ObjectName objectName = null;
+		if (builder.jmxName != null) {
+			try {
+				objectName = register(builder.jmxName);
+			} catch (IllegalArgumentException e) {
+				// no thread is started yet, only the storage is open
+				abandonStorage(e);
+				throw e;
+			}
+		}
+		this.objectName = objectName;
 		cleanupThread = new Thread( new Cleaner() );
 		cleanupThread.setDaemon(true);
+		sharedExecutors = builder.maintenance != null;
+		maintenance = sharedExecutors ? builder.maintenance : newMaintenanceExecutor();
+		ioExecutor = sharedExecutors ? builder.ioExecutor : newIoExecutor(builder.ioThreads);
+		if (durability == Durability.MEMORY_ONLY) {
+			writer = null;
+			writerThread = null;
+		} else {
+			long lagNanos = (durability == Durability.WRITE_THROUGH) ? 0 : builder.writeBehindLagNanos;
+			writer = new SpillWriter<>(new GroupCommitter(), node -> node.size, lagNanos, MAX_UNPERSISTED_BYTES,
+					WRITER_RETRY_NANOS);
+			writerThread = new Thread(writer, "my_cache-writer");
+			writerThread.setDaemon(true);
+			writerThread.start();
+		}
+		periodicTasks.add(maintenance.scheduleWithFixedDelay(this::expire, EXPIRY_TICK_NANOS, EXPIRY_TICK_NANOS,
+				TimeUnit.NANOSECONDS));
+		periodicTasks.add(maintenance.scheduleWithFixedDelay(this::compact, COMPACTION_INTERVAL_MILLIS,
+				COMPACTION_INTERVAL_MILLIS, TimeUnit.MILLISECONDS));
+		if (persistent) {
+			periodicTasks.add(maintenance.scheduleWithFixedDelay(this::checkpoint, builder.checkpointIntervalMillis,
+					builder.checkpointIntervalMillis, TimeUnit.MILLISECONDS));
+		}
+	}
+
+	// One thread, so the periodic tasks of a cache never run concurrently
+	static ScheduledExecutorService newMaintenanceExecutor() {
+		return Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "my_cache-maintenance");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	static ThreadPoolExecutor newIoExecutor(int threads) {
+		AtomicInteger threadCount = new AtomicInteger();
+		return new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<>(IO_QUEUE_CAPACITY), r -> {
+					Thread thread = new Thread(r, "my_cache-io-" + threadCount.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				});
+	}
+
+	public MyCache(int initialCapacity, long highLimitBytes, long lowLimitBytes, Path spillDirectory) {
+		this(builder(highLimitBytes).initialCapacity(initialCapacity).lowLimit(lowLimitBytes)
+				.spillDirectory(spillDirectory));
+	}
+
+	public MyCache(int initialCapacity, long highLimitBytes, long lowLimitBytes) {
+		this(builder(highLimitBytes).initialCapacity(initialCapacity).lowLimit(lowLimitBytes));
 	}
-		
+
 	public MyCache(long highLimitBytes) {
-		this(0, highLimitBytes, (int) ( highLimitBytes * 0.8 ) );
+		this(builder(highLimitBytes));
 	}
 
-	// BLOCKS-UNTIL: memoryAvailable
+	public static Builder builder(long highLimitBytes) {
+		return new Builder(highLimitBytes);
+	}
+
+	/**
+	 * Adds a value without waiting. Throws {@link CacheUnavailableException} if there is no room for it.
+	 */
 	public int putToCache(byte[] data) {
-		int id = 0;
+		int id = putNow(data, true);
+		if (id < 0) {
+			throw new CacheUnavailableException("No room for new node. Please retry later");
+		}
+		return id;
+	}
+
+	/**
+	 * Adds a value, waiting up to timeout for the cleaner to make room. Throws {@link CacheUnavailableException}
+	 * if there is still no room after that.
+	 */
+	// BLOCKS-UNTIL: memoryAvailable
+	public int putToCache(byte[] data, long timeout, TimeUnit unit) throws InterruptedException {
+		int id = put(data, true, unit.toNanos(timeout), defaultTimeToLiveNanos);
+		if (id < 0) {
+			throw new CacheUnavailableException("No room for new node after " + timeout + " " + unit);
+		}
+		return id;
+	}
+
+	/**
+	 * Adds a value if there is room for it right now, returns -1 otherwise.
+	 */
+	public int tryPutToCache(byte[] data) {
+		return putNow(data, true);
+	}
 
-		rwl.writeLock().lock();
+	/**
+	 * Adds a value, waiting up to timeout for the cleaner to make room. Returns -1 on timeout.
+	 */
+	// BLOCKS-UNTIL: memoryAvailable
+	public int tryPutToCache(byte[] data, long timeout, TimeUnit unit) throws InterruptedException {
+		return put(data, true, unit.toNanos(timeout), defaultTimeToLiveNanos);
+	}
 
-		if (cleanupThread.getState() == Thread.State.NEW) {
-			cleanupThread.start();
+	/**
+	 * Same as {@link #putToCache(byte[])}, but the cache takes ownership of the array instead of copying it.
+	 * The caller must not modify the array afterwards. In off-heap mode the value is copied anyway.
+	 */
+	public int putToCacheOwned(byte[] data) {
+		int id = putNow(data, false);
+		if (id < 0) {
+			throw new CacheUnavailableException("No room for new node. Please retry later");
 		}
+		return id;
+	}
 
+	/**
+	 * Adds a value that expires after timeToLive, without waiting. Throws {@link CacheUnavailableException}
+	 * if there is no room for it.
+	 */
+	public int putToCacheWithTtl(byte[] data, long timeToLive, TimeUnit unit) {
 		try {
-			if (data.length + memorySize > highMemoryLimit) {
-				noMemory.signalAll();
+			int id = put(data, true, 0, unit.toNanos(timeToLive));
+			if (id < 0) {
 				throw new CacheUnavailableException("No room for new node. Please retry later");
 			}
-			Node node = new Node(Arrays.copyOf(data, data.length));
-			id = cache.size();
-			cache.add(node);
-			memorySize += node.size;
-		} finally {
-			rwl.writeLock().unlock();
+			return id;
+		} catch (InterruptedException e) {
+			// never waits, so never interrupted
+			throw new AssertionError(e);
+		}
+	}
+
+	private int putNow(byte[] data, boolean copy) {
+		try {
+			return put(data, copy, 0, defaultTimeToLiveNanos);
+		} catch (InterruptedException e) {
+			// never waits, so never interrupted
+			throw new AssertionError(e);
 		}
+	}
 
-		if (logger.isInfoEnabled()) {
-			logger.info("Added node: " + id + ", size (bytes): " + data.length);
+	// Returns -1 if there is no room after timeoutNanos
+	private int put(byte[] data, boolean copy, long timeoutNanos, long timeToLiveNanos)
+			throws InterruptedException {
+		Node node = insertValue(null, data, copy, timeoutNanos, timeToLiveNanos);
+		return (node == null) ? -1 : node.id;
+	}
+
+	// Returns null if there is no room after timeoutNanos
+	private Node insertValue(byte[] key, byte[] data, boolean copy, long timeoutNanos, long timeToLiveNanos)
+			throws InterruptedException {
+		Node node = storeValue(key, data, copy, timeoutNanos, timeToLiveNanos);
+		if (node != null) {
+			awaitPersisted(node);
 		}
+		return node;
+	}
 
-		return id;
+	private Node storeValue(byte[] key, byte[] data, boolean copy, long timeoutNanos, long timeToLiveNanos)
+			throws InterruptedException {
+		ByteBuffer fingerprint = (blobs == null) ? null : fingerprint(data);
+		return insert(key, data, copy, timeoutNanos, timeToLiveNanos, null, VALUE, fingerprint);
 	}
-	
-	// BLOCKS-UNTIL: memoryAvailable
-	public byte[] getFromCache(int id) {
-		Node node;
 
-		rwl.readLock().lock();
-		try {
-			if (id >= cache.size() || id < 0) {
-				logger.warn("Invalid id: " + id);
+	// Returns a node holding data with a reference taken for the caller, or null if there is no room after
+	// timeoutNanos. In dedup mode that is the blob of an equal value if there is one.
+	private Node acquireChunk(byte[] data, boolean copy, long timeoutNanos) throws InterruptedException {
+		if (blobs == null) {
+			return insert(null, data, copy, timeoutNanos, NEVER, null, CHUNK, null);
+		}
+
+		ByteBuffer fingerprint = fingerprint(data);
+		while (true) {
+			Node blob = blobs.get(fingerprint);
+			if (blob != null) {
+				if (retain(blob)) {
+					metrics.deduplicatedPuts.increment();
+					return blob;
+				}
+				// its last reference is gone, it is being removed
+				blobs.remove(fingerprint, blob);
+				continue;
+			}
+			blob = insert(null, data, copy, timeoutNanos, NEVER, null, CHUNK, fingerprint);
+			if (blob == null) {
 				return null;
 			}
-			node = cache.get(id);
-		} finally {
-			rwl.readLock().unlock();
+			if (blobs.putIfAbsent(fingerprint, blob) == null) {
+				return blob;
+			}
+			// an equal value was stored meanwhile, use that one
+			remove(blob.id, blob);
 		}
+	}
 
-		byte[] result;
-		synchronized (node) {
-			node.usedCount++;
-			if (node.value == null) {
-				if (logger.isInfoEnabled()) {
-					logger.info("Read from disk node id: " + id);
-				}
+	private static ByteBuffer fingerprint(byte[] data) {
+		MessageDigest digest = DIGESTS.get();
+		digest.reset();
+		return ByteBuffer.wrap(digest.digest(data));
+	}
 
-				byte[] loaded = loadFromFile(new Integer(id).toString());
-				rwl.writeLock().lock();
-				try {
-					if (node.size + memorySize > highMemoryLimit) {
-						if (logger.isDebugEnabled()) {
-							logger.debug("Not enough memory to load node id: " + id);
-						}
-						noMemory.signalAll();
-						return loaded;
-					}
-					else {
-						node.value = loaded; // should not escape
-						memorySize += node.size;
-					}
-				} finally {
-					rwl.writeLock().unlock();
-				}
+	// Takes a reference to a chunk unless it has already lost its last one
+	private static boolean retain(Node chunk) {
+		while (true) {
+			int refs = chunk.refs;
+			if (refs == 0) {
+				return false;
+			}
+			if (Node.REFS.compareAndSet(chunk, refs, refs + 1)) {
+				return true;
 			}
-			result = Arrays.copyOf(node.value, node.value.length);
 		}
-		if (logger.isInfoEnabled()) {
-			logger.info("Return value of node id: " + id);
+	}
+
+	private void release(Node chunk) {
+		if (Node.REFS.decrementAndGet(chunk) == 0) {
+			if (chunk.fingerprint != null) {
+				blobs.remove(chunk.fingerprint, chunk);
+			}
+			remove(chunk.id, chunk);
 		}
-		return result;
 	}
 
-	public synchronized byte[] loadFromFile(String filename) {
+	private static byte[] manifestOf(Node[] chunks) {
+		ByteBuffer ids = ByteBuffer.allocate(chunks.length * 4);
+		for (Node chunk : chunks) {
+			ids.putInt(chunk.id);
+		}
+		return ids.array();
+	}
 
-		return disk.get(filename);
+	// Returns null if there is no room after timeoutNanos. A manifest is given its chunks, and a chunk its first
+	// reference, before it is registered. A fingerprint makes a VALUE a value put in dedup mode (see admitValue),
+	// and is the fingerprint of a CHUNK.
+	private Node insert(byte[] key, byte[] data, boolean copy, long timeoutNanos, long timeToLiveNanos,
+			Node[] chunks, int kind, ByteBuffer fingerprint) throws InterruptedException {
+		CacheEvents.Put event = CacheEvents.beginPut();
+		long start = System.nanoTime();
+		Node node = null;
+		try {
+			node = tryInsert(key, data, copy, timeoutNanos, timeToLiveNanos, chunks, kind, fingerprint);
+			if (node == null) {
+				metrics.rejectedPuts.increment();
+			}
+			return node;
+		} finally {
+			metrics.putLatency.record(System.nanoTime() - start);
+			if (CacheEvents.shouldCommit(event)) {
+				event.id = (node == null) ? -1 : node.id;
+				event.count = 1;
+				event.bytes = data.length;
+				event.commit();
+			}
+		}
 	}
 
-	public synchronized void saveToFile(String filename, byte[] data) {
+	private Node tryInsert(byte[] key, byte[] data, boolean copy, long timeoutNanos, long timeToLiveNanos,
+			Node[] chunks, int kind, ByteBuffer fingerprint) throws InterruptedException {
+		int id;
+		int charge = (slabs == null) ? data.length : slabs.slotSize(data.length);
+		long expiresAt = (timeToLiveNanos == NEVER) ? NEVER : System.nanoTime() + timeToLiveNanos;
+		Node node;
+
+		acquireLock();
 		try {
-			Thread.sleep(1000);
-		} catch (InterruptedException e) {
-			throw new RuntimeException("Failed to save file", e);
+			if (cleanupThread.getState() == Thread.State.NEW) {
+				cleanupThread.start();
+			}
+
+			long nanos = timeoutNanos;
+			while ((node = (kind == VALUE) ? admitValue(key, data, copy, charge, expiresAt, fingerprint)
+					: admit(key, data, copy, charge, expiresAt, chunks, kind, fingerprint)) == null) {
+				if (closed) {
+					throw new CacheUnavailableException("Cache is closed");
+				}
+				shortOf(charge);
+				if (nanos <= 0) {
+					return null;
+				}
+				nanos = memoryAvailable.awaitNanos(nanos);
+			}
+			id = node.id;
+		} finally {
+			lock.unlock();
+		}
+		if (expiresAt != NEVER) {
+			scheduleExpiry(node);
 		}
+		return node;
+	}
 
-		disk.put(filename, data);
+	// Adds a node if there is room for it right now, returns null otherwise
+	@GuardedBy("lock")
+	private Node admit(byte[] key, byte[] data, boolean copy, int charge, long expiresAt, Node[] chunks,
+			int kind, ByteBuffer fingerprint) {
+		SlabAllocator.Slot slot = null;
+		if (charge + memorySize > highMemoryLimit
+				|| (slabs != null && (slot = slabs.allocate(data.length)) == null)) {
+			return null;
+		}
+		Node node = newNode(key, copy ? Arrays.copyOf(data, data.length) : data, slot, charge, expiresAt);
+		node.chunks = chunks;
+		node.kind = kind;
+		node.fingerprint = fingerprint;
+		if (kind == CHUNK) {
+			node.refs = 1;
+		}
+		register(node);
+		if (memorySize > lowMemoryLimit) {
+			// start evicting before puts begin to fail
+			noMemory.signal();
+		}
+		return node;
+	}
 
+	// Adds a value put by a caller if there is room for it right now, returns null otherwise. Sync and async puts
+	// both come here. In dedup mode (fingerprint set) the node is a manifest of the blob of an equal value, or of a
+	// new blob that later puts of the value share.
+	@GuardedBy("lock")
+	private Node admitValue(byte[] key, byte[] data, boolean copy, int charge, long expiresAt, ByteBuffer fingerprint) {
+		if (fingerprint == null) {
+			return admit(key, data, copy, charge, expiresAt, null, VALUE, null);
+		}
+		int manifestCharge = manifestCharge();
+		Node blob = blobs.get(fingerprint);
+		boolean shared = blob != null && retain(blob);
+		if (!shared) {
+			if (charge + manifestCharge + memorySize > highMemoryLimit
+					|| (blob = admit(null, data, copy, charge, NEVER, null, CHUNK, fingerprint)) == null) {
+				return null;
+			}
+			Node old = blobs.putIfAbsent(fingerprint, blob);
+			// one that lost its last reference is replaced, an equal chunk a stream stored meanwhile is not: then
+			// this blob is not shared, and its release leaves the other one's entry alone
+			if (old != null && old.refs == 0) {
+				blobs.replace(fingerprint, old, blob);
+			}
+		}
+		Node[] chunks = { blob };
+		Node node = admit(key, manifestOf(chunks), false, manifestCharge, expiresAt, chunks, DEDUPLICATED, null);
+		if (node == null) {
+			// no slab left for the manifest
+			release(blob);
+		} else if (shared) {
+			metrics.deduplicatedPuts.increment();
+		}
+		return node;
 	}
-	
-	private class Cleaner implements Runnable {
 
-		// BLOCKS-UNTIL: noMemory
-		@Override
-		public void run() {
-			while (true) {
-				rwl.writeLock().lock();
-				try {
-					noMemory.awaitUninterruptibly();
-				} finally {
-					rwl.writeLock().unlock();
-				}
+	// charge of the manifest of a deduplicated value
+	private int manifestCharge() {
+		return (slabs == null) ? Integer.BYTES : slabs.slotSize(Integer.BYTES);
+	}
+
+	/**
+	 * Adds a copy of data. The future completes inline if there is room, otherwise when the cleaner has freed
+	 * enough memory, without a thread waiting for it. Async puts are served in order. Fails with
+	 * {@link CacheUnavailableException} if the cache is closed first or the value can never fit.
+	 */
+	public CompletableFuture<Integer> putAsync(byte[] data) {
+		return insertAsync(null, Arrays.copyOf(data, data.length), NEVER);
+	}
+
+	/**
+	 * Same as {@link #putAsync(byte[])}, but fails with {@link CacheUnavailableException} if there is still no
+	 * room after timeout.
+	 */
+	public CompletableFuture<Integer> putAsync(byte[] data, long timeout, TimeUnit unit) {
+		return insertAsync(null, Arrays.copyOf(data, data.length), unit.toNanos(timeout));
+	}
+
+	// Async version of put(String, byte[]), see putAsync(byte[])
+	public CompletableFuture<Void> putAsync(String key, byte[] value) {
+		return putAsync(key.getBytes(StandardCharsets.UTF_8), value);
+	}
+
+	public CompletableFuture<Void> putAsync(byte[] key, byte[] value) {
+		return insertAsync(Arrays.copyOf(key, key.length), Arrays.copyOf(value, value.length), NEVER)
+				.thenApply(id -> null);
+	}
 
-				freeMemory();
+	private CompletableFuture<Integer> insertAsync(byte[] key, byte[] data, long timeoutNanos) {
+		int charge = (slabs == null) ? data.length : slabs.slotSize(data.length);
+		PendingPut put = new PendingPut(key, data, charge, (blobs == null) ? null : fingerprint(data));
+		Node node;
+		acquireLock();
+		try {
+			if (closed) {
+				return failed(new CacheUnavailableException("Cache is closed"));
+			}
+			if (charge > highMemoryLimit) {
+				metrics.rejectedPuts.increment();
+				return failed(new CacheUnavailableException("Value of " + data.length + " bytes never fits the cache"));
+			}
+			if (cleanupThread.getState() == Thread.State.NEW) {
+				cleanupThread.start();
 			}
+			// earlier async puts go first
+			node = pendingPuts.isEmpty()
+					? admitValue(key, data, false, charge, expiresAt(defaultTimeToLiveNanos), put.fingerprint) : null;
+			if (node == null) {
+				pendingPuts.addLast(put);
+				shortOf(charge);
+			}
+		} finally {
+			lock.unlock();
 		}
 
-		private void freeMemory() {
-			PriorityQueue<NodeSnapshot> queue;
-			rwl.readLock().lock();
+		if (node != null) {
+			complete(put, node);
+		} else if (timeoutNanos != NEVER) {
 			try {
-				queue = new PriorityQueue<>(cache.size());
-
-				logger.debug("Gather statistics");
-				for (int i = 0; i < cache.size(); i++) {
-					Node node = cache.get(i);
-					synchronized (node) {
-						if (node.value == null) {
-							continue;
-						}
-						queue.add(new NodeSnapshot(node, i, node.usedCount));
-					}
-				}
-			} finally {
-				rwl.readLock().unlock();
+				maintenance.schedule(() -> timeOut(put, timeoutNanos), timeoutNanos, TimeUnit.NANOSECONDS);
+			} catch (RejectedExecutionException e) {
+				// closed meanwhile, close() fails the put
 			}
+		}
+		return put.future;
+	}
 
-			logger.debug("Clean up unused cache items");
-			boolean cleanedEnough = false;
-			for (NodeSnapshot nodeSnapshot = queue.poll(); nodeSnapshot != null; nodeSnapshot = queue.poll()) {
-				Node node = nodeSnapshot.node;
-				synchronized (node) {
-					if (node.value == null) {
-						continue;
-					}
-
-					if (!node.alreadyOnDisk) {
-						if (logger.isInfoEnabled()) {
-							logger.info("Flush to disk node id: " + nodeSnapshot.id + ", size (bytes): " + node.size);
-						}
-						saveToFile(new Integer(nodeSnapshot.id).toString(), node.value);
-					}
-					node.value = null;
-				}
+	private static long expiresAt(long timeToLiveNanos) {
+		return (timeToLiveNanos == NEVER) ? NEVER : System.nanoTime() + timeToLiveNanos;
+	}
 
-				rwl.writeLock().lock();
-				try {
-					memorySize -= node.size;
-					if (memorySize <= lowMemoryLimit) {
-						cleanedEnough = true;
-					}
-					if (logger.isDebugEnabled()) {
-						logger.debug("Memory used: " + memorySize);
-					}
-				} finally {
-					rwl.writeLock().unlock();
-				}
-				if (cleanedEnough) {
-					break;
-				}
+	// Runs on the maintenance thread, completion is left to the I/O threads like every other async callback
+	private void timeOut(PendingPut put, long timeoutNanos) {
+		acquireLock();
+		try {
+			if (!pendingPuts.remove(put)) {
+				return;
 			}
+		} finally {
+			lock.unlock();
+		}
+		metrics.rejectedPuts.increment();
+		CacheUnavailableException timeout = new CacheUnavailableException(
+				"No room for new node after " + TimeUnit.NANOSECONDS.toMillis(timeoutNanos) + " ms");
+		try {
+			ioExecutor.execute(() -> put.future.completeExceptionally(timeout));
+		} catch (RejectedExecutionException e) {
+			put.future.completeExceptionally(timeout);
 		}
+	}
 
-		private class NodeSnapshot implements Comparable<NodeSnapshot> {
-			Node node;
-			int usedCount;
-			int id;
+	// lock.lock(), with a LockWait event for a wait over its threshold
+	private void acquireLock() {
+		CacheEvents.LockWait event = CacheEvents.beginLockWait();
+		lock.lock();
+		if (CacheEvents.shouldCommit(event)) {
+			event.queueLength = lock.getQueueLength();
+			event.commit();
+		}
+	}
+
+	// Records that bytes did not fit and wakes the cleaner
+	@GuardedBy("lock")
+	private void shortOf(long bytes) {
+		demand = Math.max(demand, bytes);
+		requestedBytes.add(bytes);
+		noMemory.signal();
+	}
+
+	// Called whenever memory is given back
+	@GuardedBy("lock")
+	private void memoryFreed() {
+		memoryAvailable.signalAll();
+		if (!pendingPuts.isEmpty() && !drainScheduled) {
+			drainScheduled = true;
+			scheduleDrain();
+		}
+	}
 
-			public NodeSnapshot(Node node, int id, int usedCount) {
-				this.node = node;
-				this.id = id;
-				this.usedCount = usedCount;
+	private void scheduleDrain() {
+		try {
+			ioExecutor.execute(this::drainPendingPuts);
+		} catch (RejectedExecutionException e) {
+			if (closed) {
+				return;
+			}
+			// the I/O queue is full of reads, try again shortly
+			try {
+				maintenance.schedule(this::scheduleDrain, 1, TimeUnit.MILLISECONDS);
+			} catch (RejectedExecutionException closing) {
+				// close() fails the waiting puts
 			}
+		}
+	}
 
-			@Override
-			public int compareTo(NodeSnapshot o) {
-				return Integer.compare(usedCount, o.usedCount);
+	// Admits waiting async puts in order until one does not fit
+	private void drainPendingPuts() {
+		while (true) {
+			PendingPut put;
+			Node node;
+			acquireLock();
+			try {
+				put = pendingPuts.peekFirst();
+				if (put == null || closed) {
+					drainScheduled = false;
+					return;
+				}
+				node = admitValue(put.key, put.data, false, put.charge, expiresAt(defaultTimeToLiveNanos),
+						put.fingerprint);
+				if (node == null) {
+					shortOf(put.charge);
+					drainScheduled = false;
+					return;
+				}
+				pendingPuts.pollFirst();
+			} finally {
+				lock.unlock();
 			}
+			complete(put, node);
 		}
 	}
-	
-	public static class CacheUnavailableException extends RuntimeException {
 
-		public CacheUnavailableException(String message) {
-			super(message);
+	private void complete(PendingPut put, Node node) {
+		if (node.expiresAt != NEVER) {
+			scheduleExpiry(node);
+		}
+		if (mustAwaitPersisted()) {
+			writer.pending().whenComplete((persisted, failure) -> {
+				// on an I/O thread, so the caller's callbacks and a removal do not hold up the next group commit
+				Runnable completion = (failure == null) ? () -> publish(put, node)
+						: () -> put.future.completeExceptionally(persistFailure(failure, node));
+				try {
+					ioExecutor.execute(completion);
+				} catch (RejectedExecutionException e) {
+					completion.run();
+				}
+			});
+			return;
+		}
+		publish(put, node);
+	}
+
+	private void publish(PendingPut put, Node node) {
+		if (put.key != null) {
+			index(node);
 		}
+		metrics.putLatency.record(System.nanoTime() - put.startNanos);
+		put.future.complete(node.id);
+	}
+
+	/**
+	 * Reads a copy of the value, null for an invalid id. A value in memory is copied inline, a spilled one is
+	 * loaded on an I/O thread. Fails with {@link CacheUnavailableException} if the I/O queue is full.
+	 */
+	public CompletableFuture<byte[]> getAsync(int id) {
+		Node node = entry(id);
+		return (node == null) ? CompletableFuture.completedFuture(null) : getAsync(node);
+	}
 
+	// completes with null if there is no such key
+	public CompletableFuture<byte[]> getAsync(String key) {
+		Node node = keys.get(key.getBytes(StandardCharsets.UTF_8));
+		return (node == null) ? CompletableFuture.completedFuture(null) : getAsync(node);
+	}
+
+	/**
+	 * Async {@link #getBufferFromCache(int)} by key, completes with null if there is no such key. Lets a caller
+	 * write the value out without copying it first.
+	 */
+	public CompletableFuture<ByteBuffer> getBufferAsync(byte[] key) {
+		Node node = keys.get(key);
+		return (node == null) ? CompletableFuture.completedFuture(null) : readAsync(node, this::stableView);
+	}
+
+	private CompletableFuture<byte[]> getAsync(Node node) {
+		return readAsync(node, MyCache::copyOf);
+	}
+
+	private <R> CompletableFuture<R> readAsync(Node node, Function<ByteBuffer, R> action) {
+		if (node.value != null || node.compressed != null) {
+			return CompletableFuture.completedFuture(access(node, action));
+		}
+		return supplyAsync(() -> access(node, action));
+	}
+
+	private <T> CompletableFuture<T> supplyAsync(Supplier<T> action) {
+		try {
+			return CompletableFuture.supplyAsync(action, ioExecutor);
+		} catch (RejectedExecutionException e) {
+			return failed(new CacheUnavailableException("Too many requests in progress. Please retry later"));
+		}
+	}
+
+	private static <T> CompletableFuture<T> failed(Throwable failure) {
+		CompletableFuture<T> future = new CompletableFuture<>();
+		future.completeExceptionally(failure);
+		return future;
+	}
+
+	// data is not copied unless the node goes off-heap
+	private static Node newNode(byte[] key, byte[] data, SlabAllocator.Slot slot, int charge, long expiresAt) {
+		Node node;
+		if (slot == null) {
+			node = new Node(ByteBuffer.wrap(data), charge, expiresAt);
+		} else {
+			slot.buffer.duplicate().put(data);
+			node = new Node(slot.buffer, charge, expiresAt);
+			node.slot = slot;
+		}
+		node.key = key;
+		return node;
+	}
+
+	// Gives the node an id, publishes it and charges its memory. The caller has checked that it fits.
+	@GuardedBy("lock")
+	private int register(Node node) {
+		int id;
+		if (freeIdCount > 0) {
+			id = freeIds[--freeIdCount];
+			node.id = id;
+			cache.set(id, node);
+		} else {
+			id = cache.size();
+			node.id = id;
+			cache.append(node);
+		}
+		memorySize += node.charge;
+		requestedBytes.add(node.charge);
+		// manifests stay in memory, a spilled one would cost a disk read before every read of its chunks
+		if (node.chunks == null) {
+			evictionPolicy.recordInsert(id, node.charge);
+		}
+		if (writer != null) {
+			writer.register(node);
+		}
+		return id;
+	}
+
+	private boolean mustAwaitPersisted() {
+		return durability == Durability.WRITE_THROUGH || (writer != null && writer.lagging());
+	}
+
+	// Returns once the writer has committed nodes, if the durability mode makes puts wait for it. If the commit
+	// fails the nodes are removed, the put fails.
+	private void awaitPersisted(Node... nodes) {
+		if (nodes.length == 0 || !mustAwaitPersisted()) {
+			return;
+		}
+		try {
+			writer.pending().join();
+		} catch (CompletionException e) {
+			throw persistFailure(e.getCause(), nodes);
+		}
+	}
+
+	private RuntimeException persistFailure(Throwable failure, Node... nodes) {
+		for (Node node : nodes) {
+			remove(node.id, node);
+		}
+		if (failure instanceof IOException) {
+			return new UncheckedIOException("Failed to persist node id: " + nodes[0].id, (IOException) failure);
+		}
+		return (failure instanceof RuntimeException) ? (RuntimeException) failure : new CompletionException(failure);
+	}
+
+	/**
+	 * Adds a value read from in up to the end of the stream. The value is stored in chunks (see
+	 * {@link Builder#chunkSize(int)}) as it is read, each chunk waiting up to timeout for room, so it can be much
+	 * larger than the memory limits. Throws {@link CacheUnavailableException} and keeps nothing if a chunk finds
+	 * no room.
+	 */
+	// BLOCKS-UNTIL: memoryAvailable
+	public int putStream(InputStream in, long timeout, TimeUnit unit) throws IOException, InterruptedException {
+		return insertStream(null, in::read, unit.toNanos(timeout)).id;
+	}
+
+	// in must be blocking, see putStream(InputStream, long, TimeUnit)
+	// BLOCKS-UNTIL: memoryAvailable
+	public int putStream(ReadableByteChannel in, long timeout, TimeUnit unit) throws IOException, InterruptedException {
+		return insertStream(null, (b, offset, length) -> in.read(ByteBuffer.wrap(b, offset, length)),
+				unit.toNanos(timeout)).id;
+	}
+
+	// Keyed counterpart of putStream(InputStream, long, TimeUnit)
+	// BLOCKS-UNTIL: memoryAvailable
+	public void putStream(String key, InputStream in, long timeout, TimeUnit unit)
+			throws IOException, InterruptedException {
+		index(insertStream(key.getBytes(StandardCharsets.UTF_8), in::read, unit.toNanos(timeout)));
+	}
+
+	private interface ChunkSource {
+		int read(byte[] b, int offset, int length) throws IOException;
+	}
+
+	// A value that ends within its first chunk is put like any other, a longer one becomes a manifest over its
+	// chunks
+	private Node insertStream(byte[] key, ChunkSource in, long timeoutNanos) throws IOException, InterruptedException {
+		List<Node> chunks = new ArrayList<>();
+		boolean stored = false;
+		try {
+			while (true) {
+				byte[] chunk = new byte[chunkSize];
+				int filled = fill(in, chunk);
+				if (filled < chunkSize && chunks.isEmpty()) {
+					Node node = insertValue(key, Arrays.copyOf(chunk, filled), false, timeoutNanos,
+							defaultTimeToLiveNanos);
+					return roomFor(node, filled, timeoutNanos);
+				}
+				if (filled > 0) {
+					// chunks expire with their manifest
+					Node piece = acquireChunk((filled < chunkSize) ? Arrays.copyOf(chunk, filled) : chunk, false,
+							timeoutNanos);
+					chunks.add(roomFor(piece, filled, timeoutNanos));
+				}
+				if (filled < chunkSize) {
+					break;
+				}
+			}
+
+			Node[] manifest = chunks.toArray(new Node[chunks.size()]);
+			Node node = insert(key, manifestOf(manifest), false, timeoutNanos, defaultTimeToLiveNanos, manifest,
+					STREAM, null);
+			roomFor(node, manifest.length * 4, timeoutNanos);
+			stored = true;
+			awaitPersisted(node);
+			return node;
+		} finally {
+			if (!stored) {
+				for (Node chunk : chunks) {
+					release(chunk);
+				}
+			}
+		}
+	}
+
+	// Reads until chunk is full or the stream ends, returns the bytes read
+	private static int fill(ChunkSource in, byte[] chunk) throws IOException {
+		int filled = 0;
+		while (filled < chunk.length) {
+			int n = in.read(chunk, filled, chunk.length - filled);
+			if (n < 0) {
+				break;
+			}
+			filled += n;
+		}
+		return filled;
+	}
+
+	private static Node roomFor(Node node, int length, long timeoutNanos) {
+		if (node == null) {
+			throw new CacheUnavailableException("No room for " + length + " bytes after "
+					+ TimeUnit.NANOSECONDS.toMillis(timeoutNanos) + " ms");
+		}
+		return node;
+	}
+
+	/**
+	 * Writes the value to out chunk by chunk, without assembling it: chunks in memory are written from their
+	 * buffers, spilled ones straight out of the mapped spill file, and they stay on disk. out must be
+	 * blocking. Works for any node, not only streamed ones. Returns false if there is no such node.
+	 */
+	public boolean getStream(int id, WritableByteChannel out) throws IOException {
+		Node node = entry(id);
+		return node != null && stream(node, out);
+	}
+
+	public boolean getStream(int id, OutputStream out) throws IOException {
+		return getStream(id, new OutputStreamChannel(out));
+	}
+
+	// Keyed counterpart of getStream(int, WritableByteChannel), returns false if there is no such key
+	public boolean getStream(String key, WritableByteChannel out) throws IOException {
+		Node node = keys.get(key.getBytes(StandardCharsets.UTF_8));
+		return node != null && stream(node, out);
+	}
+
+	public boolean getStream(String key, OutputStream out) throws IOException {
+		return getStream(key, new OutputStreamChannel(out));
+	}
+
+	private boolean stream(Node node, WritableByteChannel out) throws IOException {
+		CacheEvents.Get event = CacheEvents.beginGet();
+		long start = System.nanoTime();
+		if (node.isExpired()) {
+			remove(node.id, node);
+			return false;
+		}
+		evictionPolicy.recordAccess(node.id);
+		Node[] chunks = node.chunks;
+		boolean sent;
+		if (chunks == null) {
+			sent = send(node, out, false);
+		} else {
+			sent = true;
+			for (int i = 0; i < chunks.length && sent; i++) {
+				evictionPolicy.recordAccess(chunks[i].id);
+				sent = send(chunks[i], out, i > 0);
+			}
+		}
+		metrics.getLatency.record(System.nanoTime() - start);
+		if (CacheEvents.shouldCommit(event)) {
+			event.id = node.id;
+			event.count = 1;
+			event.bytes = valueSize(node);
+			event.commit();
+		}
+		return sent;
+	}
+
+	// Writes the value of one node to out. Returns false if the node was removed and started is false, a removal
+	// after part of the value was written cannot be undone and throws.
+	private boolean send(Node node, WritableByteChannel out, boolean started) throws IOException {
+		int id = node.id;
+		while (true) {
+			ByteBuffer value = stableValueInMemory(node);
+			if (value != null) {
+				metrics.hits.increment();
+				while (value.hasRemaining()) {
+					out.write(value);
+				}
+				return true;
+			}
+			if (node.state == REMOVED) {
+				if (started) {
+					throw new IOException("Node id: " + id + " was removed while it was being read");
+				}
+				return false;
+			}
+			metrics.misses.increment();
+			metrics.diskLoads.increment();
+			if (disk.transferTo(id, out)) {
+				// REMOVED is set before the id can be reused, so this also catches a transfer of the next node's value
+				if (node.state == REMOVED) {
+					throw new IOException("Node id: " + id + " was removed while it was being read");
+				}
+				return true;
+			}
+			// not on disk (yet): compressed, or spilled after this reader looked at memory
+		}
+	}
+
+	// The value if it is in memory, raw or decompressed, in a buffer that stays valid after the node is
+	// evicted: a slot is reused once its node is flushed, so off-heap values are copied
+	private ByteBuffer stableValueInMemory(Node node) {
+		if (slabs == null) {
+			return valueInMemory(node);
+		}
+		Node.PINS.incrementAndGet(node);
+		try {
+			ByteBuffer value = valueInMemory(node);
+			return (value == null || !value.isDirect()) ? value : ByteBuffer.wrap(copyOf(value));
+		} finally {
+			Node.PINS.decrementAndGet(node);
+		}
+	}
+
+	// Does not promote a compressed value, a stream reads every chunk once
+	private ByteBuffer valueInMemory(Node node) {
+		ByteBuffer value = node.value;
+		if (value != null) {
+			return value.duplicate();
+		}
+		byte[] compressed = node.compressed;
+		if (compressed != null) {
+			return ByteBuffer.wrap(codec.decompress(compressed, node.size));
+		}
+		// a promotion publishes value before it drops compressed
+		value = node.value;
+		return (value == null) ? null : value.duplicate();
+	}
+
+	/**
+	 * Adds copies of several values with one memory check: either all of them fit right now, or none is added
+	 * and {@link CacheUnavailableException} is thrown. Returns the ids in the order of values. In dedup mode the
+	 * values are deduplicated like single puts, and the check assumes none of them is.
+	 */
+	public int[] putAll(byte[]... values) {
+		Node[] nodes = insertAll(null, values);
+		int[] ids = new int[nodes.length];
+		for (int i = 0; i < nodes.length; i++) {
+			ids[i] = nodes[i].id;
+		}
+		return ids;
+	}
+
+	/**
+	 * Keyed counterpart of {@link #putAll(byte[]...)}, all entries are added or none is.
+	 */
+	public void putAll(Map<String, byte[]> entries) {
+		byte[][] keyBytes = new byte[entries.size()][];
+		byte[][] values = new byte[entries.size()][];
+		int i = 0;
+		for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+			keyBytes[i] = entry.getKey().getBytes(StandardCharsets.UTF_8);
+			values[i] = entry.getValue();
+			i++;
+		}
+		Node[] nodes = insertAll(keyBytes, values);
+		for (Node node : nodes) {
+			index(node);
+		}
+	}
+
+	// keys is null or parallel to values
+	private Node[] insertAll(byte[][] keys, byte[][] values) {
+		CacheEvents.Put event = CacheEvents.beginPut();
+		long start = System.nanoTime();
+		long charge = 0;
+		int[] charges = new int[values.length];
+		byte[][] data = new byte[values.length][];
+		for (int i = 0; i < values.length; i++) {
+			charges[i] = (slabs == null) ? values[i].length : slabs.slotSize(values[i].length);
+			charge += charges[i];
+			// copies are made before taking the lock, off-heap values are copied into their slots anyway
+			data[i] = (slabs == null) ? Arrays.copyOf(values[i], values[i].length) : values[i];
+		}
+		long needed = charge;
+		ByteBuffer[] fingerprints = null;
+		if (blobs != null) {
+			fingerprints = new ByteBuffer[values.length];
+			for (int i = 0; i < values.length; i++) {
+				fingerprints[i] = fingerprint(values[i]);
+			}
+			// a new blob and its manifest for every value at most
+			needed += (long) values.length * manifestCharge();
+		}
+		long expiresAt = (defaultTimeToLiveNanos == NEVER) ? NEVER : System.nanoTime() + defaultTimeToLiveNanos;
+		Node[] nodes = new Node[values.length];
+
+		int admitted = 0;
+		acquireLock();
+		try {
+			if (cleanupThread.getState() == Thread.State.NEW) {
+				cleanupThread.start();
+			}
+			if (closed) {
+				throw new CacheUnavailableException("Cache is closed");
+			}
+
+			SlabAllocator.Slot[] slots = null;
+			if (needed + memorySize > highMemoryLimit
+					|| (slabs != null && fingerprints == null && (slots = allocateAll(values)) == null)) {
+				shortOf(needed);
+				metrics.rejectedPuts.increment();
+				throw new CacheUnavailableException("No room for " + values.length + " new nodes. Please retry later");
+			}
+
+			if (fingerprints == null) {
+				for (; admitted < values.length; admitted++) {
+					nodes[admitted] = newNode((keys == null) ? null : keys[admitted], data[admitted],
+							(slots == null) ? null : slots[admitted], charges[admitted], expiresAt);
+					register(nodes[admitted]);
+				}
+			} else {
+				// the slabs may still run out, then the values admitted so far are removed below
+				for (; admitted < values.length; admitted++) {
+					nodes[admitted] = admitValue((keys == null) ? null : keys[admitted], data[admitted], false,
+							charges[admitted], expiresAt, fingerprints[admitted]);
+					if (nodes[admitted] == null) {
+						break;
+					}
+				}
+			}
+			if (memorySize > lowMemoryLimit) {
+				noMemory.signal();
+			}
+		} finally {
+			lock.unlock();
+		}
+		if (admitted < values.length) {
+			for (int i = 0; i < admitted; i++) {
+				remove(nodes[i].id, nodes[i]);
+			}
+			metrics.rejectedPuts.increment();
+			throw new CacheUnavailableException("No room for " + values.length + " new nodes. Please retry later");
+		}
+		if (expiresAt != NEVER) {
+			for (Node node : nodes) {
+				scheduleExpiry(node);
+			}
+		}
+		awaitPersisted(nodes);
+
+		metrics.putLatency.record(System.nanoTime() - start);
+		if (CacheEvents.shouldCommit(event)) {
+			event.id = (nodes.length == 0) ? -1 : nodes[0].id;
+			event.count = nodes.length;
+			event.bytes = charge;
+			event.commit();
+		}
+		return nodes;
+	}
+
+	// Returns null and keeps nothing if any of the values does not fit
+	@GuardedBy("lock")
+	private SlabAllocator.Slot[] allocateAll(byte[][] values) {
+		SlabAllocator.Slot[] slots = new SlabAllocator.Slot[values.length];
+		for (int i = 0; i < values.length; i++) {
+			slots[i] = slabs.allocate(values[i].length);
+			if (slots[i] == null) {
+				for (int j = 0; j < i; j++) {
+					slabs.free(slots[j]);
+				}
+				return null;
+			}
+		}
+		return slots;
+	}
+
+	/**
+	 * Maps key to a copy of value, replacing (and removing) the node the key was mapped to. Throws
+	 * {@link CacheUnavailableException} if there is no room for the value.
+	 */
+	public void put(byte[] key, byte[] value) {
+		putKeyed(Arrays.copyOf(key, key.length), value);
+	}
+
+	public void put(String key, byte[] value) {
+		putKeyed(key.getBytes(StandardCharsets.UTF_8), value);
+	}
+
+	private void putKeyed(byte[] key, byte[] value) {
+		Node node;
+		try {
+			node = insertValue(key, value, true, 0, defaultTimeToLiveNanos);
+		} catch (InterruptedException e) {
+			// never waits, so never interrupted
+			throw new AssertionError(e);
+		}
+		if (node == null) {
+			throw new CacheUnavailableException("No room for new node. Please retry later");
+		}
+		index(node);
+	}
+
+	private void index(Node node) {
+		byte[] key = node.key;
+		Node old = keys.put(key, node);
+		if (old != null) {
+			remove(old.id, old);
+		}
+		// removed (or expired) before it was indexed, free() could not unmap it
+		if (node.state == REMOVED) {
+			keys.remove(key, node);
+		}
+	}
+
+	// returns null if there is no such key
+	public byte[] get(byte[] key) {
+		Node node = keys.get(key);
+		return (node == null) ? null : access(node, MyCache::copyOf);
+	}
+
+	public byte[] get(String key) {
+		return get(key.getBytes(StandardCharsets.UTF_8));
+	}
+
+	public boolean remove(byte[] key) {
+		Node node = keys.get(key);
+		return node != null && remove(node.id, node);
+	}
+
+	public boolean remove(String key) {
+		return remove(key.getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Async {@link #remove(byte[])} on an I/O thread: a remove waits while the cleaner or a reader owns the entry.
+	 * The caller must not modify key afterwards. Fails with {@link CacheUnavailableException} if the I/O queue is
+	 * full.
+	 */
+	public CompletableFuture<Boolean> removeAsync(byte[] key) {
+		return supplyAsync(() -> remove(key));
+	}
+
+	// Async getKeys(), the scan of the node table runs on an I/O thread
+	public CompletableFuture<List<byte[]>> getKeysAsync() {
+		return supplyAsync(this::getKeys);
+	}
+
+	/**
+	 * The keys of the keyed entries, copied. Weakly consistent: entries put or removed meanwhile may or may not
+	 * be included.
+	 */
+	public List<byte[]> getKeys() {
+		int size = cache.size();
+		List<byte[]> result = new ArrayList<>();
+		for (int id = 0; id < size; id++) {
+			Node node = cache.get(id);
+			if (node != null && node.key != null && node.state != REMOVED) {
+				result.add(Arrays.copyOf(node.key, node.key.length));
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * A weakly consistent scan of the entries: each entry that is present for the whole scan is seen once, entries
+	 * put or removed meanwhile may or may not be. Values are read from memory or straight from the spill store as
+	 * they are, a scan promotes nothing and counts no accesses, so the hot set and the hit and miss counts are
+	 * left alone. A streamed value is seen whole, its chunks are not entries of their own.
+	 *
+	 * The stream is sequential, parallel() splits the id space over the fork-join pool.
+	 */
+	public Stream<Entry> scan() {
+		return StreamSupport.stream(new IdSpliterator<>(this::scanEntry, 0, cache.size()), false);
+	}
+
+	// null for a free id, a chunk, or an entry that has expired or was removed
+	private Entry scanEntry(int id) {
+		Node node = cache.get(id);
+		if (node == null || node.kind == CHUNK || node.state == REMOVED || node.isExpired()) {
+			return null;
+		}
+		byte[] value = peek(node);
+		if (value == null) {
+			return null;
+		}
+		return new Entry(id, (node.key == null) ? null : Arrays.copyOf(node.key, node.key.length), value);
+	}
+
+	// A copy of the value, from memory or disk, that leaves the node where it is. Returns null if it was removed.
+	private byte[] peek(Node node) {
+		Node[] chunks = node.chunks;
+		if (chunks == null) {
+			return peekValue(node);
+		}
+		long size = sizeOf(chunks);
+		if (size > Integer.MAX_VALUE) {
+			throw new IllegalStateException("A value of " + size + " bytes does not fit in an array, use getStream()");
+		}
+		byte[] result = new byte[(int) size];
+		int position = 0;
+		for (Node chunk : chunks) {
+			byte[] value = peekValue(chunk);
+			if (value == null) {
+				return null;
+			}
+			System.arraycopy(value, 0, result, position, value.length);
+			position += value.length;
+		}
+		return result;
+	}
+
+	private byte[] peekValue(Node node) {
+		while (true) {
+			byte[] value = peekInMemory(node);
+			if (value != null) {
+				return value;
+			}
+			if (node.state == REMOVED) {
+				return null;
+			}
+			value = disk.read(node.id);
+			if (value != null) {
+				// REMOVED is set before the id can be reused, so this also catches a read of the next node's value
+				return (node.state == REMOVED) ? null : value;
+			}
+			// not on disk (yet): compressed, or spilled after this reader looked at memory
+		}
+	}
+
+	// A copy of the value if it is in memory, raw or compressed. Unlike copyIfResident it never promotes.
+	private byte[] peekInMemory(Node node) {
+		if (slabs != null) {
+			Node.PINS.incrementAndGet(node);
+		}
+		try {
+			ByteBuffer value = valueInMemory(node);
+			return (value == null) ? null : copyOf(value);
+		} finally {
+			if (slabs != null) {
+				Node.PINS.decrementAndGet(node);
+			}
+		}
+	}
+
+	public byte[] getFromCache(int id) {
+		return access(id, MyCache::copyOf, false);
+	}
+
+	private static byte[] copyOf(ByteBuffer value) {
+		byte[] result = new byte[value.remaining()];
+		value.get(result);
+		return result;
+	}
+
+	/**
+	 * Returns a read-only view of the value or null for an invalid id. The view stays valid after the node
+	 * is flushed to disk. In off-heap mode a slot can be reused, so the view is over a copy.
+	 */
+	public ByteBuffer getBufferFromCache(int id) {
+		// a heap value is viewed in place, a slot is copied
+		return (slabs == null) ? access(id, Function.identity(), true) : access(id, this::stableView, false);
+	}
+
+	// A read-only view that outlives the read: heap values are never written to, slots are
+	private ByteBuffer stableView(ByteBuffer value) {
+		return ((slabs == null) ? value : ByteBuffer.wrap(copyOf(value))).asReadOnlyBuffer();
+	}
+
+	/**
+	 * Passes a read-only view of the value to reader and returns its result. For an invalid id reader is not
+	 * called and null is returned. The node is pinned while reader runs, the buffer must not be used after
+	 * reader returns.
+	 */
+	public <R> R readFromCache(int id, Function<? super ByteBuffer, ? extends R> reader) {
+		return access(id, reader, true);
+	}
+
+	/**
+	 * Reads several values at once. result[i] is a copy of the value of ids[i], or null for an invalid id.
+	 * Values that are on disk are read with one sorted, coalesced spill read, and the ones that fit are brought
+	 * back into memory under a single lock acquisition.
+	 */
+	public byte[][] getAll(int... ids) {
+		Node[] nodes = new Node[ids.length];
+		for (int i = 0; i < ids.length; i++) {
+			nodes[i] = entry(ids[i]);
+		}
+		return readAll(nodes);
+	}
+
+	/**
+	 * Keyed counterpart of {@link #getAll(int...)}. The map has an entry for every key that is in the cache.
+	 */
+	public Map<String, byte[]> getAll(Collection<String> keys) {
+		List<String> names = new ArrayList<>(keys);
+		Node[] nodes = new Node[names.size()];
+		for (int i = 0; i < nodes.length; i++) {
+			nodes[i] = this.keys.get(names.get(i).getBytes(StandardCharsets.UTF_8));
+		}
+		byte[][] values = readAll(nodes);
+		Map<String, byte[]> result = new HashMap<>();
+		for (int i = 0; i < values.length; i++) {
+			if (values[i] != null) {
+				result.put(names.get(i), values[i]);
+			}
+		}
+		return result;
+	}
+
+	// null nodes give null values
+	private byte[][] readAll(Node[] nodes) {
+		CacheEvents.Get event = CacheEvents.beginGet();
+		long start = System.nanoTime();
+		byte[][] result = new byte[nodes.length][];
+		// positions of the nodes that are not in memory
+		int[] cold = new int[nodes.length];
+		int coldCount = 0;
+		for (int i = 0; i < nodes.length; i++) {
+			Node node = nodes[i];
+			if (node == null) {
+				continue;
+			}
+			if (node.isExpired()) {
+				remove(node.id, node);
+				continue;
+			}
+			if (node.chunks != null) {
+				result[i] = access(node, MyCache::copyOf);
+				continue;
+			}
+			evictionPolicy.recordAccess(node.id);
+			result[i] = copyIfResident(node);
+			if (result[i] != null) {
+				metrics.hits.increment();
+			} else {
+				metrics.misses.increment();
+				cold[coldCount++] = i;
+			}
+		}
+		if (coldCount > 0) {
+			loadAll(nodes, cold, coldCount, result);
+		}
+		metrics.getLatency.record(System.nanoTime() - start);
+		if (CacheEvents.shouldCommit(event)) {
+			event.id = -1;
+			for (int i = 0; i < nodes.length; i++) {
+				if (result[i] != null) {
+					if (event.id == -1) {
+						event.id = nodes[i].id;
+					}
+					event.bytes += result[i].length;
+				}
+			}
+			event.count = nodes.length;
+			event.commit();
+		}
+		return result;
+	}
+
+	// null if the value is not in memory, raw or compressed
+	private byte[] copyIfResident(Node node) {
+		if (slabs == null) {
+			return copyInMemory(node);
+		}
+		Node.PINS.incrementAndGet(node);
+		try {
+			return copyInMemory(node);
+		} finally {
+			Node.PINS.decrementAndGet(node);
+		}
+	}
+
+	private byte[] copyInMemory(Node node) {
+		ByteBuffer value = node.value;
+		if (value != null) {
+			return copyOf(value.duplicate());
+		}
+		byte[] compressed = node.compressed;
+		return (compressed == null) ? null : copyOf(inflate(node.id, node, compressed));
+	}
+
+	// Batched load(): the nodes at positions cold are read from disk with one call, and the ones this thread
+	// wins SPILLED -> LOADING for are reserved memory together and kept. Copies go to result.
+	private void loadAll(Node[] nodes, int[] cold, int count, byte[][] result) {
+		int[] ids = new int[count];
+		boolean[] owned = new boolean[count];
+		SlabAllocator.Slot[] slots = new SlabAllocator.Slot[count];
+		boolean anyOwned = false;
+		for (int c = 0; c < count; c++) {
+			Node node = nodes[cold[c]];
+			ids[c] = node.id;
+			owned[c] = node.transition(SPILLED, LOADING);
+			// a batch does not wait for room, so a forced promotion is only kept if it fits
+			if (owned[c] && promotionPolicy.onDiskRead(ids[c]) == PromotionPolicy.Decision.SKIP) {
+				owned[c] = false;
+				node.state = SPILLED;
+				metrics.promotionsSkipped.increment();
+			}
+			anyOwned |= owned[c];
+		}
+
+		if (anyOwned) {
+			acquireLock();
+			try {
+				for (int c = 0; c < count; c++) {
+					if (!owned[c]) {
+						continue;
+					}
+					Node node = nodes[cold[c]];
+					if (node.charge + memorySize > highMemoryLimit
+							|| (slabs != null && (slots[c] = slabs.allocate(node.size)) == null)) {
+						shortOf(node.charge);
+						owned[c] = false;
+						node.state = SPILLED;
+						metrics.loadsNotAdmitted.increment();
+					} else {
+						memorySize += node.charge;
+						requestedBytes.add(node.charge);
+						metrics.promotions.increment();
+					}
+				}
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		try {
+			long start = System.nanoTime();
+			byte[][] loaded = disk.read(ids, count);
+			metrics.diskLoadLatency.record(System.nanoTime() - start);
+			metrics.diskLoads.add(count);
+			for (int c = 0; c < count; c++) {
+				Node node = nodes[cold[c]];
+				byte[] value = loaded[c];
+				if (!owned[c]) {
+					// REMOVED is set before the id can be reused, so this also catches a read of the next node's value
+					if (node.state == REMOVED) {
+						result[cold[c]] = null;
+					} else {
+						// not on disk: promoted (and maybe compressed again) since it was found cold
+						result[cold[c]] = (value != null) ? value : access(node, MyCache::copyOf);
+					}
+					continue;
+				}
+				if (value == null) {
+					throw new IllegalStateException("Node id: " + ids[c] + " is not on disk");
+				}
+				if (slots[c] == null) {
+					node.value = ByteBuffer.wrap(value);
+					result[cold[c]] = Arrays.copyOf(value, value.length);
+				} else {
+					slots[c].buffer.duplicate().put(value);
+					node.slot = slots[c];
+					node.value = slots[c].buffer;
+					result[cold[c]] = value;
+				}
+				node.state = RESIDENT;
+				evictionPolicy.recordInsert(ids[c], node.charge);
+			}
+		} catch (RuntimeException | Error e) {
+			abandonLoads(nodes, cold, count, owned, slots);
+			throw e;
+		}
+	}
+
+	// Puts the owned nodes of a failed loadAll that are not resident yet back on disk, and gives back the memory
+	// and the slots reserved for them
+	private void abandonLoads(Node[] nodes, int[] cold, int count, boolean[] owned, SlabAllocator.Slot[] slots) {
+		long charge = 0;
+		for (int c = 0; c < count; c++) {
+			Node node = nodes[cold[c]];
+			if (!owned[c] || node.state != LOADING) {
+				continue;
+			}
+			if (slots[c] != null) {
+				slabs.free(slots[c]);
+			}
+			charge += node.charge;
+			node.state = SPILLED;
+		}
+		if (charge == 0) {
+			return;
+		}
+		requestedBytes.add(-charge);
+		acquireLock();
+		try {
+			memorySize -= charge;
+			memoryFreed();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private <R> R access(int id, Function<? super ByteBuffer, ? extends R> action, boolean readOnly) {
+		Node node = entry(id);
+		return (node == null) ? null : access(node, action, readOnly);
+	}
+
+	// The node of an id given to the public API, null for a free id or a chunk: chunks belong to the manifests
+	// that list them, reading one alone or removing it would break them
+	private Node entry(int id) {
+		Node node = cache.get(id);
+		if (node == null || node.kind == CHUNK) {
+			logger.warn("Invalid id: " + id);
+			return null;
+		}
+		return node;
+	}
+
+	private <R> R access(Node node, Function<? super ByteBuffer, ? extends R> action) {
+		return access(node, action, false);
+	}
+
+	// Passes a private view of the node's buffer to action, a read-only one if readOnly is set. Otherwise the
+	// buffer must not be written to. A hit allocates the view and nothing else, and escape analysis removes the view
+	// when action is inlined (HitBenchmark.zeroCopyRead with -prof gc: 0 B/op).
+	private <R> R access(Node node, Function<? super ByteBuffer, ? extends R> action, boolean readOnly) {
+		CacheEvents.Get event = CacheEvents.beginGet();
+		long start = System.nanoTime();
+		R result = accessValue(node, action, readOnly);
+		metrics.getLatency.record(System.nanoTime() - start);
+		if (CacheEvents.shouldCommit(event)) {
+			event.id = node.id;
+			event.count = 1;
+			event.bytes = valueSize(node);
+			event.commit();
+		}
+		return result;
+	}
+
+	private <R> R accessValue(Node node, Function<? super ByteBuffer, ? extends R> action, boolean readOnly) {
+		int id = node.id;
+		if (node.isExpired()) {
+			remove(id, node);
+			return null;
+		}
+		evictionPolicy.recordAccess(id);
+
+		R result;
+		Node[] chunks = node.chunks;
+		if (node.kind == DEDUPLICATED) {
+			result = accessValue(chunks[0], action, readOnly);
+		} else if (chunks != null) {
+			ByteBuffer joined = join(chunks);
+			result = (joined == null) ? null : action.apply(view(joined, readOnly));
+		} else if (slabs == null) {
+			ByteBuffer value = value(id, node);
+			result = (value == null) ? null : action.apply(view(value, readOnly));
+		} else {
+			Node.PINS.incrementAndGet(node);
+			try {
+				ByteBuffer value = value(id, node);
+				result = (value == null) ? null : action.apply(view(value, readOnly));
+			} finally {
+				Node.PINS.decrementAndGet(node);
+			}
+		}
+		return result;
+	}
+
+	private static ByteBuffer view(ByteBuffer value, boolean readOnly) {
+		return readOnly ? value.asReadOnlyBuffer() : value.duplicate();
+	}
+
+	// A streamed value in one buffer, for the callers that want it whole. Returns null if it was removed.
+	private ByteBuffer join(Node[] chunks) {
+		long size = sizeOf(chunks);
+		if (size > Integer.MAX_VALUE) {
+			throw new IllegalStateException("A value of " + size + " bytes does not fit in an array, use getStream()");
+		}
+		ByteBuffer joined = ByteBuffer.allocate((int) size);
+		for (Node chunk : chunks) {
+			if (accessValue(chunk, joined::put, false) == null) {
+				return null;
+			}
+		}
+		joined.flip();
+		return joined;
+	}
+
+	private static long sizeOf(Node[] chunks) {
+		long size = 0;
+		for (Node chunk : chunks) {
+			size += chunk.size;
+		}
+		return size;
+	}
+
+	// Bytes of the value, those of its chunks for a manifest
+	private static long valueSize(Node node) {
+		Node[] chunks = node.chunks;
+		return (chunks == null) ? node.size : sizeOf(chunks);
+	}
+
+	private ByteBuffer value(int id, Node node) {
+		while (true) {
+			ByteBuffer value = node.value;
+			if (value != null) {
+				metrics.hits.increment();
+				return value;
+			}
+			byte[] compressed = node.compressed;
+			if (compressed != null) {
+				metrics.hits.increment();
+				return inflate(id, node, compressed);
+			}
+			// a promotion publishes value before it drops compressed
+			if (node.value != null) {
+				continue;
+			}
+			metrics.misses.increment();
+			ByteBuffer loaded = load(id, node);
+			if (loaded != null || node.state == REMOVED) {
+				return loaded;
+			}
+			// promoted and compressed again while this reader went to disk
+		}
+	}
+
+	// Decompresses a compressed node's value for one reader and promotes the node on a repeated read
+	private ByteBuffer inflate(int id, Node node, byte[] compressed) {
+		byte[] raw = codec.decompress(compressed, node.size);
+		if (Node.COMPRESSED_READS.incrementAndGet(node) >= PROMOTION_READS) {
+			promote(id, node, compressed, raw);
+		}
+		return ByteBuffer.wrap(raw);
+	}
+
+	// Brings a compressed node back to raw form, unless there is no room for it
+	private void promote(int id, Node node, byte[] compressed, byte[] raw) {
+		if (!node.transition(COMPRESSED, LOADING)) {
+			return;
+		}
+		SlabAllocator.Slot slot = null;
+		acquireLock();
+		try {
+			// the compressed bytes are given back, so only the difference has to fit
+			if (node.charge - compressed.length + memorySize > highMemoryLimit
+					|| (slabs != null && (slot = slabs.allocate(node.size)) == null)) {
+				shortOf(node.charge);
+				node.state = COMPRESSED;
+				metrics.loadsNotAdmitted.increment();
+				return;
+			}
+			compressedTier.remove(id);
+			compressedSize -= compressed.length;
+			memorySize += node.charge - compressed.length;
+		} finally {
+			lock.unlock();
+		}
+
+		if (slot == null) {
+			node.value = ByteBuffer.wrap(raw); // should not escape
+		} else {
+			slot.buffer.duplicate().put(raw);
+			node.slot = slot;
+			node.value = slot.buffer;
+		}
+		node.compressed = null;
+		node.state = RESIDENT;
+		evictionPolicy.recordInsert(id, node.charge);
+	}
+
+	public EvictionPolicy getEvictionPolicy() {
+		return evictionPolicy;
+	}
+
+	public PromotionPolicy getPromotionPolicy() {
+		return promotionPolicy;
+	}
+
+	/**
+	 * Moves the memory limits, for a {@link ShardedCache} that shares one budget between its shards. A lower
+	 * limit makes the cleaner evict down to it, a higher one admits waiting puts.
+	 */
+	void setMemoryLimits(long highLimitBytes, long lowLimitBytes) {
+		acquireLock();
+		try {
+			boolean grown = highLimitBytes > highMemoryLimit;
+			highMemoryLimit = highLimitBytes;
+			lowMemoryLimit = lowLimitBytes;
+			if (memorySize > lowMemoryLimit) {
+				noMemory.signal();
+			}
+			if (grown) {
+				memoryFreed();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	long highMemoryLimit() {
+		acquireLock();
+		try {
+			return highMemoryLimit;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	// running total, see requestedBytes
+	long requestedBytes() {
+		return requestedBytes.sum();
+	}
+
+	// share of reads served without going to disk
+	public double getHitRatio() {
+		return metrics.getHitRatio();
+	}
+
+	/**
+	 * Live counters, latencies and gauges of this cache, the same object that is registered with JMX. Slow
+	 * operations are also Java Flight Recorder events, see {@link CacheEvents}.
+	 */
+	public MyCacheMXBean getMetrics() {
+		return metrics;
+	}
+
+	private long memorySize() {
+		acquireLock();
+		try {
+			return memorySize;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private long compressedSize() {
+		acquireLock();
+		try {
+			return compressedSize;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private int idSpaceSize() {
+		return cache.size();
+	}
+
+	private int freeIdCount() {
+		acquireLock();
+		try {
+			return freeIdCount;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	// Closes the spill files and the journal of a cache that fails to construct, and deletes the spill files unless
+	// the cache is persistent
+	private void abandonStorage(RuntimeException failure) {
+		try {
+			if (journal != null) {
+				journal.close();
+			}
+		} catch (IOException e) {
+			failure.addSuppressed(e);
+		}
+		try {
+			if (persistent) {
+				disk.close();
+			} else {
+				disk.destroy();
+			}
+		} catch (IOException e) {
+			failure.addSuppressed(e);
+		}
+	}
+
+	private ObjectName register(String name) {
+		try {
+			ObjectName objectName = new ObjectName("com.palamsoft.cache:type=MyCache,name=" + ObjectName.quote(name));
+			ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, objectName);
+			return objectName;
+		} catch (JMException e) {
+			throw new IllegalArgumentException("Failed to register cache metrics as " + name, e);
+		}
+	}
+
+	// Reads a spilled value. Only the reader that wins SPILLED -> LOADING tries to keep it in memory,
+	// concurrent readers of the same node wait for its value instead of reading it again. Returns null if the
+	// node has been removed.
+	private ByteBuffer load(int id, Node node) {
+		long start = System.nanoTime();
+		try {
+			return loadValue(id, node);
+		} finally {
+			metrics.diskLoads.increment();
+			metrics.diskLoadLatency.record(System.nanoTime() - start);
+		}
+	}
+
+	private ByteBuffer loadValue(int id, Node node) {
+		if (!node.transition(SPILLED, LOADING)) {
+			ByteBuffer shared = awaitLoad(id, node);
+			if (shared != null) {
+				return shared;
+			}
+			// promoted, a batched load, or the owner failed
+			byte[] loaded = disk.read(id);
+			// REMOVED is set before the id can be reused, so this also catches a read of the next node's value
+			return (loaded == null || node.state == REMOVED) ? null : ByteBuffer.wrap(loaded);
+		}
+
+		InFlightLoad flight = new InFlightLoad(node);
+		loads.put(id, flight);
+		ByteBuffer loaded = null;
+		try {
+			loaded = loadOwned(id, node);
+			return loaded;
+		} finally {
+			loads.remove(id, flight);
+			flight.value = loaded;
+			flight.done.countDown();
+		}
+	}
+
+	// Waits for the load of node that another reader owns, returns null if there is none or it failed
+	private ByteBuffer awaitLoad(int id, Node node) {
+		InFlightLoad flight = loads.get(id);
+		if (flight == null || flight.node != node) {
+			return null;
+		}
+		boolean interrupted = false;
+		while (true) {
+			try {
+				flight.done.await();
+				break;
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+		return flight.value;
+	}
+
+	private ByteBuffer loadOwned(int id, Node node) {
+		PromotionPolicy.Decision decision = promotionPolicy.onDiskRead(id);
+		if (decision == PromotionPolicy.Decision.SKIP) {
+			metrics.promotionsSkipped.increment();
+			return readOwned(id, node);
+		}
+
+		boolean admitted = false;
+		SlabAllocator.Slot slot = null;
+		// a forced promotion waits for the cleaner to evict colder entries, the others give up at once
+		long nanos = (decision == PromotionPolicy.Decision.FORCE) ? FORCED_PROMOTION_NANOS : 0;
+		boolean waited = false;
+		acquireLock();
+		try {
+			while (true) {
+				if (node.charge + memorySize <= highMemoryLimit
+						&& (slabs == null || (slot = slabs.allocate(node.size)) != null)) {
+					memorySize += node.charge;
+					requestedBytes.add(node.charge);
+					admitted = true;
+					break;
+				}
+				shortOf(node.charge);
+				if (nanos <= 0 || closed) {
+					if (logger.isDebugEnabled()) {
+						logger.debug("Not enough memory to load node id: " + id);
+					}
+					break;
+				}
+				waited = true;
+				try {
+					nanos = memoryAvailable.awaitNanos(nanos);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					nanos = 0;
+				}
+			}
+		} finally {
+			lock.unlock();
+		}
+
+		if (!admitted) {
+			metrics.loadsNotAdmitted.increment();
+			return readOwned(id, node);
+		}
+		metrics.promotions.increment();
+		if (waited) {
+			metrics.forcedPromotions.increment();
+		}
+
+		ByteBuffer loaded;
+		if (slot == null) {
+			loaded = ByteBuffer.wrap(loadFromFile(id)); // should not escape
+		} else {
+			disk.read(id, slot.buffer.duplicate());
+			loaded = slot.buffer;
+			node.slot = slot;
+		}
+		node.value = loaded;
+		node.state = RESIDENT;
+		evictionPolicy.recordInsert(id, node.charge);
+		return loaded;
+	}
+
+	// Reads the value of a node that stays on disk. The node is LOADING until the bytes are read, so remove()
+	// waits for the read and neither the extent nor the id can be reused under it.
+	private ByteBuffer readOwned(int id, Node node) {
+		try {
+			return ByteBuffer.wrap(loadFromFile(id));
+		} finally {
+			node.state = SPILLED;
+		}
+	}
+
+	public byte[] loadFromFile(int id) {
+		byte[] loaded = disk.read(id);
+		if (loaded == null) {
+			throw new IllegalStateException("Node id: " + id + " is not on disk");
+		}
+		return loaded;
+	}
+
+	public void saveToFile(int id, ByteBuffer data) {
+		try {
+			disk.write(id, data);
+		} catch (IOException e) {
+			throw new UncheckedIOException("Failed to save node id: " + id, e);
+		}
+	}
+
+	/**
+	 * @deprecated file names are node ids now, use {@link #loadFromFile(int)}. Kept with its old contract: null
+	 * if nothing is stored under filename.
+	 */
+	@Deprecated
+	public byte[] loadFromFile(String filename) {
+		try {
+			return disk.read(Integer.parseInt(filename));
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * @deprecated use {@link #saveToFile(int, ByteBuffer)}. filename must be a node id.
+	 */
+	@Deprecated
+	public void saveToFile(String filename, byte[] data) {
+		int id;
+		try {
+			id = Integer.parseInt(filename);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Not a node id: " + filename, e);
+		}
+		saveToFile(id, ByteBuffer.wrap(data));
+	}
+
+	/**
+	 * Removes the node, frees its memory and spilled bytes, and makes its id available to later puts.
+	 * Returns false if there is no such node, or if id is a chunk of a streamed or deduplicated value.
+	 */
+	public boolean remove(int id) {
+		Node node = entry(id);
+		return node != null && remove(id, node);
+	}
+
+	private boolean remove(int id, Node node) {
+		while (true) {
+			int state = node.state;
+			if (state == REMOVED) {
+				return false;
+			}
+			if (state == RESIDENT || state == SPILLED || state == COMPRESSED) {
+				if (node.transition(state, REMOVED)) {
+					free(id, node, state);
+					return true;
+				}
+			} else {
+				// the cleaner or a loading reader owns the node for a moment
+				Thread.yield();
+			}
+		}
+	}
+
+	private void free(int id, Node node, int state) {
+		TimerWheel.Timer<Node> timer = node.expiryTimer;
+		if (timer != null) {
+			expiryTimers.cancel(timer);
+		}
+		boolean resident = state == RESIDENT;
+		if (resident) {
+			node.value = null;
+			releaseSlot(node);
+		}
+		// the id is recycled, its next node must not inherit the access history
+		evictionPolicy.recordFree(id);
+		promotionPolicy.onFree(id);
+		byte[] compressed = node.compressed;
+		node.compressed = null;
+		disk.remove(id);
+		if (writer != null) {
+			// durable with the next commit
+			journal.remove(id);
+		}
+		if (node.key != null) {
+			keys.remove(node.key, node);
+		}
+
+		acquireLock();
+		try {
+			if (resident) {
+				memorySize -= node.charge;
+				memoryFreed();
+			} else if (state == COMPRESSED) {
+				compressedTier.remove(id);
+				compressedSize -= compressed.length;
+				memorySize -= compressed.length;
+				memoryFreed();
+			}
+			cache.set(id, null);
+			pushFreeId(id);
+		} finally {
+			lock.unlock();
+		}
+		Node[] chunks = node.chunks;
+		if (chunks != null) {
+			for (Node chunk : chunks) {
+				release(chunk);
+			}
+		}
+		if (logger.isDebugEnabled()) {
+			logger.debug("Removed node id: " + id);
+		}
+	}
+
+	@GuardedBy("lock")
+	private void pushFreeId(int id) {
+		if (freeIdCount == freeIds.length) {
+			freeIds = Arrays.copyOf(freeIds, freeIdCount * 2);
+		}
+		freeIds[freeIdCount++] = id;
+	}
+
+	private void scheduleExpiry(Node node) {
+		TimerWheel.Timer<Node> timer = expiryTimers.schedule(node.id, node, node.expiresAt);
+		node.expiryTimer = timer;
+		// a remove that freed the node before the timer was set could not cancel it
+		if (node.state == REMOVED) {
+			expiryTimers.cancel(timer);
+		}
+	}
+
+	private void expired(int id, Node node) {
+		// the id may have been freed and reused by the time the timer fires
+		if (cache.get(id) == node) {
+			remove(id, node);
+		}
+	}
+
+	private void expire() {
+		try {
+			expiryTimers.advance(System.nanoTime(), this::expired);
+		} catch (RuntimeException e) {
+			logger.error("Failed to expire nodes", e);
+		}
+	}
+
+	private void compact() {
+		try {
+			// a persistent cache checkpoints the moved values before the old segments go
+			int deleted = persistent
+					? disk.compact(COMPACTION_LIVE_RATIO, this::writeCheckpoint) : disk.compact(COMPACTION_LIVE_RATIO);
+			if (deleted > 0 && logger.isInfoEnabled()) {
+				logger.info("Compacted " + deleted + " spill segments");
+			}
+		} catch (IOException | RuntimeException e) {
+			logger.error("Failed to compact spill segments", e);
+		}
+	}
+
+	// A reader pins before it reads value, whoever frees the slot clears value before it checks pins. So once
+	// pins drop to zero nobody can see the slot any more.
+	private void releaseSlot(Node node) {
+		SlabAllocator.Slot slot = node.slot;
+		if (slot == null) {
+			return;
+		}
+		while (node.pins > 0) {
+			Thread.yield();
+		}
+		node.slot = null;
+		slabs.free(slot);
+	}
+
+	/**
+	 * Stops the cleaner and deletes spill files, nodes that are on disk become unreadable. A persistent cache
+	 * instead writes every value that is only in memory to disk and checkpoints, so that the next cache opened
+	 * on the same directory has all of them. In a durable mode the writer commits what it has first.
+	 */
+	@Override
+	public void close() throws IOException {
+		closed = true;
+		if (writer != null) {
+			writer.stop();
+			try {
+				writerThread.join(SHUTDOWN_TIMEOUT_MILLIS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		// periodic tasks are cancelled and a running one may finish: an interrupt would close spill channels
+		if (sharedExecutors) {
+			for (ScheduledFuture<?> task : periodicTasks) {
+				task.cancel(false);
+			}
+		} else {
+			maintenance.shutdown();
+		}
+		if (objectName != null) {
+			try {
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+			} catch (JMException e) {
+				logger.warn("Failed to unregister " + objectName, e);
+			}
+		}
+		List<PendingPut> abandoned;
+		acquireLock();
+		try {
+			noMemory.signalAll();
+			memoryAvailable.signalAll();
+			abandoned = new ArrayList<>(pendingPuts);
+			pendingPuts.clear();
+		} finally {
+			lock.unlock();
+		}
+		for (PendingPut put : abandoned) {
+			put.future.completeExceptionally(new CacheUnavailableException("Cache is closed"));
+		}
+		try {
+			// the owner of shared executors has stopped them already
+			if (!sharedExecutors) {
+				ioExecutor.shutdown();
+				maintenance.awaitTermination(SHUTDOWN_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+				ioExecutor.awaitTermination(SHUTDOWN_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+			}
+			cleanupThread.join(SHUTDOWN_TIMEOUT_MILLIS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		if (!persistent) {
+			disk.destroy();
+			return;
+		}
+		try {
+			flushAll();
+			writeCheckpoint();
+		} finally {
+			try {
+				journal.close();
+			} finally {
+				disk.close();
+			}
+		}
+	}
+
+	// Rebuilds the nodes of the last checkpoint, and of the journal logged since, as spilled ones. Returns the
+	// journal to go on with. Runs in the constructor, before the cache is shared.
+	private SpillJournal restore() throws IOException {
+		SpillIndex.Checkpoint checkpoint = null;
+		try {
+			checkpoint = SpillIndex.read(indexFile);
+		} catch (IOException e) {
+			logger.warn("Ignoring unreadable checkpoint " + indexFile, e);
+		}
+		// by id, the loop below needs them in order
+		Map<Integer, SpillIndex.Entry> logged = new TreeMap<>();
+		if (checkpoint != null) {
+			for (SpillIndex.Entry entry : checkpoint.entries) {
+				logged.put(entry.id, entry);
+			}
+		}
+		long generation = SpillJournal.replay(indexFile.getParent(),
+				(checkpoint == null) ? 0 : checkpoint.journalGeneration, logged);
+		List<SpillIndex.Entry> entries = disk.restore(new ArrayList<>(logged.values()));
+
+		long nowNanos = System.nanoTime();
+		long nowMillis = System.currentTimeMillis();
+		int[] ids = new int[entries.size()];
+		int[] frequencies = new int[entries.size()];
+		int count = 0;
+		List<Node> manifests = new ArrayList<>();
+		acquireLock();
+		try {
+			for (SpillIndex.Entry entry : entries) {
+				long expiresAt = NEVER;
+				if (entry.expiresAtMillis != SpillIndex.NO_EXPIRY) {
+					long remaining = entry.expiresAtMillis - nowMillis;
+					if (remaining <= 0) {
+						disk.remove(entry.id);
+						continue;
+					}
+					expiresAt = nowNanos + TimeUnit.MILLISECONDS.toNanos(remaining);
+				}
+				if (entry.id < cache.size()) {
+					continue;
+				}
+				while (cache.size() < entry.id) {
+					pushFreeId(cache.append(null));
+				}
+				int charge = (slabs == null) ? entry.length : slabs.slotSize(entry.length);
+				Node node = new Node(entry.length, charge, expiresAt);
+				node.id = entry.id;
+				node.key = entry.key;
+				cache.append(node);
+				if (node.key != null) {
+					keys.put(node.key, node);
+				}
+				if (expiresAt != NEVER) {
+					scheduleExpiry(node);
+				}
+				if (entry.chunked) {
+					// an index written before deduplicated values were marked restores them as streams, which
+					// read the same
+					node.kind = entry.deduplicated ? DEDUPLICATED : STREAM;
+					manifests.add(node);
+				}
+				ids[count] = entry.id;
+				frequencies[count] = entry.frequency;
+				count++;
+			}
+			int idSpaceSize = (checkpoint == null) ? 0 : checkpoint.idSpaceSize;
+			while (cache.size() < idSpaceSize) {
+				pushFreeId(cache.append(null));
+			}
+		} finally {
+			lock.unlock();
+		}
+		evictionPolicy.restoreFrequencies(ids, frequencies, count);
+		// chunks of manifests that could not be restored, unless another manifest refers to them
+		List<Node> orphans = new ArrayList<>();
+		for (Node manifest : manifests) {
+			relink(manifest, orphans);
+		}
+		for (Node chunk : orphans) {
+			if (chunk.refs == 0) {
+				remove(chunk.id, chunk);
+			}
+		}
+		if (logger.isInfoEnabled()) {
+			logger.info("Restored " + count + " spilled nodes from " + indexFile + " and the journal");
+		}
+		return new SpillJournal(indexFile.getParent(), generation);
+	}
+
+	// Gives a restored manifest its chunks and counts its references to them. If one of them was not
+	// checkpointed the value is incomplete: the manifest is dropped and the chunks it found go to orphans.
+	// Restored chunks are not fingerprinted again, so new puts in dedup mode do not share them.
+	private void relink(Node manifest, List<Node> orphans) {
+		ByteBuffer ids = ByteBuffer.wrap(loadFromFile(manifest.id));
+		Node[] chunks = new Node[ids.remaining() / 4];
+		boolean complete = true;
+		for (int i = 0; i < chunks.length; i++) {
+			chunks[i] = cache.get(ids.getInt());
+			complete &= chunks[i] != null;
+		}
+		if (complete) {
+			for (Node chunk : chunks) {
+				chunk.kind = CHUNK;
+				chunk.refs++;
+			}
+			manifest.chunks = chunks;
+			return;
+		}
+		logger.warn("Dropping node id: " + manifest.id + ", some of its chunks were not checkpointed");
+		remove(manifest.id, manifest);
+		for (Node chunk : chunks) {
+			if (chunk != null) {
+				orphans.add(chunk);
+			}
+		}
+	}
+
+	private void checkpoint() {
+		try {
+			writeCheckpoint();
+		} catch (IOException | RuntimeException e) {
+			logger.error("Failed to checkpoint " + indexFile, e);
+		}
+	}
+
+	// Runs on the maintenance thread or after it has stopped, so compaction never moves values under it.
+	// Entries removed after a checkpoint come back if the process dies before the next one, unless the journal
+	// has their removal.
+	private void writeCheckpoint() throws IOException {
+		// logs from generation on are replayed on top of this checkpoint, it covers the older ones
+		long generation;
+		synchronized (journalRoll) {
+			generation = journal.roll();
+		}
+		int size = cache.size();
+		long nowNanos = System.nanoTime();
+		long nowMillis = System.currentTimeMillis();
+		List<SpillIndex.Entry> entries = new ArrayList<>();
+		for (int id = 0; id < size; id++) {
+			Node node = cache.get(id);
+			SpillStore.Extent extent = (node == null) ? null : disk.extent(id);
+			// checked after the extent is read: a node is REMOVED before its id can get another node's extent
+			if (extent == null || node.state == REMOVED) {
+				continue;
+			}
+			entries.add(indexEntry(node, extent, nowNanos, nowMillis));
+		}
+
+		int[] ids = new int[entries.size()];
+		for (int i = 0; i < ids.length; i++) {
+			ids[i] = entries.get(i).id;
+		}
+		int[] frequencies = evictionPolicy.frequencies(ids, ids.length);
+		for (int i = 0; i < ids.length; i++) {
+			entries.get(i).frequency = frequencies[i];
+		}
+
+		// the index must not point at bytes that are not on the device yet
+		disk.force();
+		SpillIndex.write(indexFile, new SpillIndex.Checkpoint(size, generation, entries));
+		journal.deleteBefore(generation);
+		if (logger.isDebugEnabled()) {
+			logger.debug("Checkpointed " + entries.size() + " spilled nodes");
+		}
+	}
+
+	private static SpillIndex.Entry indexEntry(Node node, SpillStore.Extent extent, long nowNanos, long nowMillis) {
+		long expiresAtMillis = (node.expiresAt == NEVER)
+				? SpillIndex.NO_EXPIRY : nowMillis + TimeUnit.NANOSECONDS.toMillis(node.expiresAt - nowNanos);
+		return new SpillIndex.Entry(node.id, extent.segment.number, extent.offset, extent.length, expiresAtMillis,
+				node.key, node.chunks != null, node.kind == DEDUPLICATED, 0);
+	}
+
+	// Writes every value that is only in memory to disk, so the final checkpoint covers all entries. The cleaner
+	// has stopped, nodes keep their state.
+	private void flushAll() throws IOException {
+		int[] ids = new int[FLUSH_BATCH_SIZE];
+		ByteBuffer[] values = new ByteBuffer[FLUSH_BATCH_SIZE];
+		Node[] nodes = new Node[FLUSH_BATCH_SIZE];
+		int[] states = new int[FLUSH_BATCH_SIZE];
+		int count = 0;
+		int size = cache.size();
+		for (int id = 0; id < size; id++) {
+			Node node = cache.get(id);
+			if (node == null) {
+				continue;
+			}
+			int state = node.state;
+			if ((state != RESIDENT && state != COMPRESSED) || node.alreadyOnDisk || node.isExpired()
+					|| !node.transition(state, EVICTING)) {
+				continue;
+			}
+			ids[count] = id;
+			nodes[count] = node;
+			states[count] = state;
+			values[count] = (state == COMPRESSED)
+					? ByteBuffer.wrap(codec.decompress(node.compressed, node.size)) : node.value.duplicate();
+			count++;
+			if (count == FLUSH_BATCH_SIZE) {
+				writeBack(ids, values, nodes, states, count);
+				count = 0;
+			}
+		}
+		writeBack(ids, values, nodes, states, count);
+	}
+
+	private void writeBack(int[] ids, ByteBuffer[] values, Node[] nodes, int[] states, int count) throws IOException {
+		if (count == 0) {
+			return;
+		}
+		boolean written = false;
+		try {
+			disk.write(ids, values, count, false);
+			written = true;
+		} finally {
+			for (int i = 0; i < count; i++) {
+				nodes[i].alreadyOnDisk = written;
+				nodes[i].state = states[i];
+				nodes[i] = null;
+				values[i] = null;
+			}
+		}
+	}
+
+	private static Path newSpillDirectory() {
+		try {
+			return Files.createTempDirectory("my_cache");
+		} catch (IOException e) {
+			throw new UncheckedIOException("Failed to create spill directory", e);
+		}
+	}
+
+	// Commits the groups of the writer: their values are written with gathering writes, the segments are forced
+	// once, then their index entries are logged and the journal is forced once. Runs on the writer thread only.
+	private final class GroupCommitter implements SpillWriter.Committer<Node> {
+
+		private final int[] ids = new int[FLUSH_BATCH_SIZE];
+		private final ByteBuffer[] values = new ByteBuffer[FLUSH_BATCH_SIZE];
+		private final Node[] nodes = new Node[FLUSH_BATCH_SIZE];
+
+		@Override
+		public void commit(List<Node> group) throws IOException {
+			for (int from = 0; from < group.size(); from += FLUSH_BATCH_SIZE) {
+				write(group, from, Math.min(group.size(), from + FLUSH_BATCH_SIZE));
+			}
+
+			SpillStore.Extent[] extents = new SpillStore.Extent[group.size()];
+			synchronized (journalRoll) {
+				for (int i = 0; i < extents.length; i++) {
+					extents[i] = disk.extent(group.get(i).id);
+				}
+				// covers the extents just read, whether this writer or the cleaner wrote them
+				disk.force();
+				long nowNanos = System.nanoTime();
+				long nowMillis = System.currentTimeMillis();
+				synchronized (journal) {
+					for (int i = 0; i < extents.length; i++) {
+						Node node = group.get(i);
+						// checked after the extent is read and ordered against free()'s record of the removal
+						if (extents[i] != null && node.state != REMOVED) {
+							journal.put(indexEntry(node, extents[i], nowNanos, nowMillis));
+						}
+					}
+				}
+				journal.commit();
+			}
+		}
+
+		// Writes the values of group[from, to) that are not on disk yet and still in memory
+		private void write(List<Node> group, int from, int to) throws IOException {
+			int count = 0;
+			long written = 0;
+			for (int i = from; i < to; i++) {
+				Node node = group.get(i);
+				if (node.state == REMOVED || node.alreadyOnDisk) {
+					continue;
+				}
+				// null once the cleaner has spilled the node meanwhile, and then it is on disk
+				ByteBuffer value = stableValueInMemory(node);
+				if (value == null) {
+					continue;
+				}
+				ids[count] = node.id;
+				values[count] = value;
+				nodes[count] = node;
+				written += node.size;
+				count++;
+			}
+			if (count == 0) {
+				return;
+			}
+			try {
+				// a value is not published for an id that was freed meanwhile, and maybe given to another node
+				disk.write(ids, values, count, false, i -> nodes[i].state != REMOVED);
+				for (int i = 0; i < count; i++) {
+					nodes[i].alreadyOnDisk = true;
+				}
+				metrics.flushedBytes.add(written);
+			} finally {
+				Arrays.fill(values, 0, count, null);
+				Arrays.fill(nodes, 0, count, null);
+			}
+		}
+	}
+
+	// Flushes victims in batches: one gathering write (and at most one fsync) per batch, then the nodes are
+	// dropped and memory accounting is updated once. A value is written at most once, after that it is only
+	// dropped from memory.
+	private class Cleaner implements Runnable {
+
+		// BLOCKS-UNTIL: noMemory
+		@Override
+		public void run() {
+			while (true) {
+				long toFree;
+				acquireLock();
+				try {
+					while (!closed && memorySize <= lowMemoryLimit && demand == 0) {
+						noMemory.awaitUninterruptibly();
+					}
+					if (closed) {
+						return;
+					}
+					toFree = Math.max(memorySize - lowMemoryLimit, demand);
+					demand = 0;
+				} finally {
+					lock.unlock();
+				}
+
+				if (freeMemory(toFree) == 0) {
+					// everything left is pinned, loading or already being flushed
+					LockSupport.parkNanos(IDLE_NANOS);
+				}
+			}
+		}
+
+		private final int[] batchIds = new int[FLUSH_BATCH_SIZE];
+		private final Node[] batchNodes = new Node[FLUSH_BATCH_SIZE];
+		private final int[] writeIds = new int[FLUSH_BATCH_SIZE];
+		private final ByteBuffer[] writeValues = new ByteBuffer[FLUSH_BATCH_SIZE];
+
+		// nodes demoted in the current pass
+		private int victims;
+
+		// Returns the number of bytes freed
+		private long freeMemory(long toFree) {
+			logger.debug("Clean up unused cache items");
+			CacheEvents.Eviction event = CacheEvents.beginEviction();
+			victims = 0;
+			long total = 0;
+			while (total < toFree) {
+				long freed = flushBatch(toFree - total);
+				if (freed == 0 && codec != null) {
+					// nothing raw is left to demote, so the compressed tier has to give way
+					freed = spillCompressed(toFree - total);
+				}
+				if (freed == 0) {
+					break;
+				}
+				total += freed;
+				if (codec != null) {
+					total += spillCompressed(compressedOverLimit());
+				}
+			}
+			if (CacheEvents.shouldCommit(event)) {
+				event.victims = victims;
+				event.requestedBytes = toFree;
+				event.freedBytes = total;
+				event.commit();
+			}
+			return total;
+		}
+
+		private long compressedOverLimit() {
+			acquireLock();
+			try {
+				return compressedSize - compressedLimit;
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		// Demotes up to FLUSH_BATCH_SIZE victims of the eviction policy and returns the number of bytes freed.
+		// Victims stay readable from memory (state EVICTING) until they are compressed or on disk.
+		private long flushBatch(long toFree) {
+			int count = 0;
+			long selected = 0;
+			while (count < FLUSH_BATCH_SIZE && selected < toFree) {
+				int id = evictionPolicy.evict();
+				if (id == IdLists.NONE) {
+					break;
+				}
+				Node node = cache.get(id);
+				if (node == null || !node.transition(RESIDENT, EVICTING)) {
+					continue;
+				}
+				batchIds[count] = id;
+				batchNodes[count] = node;
+				count++;
+				selected += node.charge;
+			}
+			if (count == 0) {
+				return 0;
+			}
+			metrics.evictions.add(count);
+			victims += count;
+			if (codec == null) {
+				return spill(count);
+			}
+
+			// values that compress well stay in memory, the rest go to disk
+			long freed = 0;
+			int spills = 0;
+			for (int i = 0; i < count; i++) {
+				Node node = batchNodes[i];
+				byte[] compressed = compress(node);
+				if (compressed == null) {
+					batchIds[spills] = batchIds[i];
+					batchNodes[spills] = node;
+					spills++;
+				} else {
+					freed += demote(batchIds[i], node, compressed);
+				}
+			}
+			Arrays.fill(batchNodes, spills, count, null);
+			return freed + ((spills == 0) ? 0 : spill(spills));
+		}
+
+		// null if the value does not compress well enough to be kept compressed
+		private byte[] compress(Node node) {
+			try {
+				byte[] compressed = codec.compress(node.value.duplicate());
+				return (compressed.length <= node.size * MAX_COMPRESSION_RATIO) ? compressed : null;
+			} catch (RuntimeException e) {
+				logger.error("Failed to compress node id: " + node.id + ", spilling it", e);
+				return null;
+			}
+		}
+
+		// Moves a node to the compressed tier and returns the number of bytes freed
+		private long demote(int id, Node node, byte[] compressed) {
+			node.compressed = compressed;
+			node.compressedReads = 0;
+			node.value = null;
+			releaseSlot(node);
+
+			long freed = node.charge - compressed.length;
+			acquireLock();
+			try {
+				// in the tier before anyone can see COMPRESSED, so removal and promotion always find it there
+				compressedTier.addLast(0, id, compressed.length);
+				compressedSize += compressed.length;
+				memorySize -= freed;
+				node.state = COMPRESSED;
+				memoryFreed();
+			} finally {
+				lock.unlock();
+			}
+			return freed;
+		}
+
+		// Spills up to FLUSH_BATCH_SIZE of the coldest compressed nodes and returns the number of bytes freed
+		private long spillCompressed(long toFree) {
+			int count = 0;
+			acquireLock();
+			try {
+				long selected = 0;
+				int id = compressedTier.first(0);
+				while (id != IdLists.NONE && count < FLUSH_BATCH_SIZE && selected < toFree) {
+					int next = compressedTier.next(id);
+					Node node = cache.get(id);
+					// a node that is being promoted or removed leaves the tier by itself
+					if (node != null && node.transition(COMPRESSED, EVICTING)) {
+						compressedTier.remove(id);
+						batchIds[count] = id;
+						batchNodes[count] = node;
+						count++;
+						selected += node.compressed.length;
+					}
+					id = next;
+				}
+			} finally {
+				lock.unlock();
+			}
+			victims += count;
+			return (count == 0) ? 0 : spill(count);
+		}
+
+		// Writes the batch to disk with one call and drops it from memory. Returns the number of bytes freed.
+		private long spill(int count) {
+			int writes = 0;
+			long written = 0;
+			long freed = 0;
+			long compressedFreed = 0;
+			for (int i = 0; i < count; i++) {
+				Node node = batchNodes[i];
+				byte[] compressed = node.compressed;
+				if (compressed != null) {
+					freed += compressed.length;
+					compressedFreed += compressed.length;
+				} else {
+					freed += node.charge;
+				}
+				if (!node.alreadyOnDisk) {
+					writeIds[writes] = batchIds[i];
+					writeValues[writes] = (compressed != null)
+							? ByteBuffer.wrap(codec.decompress(compressed, node.size)) : node.value.duplicate();
+					written += node.size;
+					writes++;
+				}
+			}
+			try {
+				if (writes > 0) {
+					disk.write(writeIds, writeValues, writes, fsyncSpills);
+				}
+			} catch (IOException | RuntimeException e) {
+				logger.error("Failed to flush " + writes + " nodes, keeping them in memory", e);
+				restore(count);
+				return 0;
+			} finally {
+				Arrays.fill(writeValues, 0, writes, null);
+			}
+			metrics.flushedBytes.add(written);
+			if (logger.isDebugEnabled()) {
+				logger.debug("Flushed to disk " + writes + " nodes, size (bytes): " + written
+						+ ", dropped from memory " + count + " nodes");
+			}
+
+			// readers that already hold the value keep using it, new readers go to disk
+			for (int i = 0; i < count; i++) {
+				Node node = batchNodes[i];
+				node.alreadyOnDisk = true;
+				node.value = null;
+				node.state = SPILLED;
+				node.compressed = null;
+				releaseSlot(node);
+				batchNodes[i] = null;
+			}
+
+			acquireLock();
+			try {
+				memorySize -= freed;
+				compressedSize -= compressedFreed;
+				memoryFreed();
+				if (logger.isDebugEnabled()) {
+					logger.debug("Memory used: " + memorySize);
+				}
+			} finally {
+				lock.unlock();
+			}
+			return freed;
+		}
+
+		// puts a batch that could not be written back where it came from
+		private void restore(int count) {
+			for (int i = 0; i < count; i++) {
+				Node node = batchNodes[i];
+				if (node.compressed != null) {
+					acquireLock();
+					try {
+						compressedTier.addLast(0, batchIds[i], node.compressed.length);
+						node.state = COMPRESSED;
+					} finally {
+						lock.unlock();
+					}
+				} else {
+					node.state = RESIDENT;
+					evictionPolicy.recordInsert(batchIds[i], node.charge);
+				}
+				batchNodes[i] = null;
+			}
+		}
+	}
+
+	// An async put that found no room. data is the cache's own copy.
+	private static final class PendingPut {
+		final byte[] key;
+		final byte[] data;
+		final int charge;
+		// dedup mode only
+		final ByteBuffer fingerprint;
+		final long startNanos = System.nanoTime();
+		final CompletableFuture<Integer> future = new CompletableFuture<>();
+
+		PendingPut(byte[] key, byte[] data, int charge, ByteBuffer fingerprint) {
+			this.key = key;
+			this.data = data;
+			this.charge = charge;
+			this.fingerprint = fingerprint;
+		}
+	}
+
+	// The value of a load is published by done: a slab buffer stays valid while the waiting reader pins node
+	private static final class InFlightLoad {
+		final Node node;
+		final CountDownLatch done = new CountDownLatch(1);
+		ByteBuffer value;
+
+		InFlightLoad(Node node) {
+			this.node = node;
+		}
+	}
+
+	/**
+	 * An entry seen by {@link MyCache#scan()}. The key, null for an entry put without one, and the value are copies
+	 * that belong to the caller.
+	 */
+	public static final class Entry {
+		private final int id;
+		private final byte[] key;
+		private final byte[] value;
+
+		Entry(int id, byte[] key, byte[] value) {
+			this.id = id;
+			this.key = key;
+			this.value = value;
+		}
+
+		public int getId() {
+			return id;
+		}
+
+		public byte[] getKey() {
+			return key;
+		}
+
+		public byte[] getValue() {
+			return value;
+		}
+	}
+
+	public static class CacheUnavailableException extends RuntimeException {
+
+		public CacheUnavailableException(String message) {
+			super(message);
+		}
+
+	}
+
+	public static class Builder {
+		private final long highLimitBytes;
+		private long lowLimitBytes = -1;
+		private int initialCapacity = 0;
+		private Path spillDirectory;
+		private boolean offHeap = false;
+		private int slabSize = SlabAllocator.DEFAULT_SLAB_SIZE;
+		private EvictionPolicy evictionPolicy;
+		private PromotionPolicy promotionPolicy;
+		private int ioThreads = DEFAULT_IO_THREADS;
+		private SlabAllocator slabs;
+		private ScheduledExecutorService maintenance;
+		private ThreadPoolExecutor ioExecutor;
+		private boolean fsyncSpills = false;
+		private long timeToLiveNanos = NEVER;
+		private int chunkSize = DEFAULT_CHUNK_SIZE;
+		private boolean deduplicate = false;
+		private Codec codec;
+		private long compressedLimitBytes;
+		private String jmxName;
+		private boolean persistent = false;
+		private long checkpointIntervalMillis = DEFAULT_CHECKPOINT_INTERVAL_MILLIS;
+		private Durability durability = Durability.MEMORY_ONLY;
+		private long writeBehindLagNanos = DEFAULT_WRITE_BEHIND_LAG_NANOS;
+
+		private Builder(long highLimitBytes) {
+			this.highLimitBytes = highLimitBytes;
+		}
+
+		// default is 80% of the high limit
+		public Builder lowLimit(long lowLimitBytes) {
+			this.lowLimitBytes = lowLimitBytes;
+			return this;
+		}
+
+		public Builder initialCapacity(int initialCapacity) {
+			this.initialCapacity = initialCapacity;
+			return this;
+		}
+
+		// default is a new temporary directory
+		public Builder spillDirectory(Path spillDirectory) {
+			this.spillDirectory = spillDirectory;
+			return this;
+		}
+
+		/**
+		 * Keeps values in slots of a {@link SlabAllocator} in direct memory, the high limit is the off-heap
+		 * capacity and memory is charged with slot sizes. A slot is reused once its node is flushed, so readers pin
+		 * the node while they copy from it and the cleaner waits for pins to drain before it frees the slot.
+		 */
+		public Builder offHeap(boolean offHeap) {
+			this.offHeap = offHeap;
+			return this;
+		}
+
+		public Builder slabSize(int slabSize) {
+			this.slabSize = slabSize;
+			return this;
+		}
+
+		// default is W-TinyLFU, the policy must not be shared with another cache
+		public Builder evictionPolicy(EvictionPolicy evictionPolicy) {
+			this.evictionPolicy = evictionPolicy;
+			return this;
+		}
+
+		// default promotes every spilled value that is read while there is room, must not be shared either
+		public Builder promotionPolicy(PromotionPolicy promotionPolicy) {
+			this.promotionPolicy = promotionPolicy;
+			return this;
+		}
+
+		// off-heap memory shared with other caches, the shards of a ShardedCache
+		Builder slabs(SlabAllocator slabs) {
+			this.slabs = slabs;
+			return this;
+		}
+
+		/**
+		 * Maintenance and I/O executors shared with other caches, the shards of a ShardedCache, instead of a
+		 * thread and a pool of ioThreads per cache. Maintenance must have a single thread. The owner shuts both
+		 * down and waits for them before it closes the caches.
+		 */
+		Builder executors(ScheduledExecutorService maintenance, ThreadPoolExecutor ioExecutor) {
+			this.maintenance = maintenance;
+			this.ioExecutor = ioExecutor;
+			return this;
+		}
+
+		// threads that serve cold reads of the async API, 4 by default
+		public Builder ioThreads(int ioThreads) {
+			if (ioThreads <= 0) {
+				throw new IllegalArgumentException("ioThreads must be positive: " + ioThreads);
+			}
+			this.ioThreads = ioThreads;
+			return this;
+		}
+
+		// fsync every flushed batch once, off by default: spill files do not survive a restart anyway
+		public Builder fsyncSpills(boolean fsyncSpills) {
+			this.fsyncSpills = fsyncSpills;
+			return this;
+		}
+
+		/**
+		 * Default time to live of entries, by default they never expire. Expired entries are removed when they are
+		 * read, and a timer wheel driven by the maintenance thread removes the ones nobody reads.
+		 */
+		public Builder expireAfterWrite(long timeToLive, TimeUnit unit) {
+			this.timeToLiveNanos = unit.toNanos(timeToLive);
+			return this;
+		}
+
+		/**
+		 * Largest chunk of a value put with putStream, 256K by default. Must fit the high limit. Each chunk is a
+		 * node that is evicted, spilled and loaded like any other, the id or key of the value refers to a small
+		 * manifest that lists them and stays in memory.
+		 */
+		public Builder chunkSize(int chunkSize) {
+			if (chunkSize <= 0) {
+				throw new IllegalArgumentException("chunkSize must be positive: " + chunkSize);
+			}
+			this.chunkSize = chunkSize;
+			return this;
+		}
+
+		/**
+		 * Stores identical values once: putToCache, put, putAsync and putStream share the memory and the spilled
+		 * bytes of values that are already in the cache, and so do the values of putAll. Costs a SHA-256 of every
+		 * value put. Each distinct value is a blob with a reference count, the id or key a put returns is
+		 * a manifest of it, so the cleaner, the spill store and memory accounting see the value once.
+		 */
+		public Builder deduplicate(boolean deduplicate) {
+			this.deduplicate = deduplicate;
+			return this;
+		}
+
+		/**
+		 * Keeps values the eviction policy gives up compressed in memory before they go to disk. Compressed
+		 * bytes count against the memory limits at their compressed size, and the tier holds at most
+		 * compressedLimitBytes of them: beyond that its coldest entries are spilled.
+		 */
+		public Builder compressedTier(Codec codec, long compressedLimitBytes) {
+			this.codec = codec;
+			this.compressedLimitBytes = compressedLimitBytes;
+			return this;
+		}
+
+		// registers the cache's metrics (see MyCacheMXBean) under com.palamsoft.cache:type=MyCache,name=<name>
+		public Builder jmxName(String name) {
+			this.jmxName = name;
+			return this;
+		}
+
+		/**
+		 * Keeps spilled values and a checkpoint of their index (ids, extents, keys, expiry and access
+		 * frequencies, see {@link SpillIndex}) in the spill directory, which must be set, and reopens them on the
+		 * next start: restored entries are read from disk when they are first used.
+		 * close() flushes what is only in memory, a crash loses what changed since the last checkpoint unless
+		 * a durable mode is set, see {@link #durability(Durability)}.
+		 */
+		public Builder persistent(boolean persistent) {
+			this.persistent = persistent;
+			return this;
+		}
+
+		// default is 10 seconds
+		public Builder checkpointInterval(long interval, TimeUnit unit) {
+			this.checkpointIntervalMillis = unit.toMillis(interval);
+			return this;
+		}
+
+		/**
+		 * When puts reach the disk, see {@link Durability}. The default is MEMORY_ONLY, the other modes need a
+		 * persistent cache.
+		 */
+		public Builder durability(Durability durability) {
+			this.durability = durability;
+			return this;
+		}
+
+		// longest a put stays in memory only in WRITE_BEHIND mode, 1 second by default
+		public Builder writeBehindLag(long lag, TimeUnit unit) {
+			if (lag <= 0) {
+				throw new IllegalArgumentException("lag must be positive: " + lag);
+			}
+			this.writeBehindLagNanos = unit.toNanos(lag);
+			return this;
+		}
+
+		public MyCache build() {
+			return new MyCache(this);
+		}
 	}
 
 }
@@ -0,0 +1,61 @@
+package com.palamsoft.cache;
+
+/**
+ *
+ * Management interface of a {@link MyCache}. Counters are totals since the cache was created, gauges are read
+ * when the attribute is.
+ *
+ */
+public interface MyCacheMXBean {
+
+	// reads served from memory, raw or compressed
+	long getHitCount();
+
+	// reads that went to disk
+	long getMissCount();
+
+	double getHitRatio();
+
+	// values read back from spill files, a batched read counts each value
+	long getDiskLoadCount();
+
+	// spilled values that were read but not kept in memory because it was full
+	long getLoadsNotAdmittedCount();
+
+	// spilled values that were read and kept in memory
+	long getPromotionCount();
+
+	// spilled values that were read but not kept in memory because the promotion policy declined them
+	long getPromotionsSkippedCount();
+
+	// promotions that waited for the cleaner to evict colder entries
+	long getForcedPromotionCount();
+
+	// puts that found no room, whether they threw CacheUnavailableException or returned -1
+	long getRejectedPutCount();
+
+	// puts in dedup mode whose value was already stored, they only added a reference to it
+	long getDeduplicatedPutCount();
+
+	// values the cleaner took out of raw memory, to disk or to the compressed tier
+	long getEvictionCount();
+
+	// bytes the cleaner wrote to spill files
+	long getFlushedBytes();
+
+	long getMemorySize();
+
+	long getCompressedSize();
+
+	// ids handed out so far, live or waiting to be reused
+	int getIdSpaceSize();
+
+	// ids of removed entries that wait to be reused
+	int getFreeIdCount();
+
+	LatencySummary getGetLatency();
+
+	LatencySummary getPutLatency();
+
+	LatencySummary getDiskLoadLatency();
+}
@@ -0,0 +1,76 @@
+package com.palamsoft.cache;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import net.jcip.annotations.ThreadSafe;
+
+/**
+ * 
+ * Append-only table of nodes split into fixed-size chunks. Chunks are never moved, so a reader only needs
+ * two array loads to reach a node.
+ * 
+ * Appends must be serialized by the caller. Readers do not lock: the element is stored before the
+ * volatile size is advanced, so any id below {@link #size()} refers to a fully published node, or to null if
+ * the id has been freed.
+ * 
+ */
+@ThreadSafe
+final class NodeTable<N> {
+
+	private static final int CHUNK_SHIFT = 10;
+	private static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+	private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+	// replaced (copied) when it runs out of room, chunks are shared between the old and the new directory
+	private volatile AtomicReferenceArray<N>[] chunks;
+
+	private volatile int size = 0;
+
+	NodeTable(int initialCapacity) {
+		chunks = newDirectory(Math.max(1, (initialCapacity + CHUNK_SIZE - 1) >>> CHUNK_SHIFT));
+	}
+
+	// there are no generic arrays, the raw one only ever holds AtomicReferenceArray<N>
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private static <N> AtomicReferenceArray<N>[] newDirectory(int chunkCount) {
+		return new AtomicReferenceArray[chunkCount];
+	}
+
+	int size() {
+		return size;
+	}
+
+	// returns null if there is no node with this id or it has been freed
+	N get(int id) {
+		if (id < 0 || id >= size) {
+			return null;
+		}
+		return chunks[id >>> CHUNK_SHIFT].get(id & CHUNK_MASK);
+	}
+
+	// replaces the node of an existing id, null marks a free id; callers must serialize with appends
+	void set(int id, N node) {
+		if (id < 0 || id >= size) {
+			throw new IndexOutOfBoundsException("Invalid id: " + id);
+		}
+		chunks[id >>> CHUNK_SHIFT].set(id & CHUNK_MASK, node);
+	}
+
+	// callers must serialize appends
+	int append(N node) {
+		int id = size;
+		int chunkIndex = id >>> CHUNK_SHIFT;
+		AtomicReferenceArray<N>[] current = chunks;
+		if (chunkIndex == current.length) {
+			current = Arrays.copyOf(current, current.length * 2);
+			chunks = current;
+		}
+		if (current[chunkIndex] == null) {
+			current[chunkIndex] = new AtomicReferenceArray<>(CHUNK_SIZE);
+		}
+		current[chunkIndex].lazySet(id & CHUNK_MASK, node);
+		size = id + 1;
+		return id;
+	}
+}
@@ -0,0 +1,57 @@
+package com.palamsoft.cache;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ *
+ * A channel over an OutputStream that writes heap buffers straight from their arrays. Channels.newChannel
+ * copies everything through a small transfer array; this only does so for direct buffers.
+ *
+ */
+final class OutputStreamChannel implements WritableByteChannel {
+
+	private static final int TRANSFER_SIZE = 64 * 1024;
+
+	private final OutputStream out;
+
+	private byte[] transfer;
+
+	private boolean open = true;
+
+	OutputStreamChannel(OutputStream out) {
+		this.out = out;
+	}
+
+	@Override
+	public int write(ByteBuffer src) throws IOException {
+		int length = src.remaining();
+		if (src.hasArray()) {
+			out.write(src.array(), src.arrayOffset() + src.position(), length);
+			src.position(src.limit());
+			return length;
+		}
+		if (transfer == null) {
+			transfer = new byte[TRANSFER_SIZE];
+		}
+		while (src.hasRemaining()) {
+			int n = Math.min(src.remaining(), transfer.length);
+			src.get(transfer, 0, n);
+			out.write(transfer, 0, n);
+		}
+		return length;
+	}
+
+	@Override
+	public boolean isOpen() {
+		return open;
+	}
+
+	// does not close the stream, it belongs to the caller
+	@Override
+	public void close() {
+		open = false;
+	}
+}
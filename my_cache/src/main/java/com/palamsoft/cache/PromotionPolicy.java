@@ -0,0 +1,77 @@
+package com.palamsoft.cache;
+
+import net.jcip.annotations.ThreadSafe;
+
+/**
+ *
+ * Decides whether a spilled value that has just been read from disk is brought back into memory. Promotion
+ * costs a victim: the cleaner has to flush something to make room, so promoting every value a scan touches
+ * pushes the hot set out to disk.
+ *
+ * Called by the reader that owns the load, outside the cache lock. A policy instance belongs to one cache.
+ * Use the factory methods to pick one when building the cache.
+ *
+ */
+@ThreadSafe
+public class PromotionPolicy {
+
+	enum Decision {
+		// serve the read from the loaded bytes, the value stays on disk only
+		SKIP,
+		// keep the value in memory if there is room for it now
+		IF_ROOM,
+		// keep the value in memory, waiting for the cleaner to evict colder entries if there is no room
+		FORCE
+	}
+
+	private final String name;
+
+	PromotionPolicy(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * Promotes every value that fits. A one-off scan of spilled entries promotes all of them.
+	 */
+	public static PromotionPolicy always() {
+		return new PromotionPolicy("always");
+	}
+
+	/**
+	 * Promotes a value once it has been read from disk minReads times (1..15). Reads are counted in a decaying
+	 * count-min sketch, so with minReads of 2 or more a one-off scan promotes nothing.
+	 */
+	public static PromotionPolicy frequency(int minReads) {
+		return new FrequencyPromotionPolicy(minReads, 0);
+	}
+
+	/**
+	 * Like {@link #frequency(int)}, and a value read forceReads times (minReads..15) is promoted even when memory
+	 * is full: the read waits briefly for the cleaner to evict colder entries, so a hot entry does not miss
+	 * forever under pressure.
+	 */
+	public static PromotionPolicy frequency(int minReads, int forceReads) {
+		if (forceReads < minReads) {
+			throw new IllegalArgumentException("forceReads must not be below minReads: " + forceReads);
+		}
+		return new FrequencyPromotionPolicy(minReads, forceReads);
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	// Called once for every value read from disk by the reader that owns its load
+	Decision onDiskRead(int id) {
+		return Decision.IF_ROOM;
+	}
+
+	// Called when a node is removed and its id is recycled
+	void onFree(int id) {
+	}
+
+	@Override
+	public String toString() {
+		return name;
+	}
+}
@@ -0,0 +1,58 @@
+package com.palamsoft.cache;
+
+/**
+ *
+ * Segmented LRU. A hit in probation promotes the node to protected, overflow of protected demotes its least
+ * recently used node back to probation. Victims are taken from probation first.
+ *
+ */
+final class SegmentedLruPolicy extends EvictionPolicy {
+
+	private static final int PROBATION = 0;
+	private static final int PROTECTED = 1;
+
+	private static final double PROTECTED_SHARE = 0.8;
+
+	private final IdLists lists = new IdLists(2);
+
+	SegmentedLruPolicy() {
+		super("SLRU");
+	}
+
+	@Override
+	void onAccess(int id) {
+		int list = lists.listOf(id);
+		if (list == IdLists.NONE) {
+			return;
+		}
+		lists.moveToLast(PROTECTED, id);
+		if (list == PROBATION) {
+			long total = lists.weight(PROBATION) + lists.weight(PROTECTED);
+			while (lists.weight(PROTECTED) > total * PROTECTED_SHARE && lists.size(PROTECTED) > 1) {
+				lists.moveToLast(PROBATION, lists.first(PROTECTED));
+			}
+		}
+	}
+
+	@Override
+	void onInsert(int id, int weight) {
+		lists.addLast(PROBATION, id, weight);
+	}
+
+	@Override
+	int onEvict() {
+		int id = lists.first(PROBATION);
+		if (id == IdLists.NONE) {
+			id = lists.first(PROTECTED);
+		}
+		if (id != IdLists.NONE) {
+			lists.remove(id);
+		}
+		return id;
+	}
+
+	@Override
+	void onRemove(int id) {
+		lists.remove(id);
+	}
+}
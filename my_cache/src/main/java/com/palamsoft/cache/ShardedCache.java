@@ -0,0 +1,371 @@
+package com.palamsoft.cache;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.apache.log4j.Logger;
+
+import com.palamsoft.cache.MyCache.CacheUnavailableException;
+
+import net.jcip.annotations.ThreadSafe;
+
+/**
+ *
+ * N independent {@link MyCache} shards behind one id space and one memory budget. Every shard has its own lock,
+ * node table, cleaner and spill directory, so writers on different shards never contend. The shards share one
+ * maintenance thread, which also rebalances memory, and one pool of I/O threads.
+ *
+ * Ids encode their shard: id = local id * shards + shard. A put without a key goes to a random shard and tries
+ * the others before it gives up, a keyed operation goes to the shard of the key's hash.
+ *
+ * The budget is split evenly at first. A {@link BudgetCoordinator} then moves memory between shards every
+ * rebalance interval, towards the shards whose puts and loads ask for more.
+ *
+ */
+@ThreadSafe
+public class ShardedCache implements Closeable {
+
+	private final Logger logger = Logger.getLogger(this.getClass());
+
+	private static final long DEFAULT_REBALANCE_INTERVAL_MILLIS = 100;
+
+	// how long a timed put waits on one shard before it tries the next
+	private static final long WAIT_SLICE_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+	// how long close() waits for the maintenance and I/O threads
+	private static final long SHUTDOWN_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(10);
+
+	private final MyCache[] shards;
+
+	private final BudgetCoordinator coordinator;
+
+	// rebalances memory and runs the periodic tasks of every shard
+	private final ScheduledExecutorService maintenance;
+
+	private final ThreadPoolExecutor ioExecutor;
+
+	private ShardedCache(Builder builder) {
+		int n = builder.shards;
+		long lowLimitBytes = (builder.lowLimitBytes < 0) ? (long) (builder.highLimitBytes * 0.8) : builder.lowLimitBytes;
+		// off-heap shards reserve from one allocator, so moving limits never needs more direct memory than the budget
+		SlabAllocator slabs = builder.offHeap ? new SlabAllocator(builder.highLimitBytes, builder.slabSize) : null;
+		maintenance = MyCache.newMaintenanceExecutor();
+		ioExecutor = MyCache.newIoExecutor(builder.ioThreads);
+		shards = new MyCache[n];
+		try {
+			for (int i = 0; i < n; i++) {
+				MyCache.Builder shard = MyCache.builder(builder.highLimitBytes / n).lowLimit(lowLimitBytes / n);
+				if (builder.spillDirectory != null) {
+					shard.spillDirectory(builder.spillDirectory.resolve("shard-" + i));
+				}
+				if (slabs != null) {
+					shard.offHeap(true).slabs(slabs);
+				}
+				if (builder.shardConfiguration != null) {
+					builder.shardConfiguration.accept(shard);
+				}
+				shards[i] = shard.executors(maintenance, ioExecutor).build();
+			}
+		} catch (RuntimeException e) {
+			closeQuietly();
+			throw e;
+		}
+
+		coordinator = new BudgetCoordinator(shards, builder.highLimitBytes, (double) lowLimitBytes / builder.highLimitBytes);
+		maintenance.scheduleWithFixedDelay(this::rebalance, builder.rebalanceIntervalMillis,
+				builder.rebalanceIntervalMillis, TimeUnit.MILLISECONDS);
+	}
+
+	public static Builder builder(long highLimitBytes) {
+		return new Builder(highLimitBytes);
+	}
+
+	/**
+	 * Adds a copy of data to the first shard with room for it. Throws {@link CacheUnavailableException} if
+	 * none has.
+	 */
+	public int putToCache(byte[] data) {
+		int id = tryPutToCache(data);
+		if (id < 0) {
+			throw new CacheUnavailableException("No room for new node. Please retry later");
+		}
+		return id;
+	}
+
+	/**
+	 * Adds a copy of data, waiting up to timeout if no shard has room right now. The wait goes round the shards
+	 * in short slices, so the put lands on whichever shard frees memory first.
+	 */
+	// BLOCKS-UNTIL: memoryAvailable of each shard in turn
+	public int putToCache(byte[] data, long timeout, TimeUnit unit) throws InterruptedException {
+		int id = tryPutToCache(data);
+		if (id >= 0) {
+			return id;
+		}
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		int first = randomShard();
+		for (int i = 0;; i++) {
+			int shard = (first + i) % shards.length;
+			long remaining = deadline - System.nanoTime();
+			int local = shards[shard].tryPutToCache(data, Math.min(remaining, WAIT_SLICE_NANOS), TimeUnit.NANOSECONDS);
+			if (local >= 0) {
+				return id(local, shard);
+			}
+			if (remaining <= 0) {
+				throw new CacheUnavailableException("No room for new node after " + timeout + " " + unit);
+			}
+		}
+	}
+
+	// returns -1 if no shard has room right now
+	public int tryPutToCache(byte[] data) {
+		int first = randomShard();
+		for (int i = 0; i < shards.length; i++) {
+			int shard = (first + i) % shards.length;
+			int local = shards[shard].tryPutToCache(data);
+			if (local >= 0) {
+				return id(local, shard);
+			}
+		}
+		return -1;
+	}
+
+	public CompletableFuture<Integer> putAsync(byte[] data) {
+		int shard = randomShard();
+		return shards[shard].putAsync(data).thenApply(local -> id(local, shard));
+	}
+
+	public byte[] getFromCache(int id) {
+		if (id < 0) {
+			logger.warn("Invalid id: " + id);
+			return null;
+		}
+		return shardOf(id).getFromCache(id / shards.length);
+	}
+
+	public CompletableFuture<byte[]> getAsync(int id) {
+		if (id < 0) {
+			logger.warn("Invalid id: " + id);
+			return CompletableFuture.completedFuture(null);
+		}
+		return shardOf(id).getAsync(id / shards.length);
+	}
+
+	public boolean remove(int id) {
+		return id >= 0 && shardOf(id).remove(id / shards.length);
+	}
+
+	public void put(String key, byte[] value) {
+		byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+		shardOf(bytes).put(bytes, value);
+	}
+
+	public CompletableFuture<Void> putAsync(String key, byte[] value) {
+		return shardOf(key.getBytes(StandardCharsets.UTF_8)).putAsync(key, value);
+	}
+
+	// returns null if there is no such key
+	public byte[] get(String key) {
+		byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+		return shardOf(bytes).get(bytes);
+	}
+
+	public CompletableFuture<byte[]> getAsync(String key) {
+		return shardOf(key.getBytes(StandardCharsets.UTF_8)).getAsync(key);
+	}
+
+	public boolean remove(String key) {
+		byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+		return shardOf(bytes).remove(bytes);
+	}
+
+	public int getShardCount() {
+		return shards.length;
+	}
+
+	// bytes in memory over all shards
+	public long getMemorySize() {
+		long size = 0;
+		for (MyCache shard : shards) {
+			size += shard.getMetrics().getMemorySize();
+		}
+		return size;
+	}
+
+	// share of reads served without going to disk, over all shards
+	public double getHitRatio() {
+		long hits = 0;
+		long reads = 0;
+		for (MyCache shard : shards) {
+			MyCacheMXBean metrics = shard.getMetrics();
+			hits += metrics.getHitCount();
+			reads += metrics.getHitCount() + metrics.getMissCount();
+		}
+		return (reads == 0) ? 0 : (double) hits / reads;
+	}
+
+	MyCache shard(int index) {
+		return shards[index];
+	}
+
+	BudgetCoordinator coordinator() {
+		return coordinator;
+	}
+
+	private void rebalance() {
+		try {
+			coordinator.rebalance();
+		} catch (RuntimeException e) {
+			logger.error("Failed to rebalance memory between shards", e);
+		}
+	}
+
+	private int randomShard() {
+		return ThreadLocalRandom.current().nextInt(shards.length);
+	}
+
+	// The put is rolled back if its local id has no global one, so a value is never stored but unreachable
+	private int id(int local, int shard) {
+		if (local > (Integer.MAX_VALUE - shard) / shards.length) {
+			shards[shard].remove(local);
+			throw new CacheUnavailableException("No id left in shard " + shard);
+		}
+		return local * shards.length + shard;
+	}
+
+	private MyCache shardOf(int id) {
+		return shards[id % shards.length];
+	}
+
+	private MyCache shardOf(byte[] key) {
+		int h = Arrays.hashCode(key) * 0x9e3779b9;
+		return shards[((h ^ (h >>> 16)) & Integer.MAX_VALUE) % shards.length];
+	}
+
+	@Override
+	public void close() throws IOException {
+		stopExecutors();
+		IOException failure = null;
+		for (MyCache shard : shards) {
+			try {
+				shard.close();
+			} catch (IOException e) {
+				failure = e;
+			}
+		}
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+	// A running task may finish, an interrupt would close spill channels. Shards are closed afterwards.
+	private void stopExecutors() {
+		maintenance.shutdown();
+		ioExecutor.shutdown();
+		try {
+			maintenance.awaitTermination(SHUTDOWN_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+			ioExecutor.awaitTermination(SHUTDOWN_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void closeQuietly() {
+		stopExecutors();
+		for (MyCache shard : shards) {
+			if (shard == null) {
+				continue;
+			}
+			try {
+				shard.close();
+			} catch (IOException e) {
+				logger.warn("Failed to close shard", e);
+			}
+		}
+	}
+
+	public static class Builder {
+		private final long highLimitBytes;
+		private long lowLimitBytes = -1;
+		private int shards = Runtime.getRuntime().availableProcessors();
+		private Path spillDirectory;
+		private boolean offHeap = false;
+		private int slabSize = SlabAllocator.DEFAULT_SLAB_SIZE;
+		private long rebalanceIntervalMillis = DEFAULT_REBALANCE_INTERVAL_MILLIS;
+		private int ioThreads = MyCache.DEFAULT_IO_THREADS;
+		private Consumer<MyCache.Builder> shardConfiguration;
+
+		private Builder(long highLimitBytes) {
+			this.highLimitBytes = highLimitBytes;
+		}
+
+		// default is one shard per available processor
+		public Builder shards(int shards) {
+			if (shards <= 0) {
+				throw new IllegalArgumentException("shards must be positive: " + shards);
+			}
+			this.shards = shards;
+			return this;
+		}
+
+		// over all shards, default is 80% of the high limit
+		public Builder lowLimit(long lowLimitBytes) {
+			this.lowLimitBytes = lowLimitBytes;
+			return this;
+		}
+
+		// shard i spills to the subdirectory shard-i, default is a temporary directory per shard
+		public Builder spillDirectory(Path spillDirectory) {
+			this.spillDirectory = spillDirectory;
+			return this;
+		}
+
+		public Builder offHeap(boolean offHeap) {
+			this.offHeap = offHeap;
+			return this;
+		}
+
+		public Builder slabSize(int slabSize) {
+			this.slabSize = slabSize;
+			return this;
+		}
+
+		// threads that serve cold async reads of all shards, 4 by default
+		public Builder ioThreads(int ioThreads) {
+			if (ioThreads <= 0) {
+				throw new IllegalArgumentException("ioThreads must be positive: " + ioThreads);
+			}
+			this.ioThreads = ioThreads;
+			return this;
+		}
+
+		// default is 100 ms
+		public Builder rebalanceInterval(long interval, TimeUnit unit) {
+			this.rebalanceIntervalMillis = unit.toMillis(interval);
+			return this;
+		}
+
+		/**
+		 * Called with the builder of every shard, after limits, spill directory and off-heap memory are set, to
+		 * configure the rest. Policies must be new instances for every call. The shards' ioThreads setting is
+		 * ignored, they share the pool of {@link #ioThreads(int)}.
+		 */
+		public Builder configureShards(Consumer<MyCache.Builder> shardConfiguration) {
+			this.shardConfiguration = shardConfiguration;
+			return this;
+		}
+
+		public ShardedCache build() {
+			return new ShardedCache(this);
+		}
+	}
+}
@@ -0,0 +1,222 @@
+package com.palamsoft.cache;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+
+/**
+ *
+ * Off-heap memory for node values. Direct memory is reserved in slabs of equal size, a slab is cut into
+ * slots of one size class. Size classes grow by a factor of 1.25, so a value wastes at most a fifth of its slot.
+ *
+ * A freed slot is reused in place by the next value of the same class. A slab whose slots are all free goes
+ * back to a shared pool and can be recut for any class, so memory is not stuck in a class that is no longer used.
+ * Values larger than a slab get a dedicated direct buffer.
+ *
+ * Capacity limits reserved memory (slabs plus dedicated buffers), not the bytes of live values.
+ *
+ */
+@ThreadSafe
+final class SlabAllocator {
+
+	static final int DEFAULT_SLAB_SIZE = 1024 * 1024;
+
+	private static final int MIN_SLOT_SIZE = 64;
+	private static final double GROWTH_FACTOR = 1.25;
+
+	static final class Slot {
+		// null for a dedicated buffer
+		final Slab slab;
+		final int index;
+		// position 0, limit = value length, capacity = slot size
+		final ByteBuffer buffer;
+
+		Slot(Slab slab, int index, ByteBuffer buffer) {
+			this.slab = slab;
+			this.index = index;
+			this.buffer = buffer;
+		}
+	}
+
+	static final class Slab {
+		final ByteBuffer memory;
+
+		@GuardedBy("SlabAllocator.this")
+		int sizeClass;
+		@GuardedBy("SlabAllocator.this")
+		int slotSize;
+		@GuardedBy("SlabAllocator.this")
+		int slotCount;
+		// slots [carved, slotCount) have never been handed out since the slab was cut
+		@GuardedBy("SlabAllocator.this")
+		int carved;
+		@GuardedBy("SlabAllocator.this")
+		int[] freed = new int[0];
+		@GuardedBy("SlabAllocator.this")
+		int freedCount;
+		@GuardedBy("SlabAllocator.this")
+		int used;
+
+		Slab(int size) {
+			this.memory = ByteBuffer.allocateDirect(size);
+		}
+
+		@GuardedBy("SlabAllocator.this")
+		void cut(int sizeClass, int slotSize) {
+			this.sizeClass = sizeClass;
+			this.slotSize = slotSize;
+			this.slotCount = memory.capacity() / slotSize;
+			this.carved = 0;
+			this.freedCount = 0;
+			this.used = 0;
+			if (freed.length < slotCount) {
+				freed = new int[slotCount];
+			}
+		}
+
+		@GuardedBy("SlabAllocator.this")
+		boolean isFull() {
+			return used == slotCount;
+		}
+	}
+
+	private final int slabSize;
+	private final long capacity;
+	private final int[] slotSizes;
+
+	// slabs of a class that have at least one free slot
+	@GuardedBy("this")
+	private final List<ArrayDeque<Slab>> partial;
+
+	@GuardedBy("this")
+	private final ArrayDeque<Slab> emptySlabs = new ArrayDeque<>();
+
+	@GuardedBy("this")
+	private long reserved = 0;
+
+	SlabAllocator(long capacity, int slabSize) {
+		if (slabSize < MIN_SLOT_SIZE) {
+			throw new IllegalArgumentException("Slab size is too small: " + slabSize);
+		}
+		this.capacity = capacity;
+		this.slabSize = slabSize;
+		this.slotSizes = slotSizes(slabSize);
+		this.partial = new ArrayList<>(slotSizes.length);
+		for (int i = 0; i < slotSizes.length; i++) {
+			partial.add(new ArrayDeque<>());
+		}
+	}
+
+	SlabAllocator(long capacity) {
+		this(capacity, DEFAULT_SLAB_SIZE);
+	}
+
+	private static int[] slotSizes(int slabSize) {
+		int[] sizes = new int[64];
+		int count = 0;
+		for (int size = MIN_SLOT_SIZE; size < slabSize; ) {
+			if (count == sizes.length) {
+				sizes = Arrays.copyOf(sizes, count * 2);
+			}
+			sizes[count++] = size;
+			int next = (int) (size * GROWTH_FACTOR + 7) & ~7;
+			size = Math.max(next, size + 8);
+		}
+		if (count == sizes.length) {
+			sizes = Arrays.copyOf(sizes, count + 1);
+		}
+		sizes[count++] = slabSize;
+		return Arrays.copyOf(sizes, count);
+	}
+
+	/**
+	 * Bytes of memory a value of this length occupies, i.e. what it must be charged.
+	 */
+	int slotSize(int length) {
+		int sizeClass = sizeClass(length);
+		return (sizeClass < 0) ? length : slotSizes[sizeClass];
+	}
+
+	// -1 if the value needs a dedicated buffer
+	private int sizeClass(int length) {
+		if (length > slabSize) {
+			return -1;
+		}
+		int i = Arrays.binarySearch(slotSizes, Math.max(length, 1));
+		return (i >= 0) ? i : -i - 1;
+	}
+
+	/**
+	 * Returns a slot for a value of the given length or null if capacity is exhausted.
+	 */
+	synchronized Slot allocate(int length) {
+		int sizeClass = sizeClass(length);
+		if (sizeClass < 0) {
+			if (reserved + length > capacity) {
+				return null;
+			}
+			reserved += length;
+			return new Slot(null, -1, ByteBuffer.allocateDirect(length));
+		}
+
+		ArrayDeque<Slab> slabs = partial.get(sizeClass);
+		Slab slab = slabs.peekFirst();
+		if (slab == null) {
+			slab = emptySlabs.pollFirst();
+			if (slab == null) {
+				if (reserved + slabSize > capacity) {
+					return null;
+				}
+				slab = new Slab(slabSize);
+				reserved += slabSize;
+			}
+			slab.cut(sizeClass, slotSizes[sizeClass]);
+			slabs.addFirst(slab);
+		}
+
+		int index = (slab.freedCount > 0) ? slab.freed[--slab.freedCount] : slab.carved++;
+		slab.used++;
+		if (slab.isFull()) {
+			slabs.pollFirst();
+		}
+
+		ByteBuffer buffer = slab.memory.duplicate();
+		buffer.position(index * slab.slotSize);
+		buffer.limit(index * slab.slotSize + slab.slotSize);
+		buffer = buffer.slice();
+		buffer.limit(length);
+		return new Slot(slab, index, buffer);
+	}
+
+	synchronized void free(Slot slot) {
+		Slab slab = slot.slab;
+		if (slab == null) {
+			reserved -= slot.buffer.capacity();
+			return;
+		}
+
+		ArrayDeque<Slab> slabs = partial.get(slab.sizeClass);
+		if (slab.isFull()) {
+			slabs.addLast(slab);
+		}
+		slab.freed[slab.freedCount++] = slot.index;
+		slab.used--;
+		if (slab.used == 0) {
+			slabs.remove(slab);
+			emptySlabs.addFirst(slab);
+		}
+	}
+
+	long capacity() {
+		return capacity;
+	}
+
+	synchronized long reserved() {
+		return reserved;
+	}
+}
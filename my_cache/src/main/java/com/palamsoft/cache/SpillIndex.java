@@ -0,0 +1,177 @@
+package com.palamsoft.cache;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ *
+ * Checkpoint of a persistent cache: for every spilled node its id, where its value lies in the spill segments,
+ * its expiry, its key and its access frequency. A checkpoint is written to a temporary file, forced, and renamed
+ * over the previous one, so a crash leaves either the old or the new checkpoint. Reading maps the file and
+ * decodes it in one pass.
+ *
+ * Layout: magic, version, id space size, journal generation, entry count, then per entry id, segment, offset,
+ * length, expiry (epoch millis or -1), frequency, flags, key length (-1 for no key) and key bytes. Big-endian.
+ * Version 1 had no flags, versions 1 and 2 no journal generation.
+ *
+ * The journal generation is the first {@link SpillJournal} log the checkpoint does not cover.
+ *
+ */
+final class SpillIndex {
+
+	static final String FILE_NAME = "spill.idx";
+
+	private static final int MAGIC = 0x4d434958;
+	static final int VERSION = 3;
+	// bytes of an entry without its key
+	private static final int ENTRY_HEADER_SIZE = 4 * 4 + 8 + 1 + 1 + 4;
+
+	// the entry is the manifest of a streamed value, its value lists the ids of its chunks
+	private static final int CHUNKED = 1;
+	// with CHUNKED: the manifest of a value put in dedup mode, its single chunk is the shared blob
+	private static final int DEDUPLICATED = 2;
+
+	static final long NO_EXPIRY = -1;
+
+	static final class Entry {
+		final int id;
+		final int segment;
+		final int offset;
+		final int length;
+		final long expiresAtMillis;
+		final byte[] key;
+		final boolean chunked;
+		final boolean deduplicated;
+		int frequency;
+
+		Entry(int id, int segment, int offset, int length, long expiresAtMillis, byte[] key, boolean chunked,
+				boolean deduplicated, int frequency) {
+			this.id = id;
+			this.segment = segment;
+			this.offset = offset;
+			this.length = length;
+			this.expiresAtMillis = expiresAtMillis;
+			this.key = key;
+			this.chunked = chunked;
+			this.deduplicated = deduplicated;
+			this.frequency = frequency;
+		}
+	}
+
+	static final class Checkpoint {
+		// ids below this have been handed out, the ones without an entry are free
+		final int idSpaceSize;
+		// logs from this one on were written after the checkpoint started
+		final long journalGeneration;
+		final List<Entry> entries;
+
+		Checkpoint(int idSpaceSize, long journalGeneration, List<Entry> entries) {
+			this.idSpaceSize = idSpaceSize;
+			this.journalGeneration = journalGeneration;
+			this.entries = entries;
+		}
+	}
+
+	private SpillIndex() {
+	}
+
+	static void write(Path file, Checkpoint checkpoint) throws IOException {
+		Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+		try (FileOutputStream stream = new FileOutputStream(temporary.toFile());
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream, 64 * 1024))) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(checkpoint.idSpaceSize);
+			out.writeLong(checkpoint.journalGeneration);
+			out.writeInt(checkpoint.entries.size());
+			for (Entry entry : checkpoint.entries) {
+				writeEntry(out, entry);
+			}
+			out.flush();
+			stream.getFD().sync();
+		}
+		Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	static void writeEntry(DataOutput out, Entry entry) throws IOException {
+		out.writeInt(entry.id);
+		out.writeInt(entry.segment);
+		out.writeInt(entry.offset);
+		out.writeInt(entry.length);
+		out.writeLong(entry.expiresAtMillis);
+		out.writeByte(entry.frequency);
+		out.writeByte((entry.chunked ? CHUNKED : 0) | (entry.deduplicated ? DEDUPLICATED : 0));
+		if (entry.key == null) {
+			out.writeInt(-1);
+		} else {
+			out.writeInt(entry.key.length);
+			out.write(entry.key);
+		}
+	}
+
+	// Throws BufferUnderflowException if in ends within the entry
+	static Entry readEntry(ByteBuffer in, int version) throws IOException {
+		int id = in.getInt();
+		int segment = in.getInt();
+		int offset = in.getInt();
+		int length = in.getInt();
+		long expiresAtMillis = in.getLong();
+		int frequency = in.get();
+		int flags = (version == 1) ? 0 : in.get();
+		int keyLength = in.getInt();
+		if (keyLength < -1 || keyLength > in.remaining()) {
+			throw new IOException("Corrupt entry of id " + id + ", key of " + keyLength + " bytes");
+		}
+		byte[] key = null;
+		if (keyLength >= 0) {
+			key = new byte[keyLength];
+			in.get(key);
+		}
+		return new Entry(id, segment, offset, length, expiresAtMillis, key, (flags & CHUNKED) != 0,
+				(flags & DEDUPLICATED) != 0, frequency);
+	}
+
+	/**
+	 * Returns null if there is no checkpoint. Throws IOException if the file is not a valid checkpoint.
+	 */
+	static Checkpoint read(Path file) throws IOException {
+		if (!Files.exists(file)) {
+			return null;
+		}
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			int version = (map.getInt() == MAGIC) ? map.getInt() : -1;
+			if (version < 1 || version > VERSION) {
+				throw new IOException("Not a spill index: " + file);
+			}
+			int idSpaceSize = map.getInt();
+			long journalGeneration = (version < 3) ? 0 : map.getLong();
+			int count = map.getInt();
+			int entryHeaderSize = (version == 1) ? ENTRY_HEADER_SIZE - 1 : ENTRY_HEADER_SIZE;
+			if (count < 0 || count > map.remaining() / entryHeaderSize) {
+				throw new IOException("Corrupt spill index: " + file);
+			}
+			List<Entry> entries = new ArrayList<>(count);
+			for (int i = 0; i < count; i++) {
+				entries.add(readEntry(map, version));
+			}
+			return new Checkpoint(idSpaceSize, journalGeneration, Collections.unmodifiableList(entries));
+		} catch (BufferUnderflowException e) {
+			throw new IOException("Truncated spill index: " + file, e);
+		}
+	}
+}
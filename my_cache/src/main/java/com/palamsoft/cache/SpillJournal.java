@@ -0,0 +1,262 @@
+package com.palamsoft.cache;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+
+/**
+ *
+ * Redo log of a persistent cache in a durable mode: the index entries of the values written since the last
+ * checkpoint and the ids removed since. Restoring applies the logs a checkpoint does not cover on top of it.
+ *
+ * Records are buffered and written as one frame per commit, which forces the log, so the puts of a group share
+ * one fsync. A frame is the length of its payload, a CRC32 of the payload and the payload: a frame torn by a
+ * crash fails its check and ends the replay of its log.
+ *
+ * Logs are numbered. roll() starts the next one, so a checkpoint covers everything logged before it while puts
+ * go on, and the older logs are deleted once it is written. A log file is created by its first commit.
+ *
+ */
+@ThreadSafe
+final class SpillJournal implements Closeable {
+
+	private static final String PREFIX = "spill.";
+	private static final String SUFFIX = ".log";
+
+	private static final int FRAME_HEADER_SIZE = 4 + 4;
+
+	private static final byte PUT = 1;
+	private static final byte REMOVE = 2;
+
+	private final Path directory;
+
+	// records since the last commit
+	@GuardedBy("this")
+	private ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+	@GuardedBy("this")
+	private DataOutputStream records = new DataOutputStream(buffer);
+
+	// the log the buffered records go to
+	@GuardedBy("this")
+	private long generation;
+
+	// orders writes to the logs, the journal's own lock is only held to take the buffer
+	private final Object io = new Object();
+
+	// null until the current log has a frame
+	@GuardedBy("io")
+	private FileChannel channel;
+	@GuardedBy("io")
+	private long channelGeneration;
+
+	SpillJournal(Path directory, long generation) {
+		this.directory = directory;
+		this.generation = generation;
+	}
+
+	synchronized void put(SpillIndex.Entry entry) {
+		try {
+			records.writeByte(PUT);
+			SpillIndex.writeEntry(records, entry);
+		} catch (IOException e) {
+			throw new AssertionError(e);
+		}
+	}
+
+	synchronized void remove(int id) {
+		try {
+			records.writeByte(REMOVE);
+			records.writeInt(id);
+		} catch (IOException e) {
+			throw new AssertionError(e);
+		}
+	}
+
+	/**
+	 * Writes the records buffered so far and forces the log. If that fails they are kept for the next commit,
+	 * which starts a new log after the one that may now end in a torn frame.
+	 */
+	void commit() throws IOException {
+		synchronized (io) {
+			byte[] payload;
+			long target;
+			synchronized (this) {
+				payload = take();
+				target = generation;
+			}
+			if (payload.length > 0) {
+				write(target, payload);
+			}
+		}
+	}
+
+	/**
+	 * Commits what is buffered and starts the next log. Returns its generation: the records logged from now on,
+	 * and only those, go to it or a later one.
+	 */
+	long roll() throws IOException {
+		synchronized (io) {
+			byte[] payload;
+			long target;
+			synchronized (this) {
+				payload = take();
+				target = generation++;
+			}
+			if (payload.length > 0) {
+				write(target, payload);
+			}
+			closeChannel();
+			return target + 1;
+		}
+	}
+
+	// Deletes the logs before generation, a checkpoint covers them
+	void deleteBefore(long generation) throws IOException {
+		for (Map.Entry<Long, Path> log : logs(directory).entrySet()) {
+			if (log.getKey() < generation) {
+				Files.deleteIfExists(log.getValue());
+			}
+		}
+	}
+
+	@GuardedBy("this")
+	private byte[] take() {
+		byte[] payload = buffer.toByteArray();
+		buffer.reset();
+		return payload;
+	}
+
+	@GuardedBy("io")
+	private void write(long target, byte[] payload) throws IOException {
+		try {
+			if (channel == null || channelGeneration != target) {
+				closeChannel();
+				channel = FileChannel.open(path(directory, target), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+						StandardOpenOption.APPEND);
+				channelGeneration = target;
+			}
+			CRC32 checksum = new CRC32();
+			checksum.update(payload, 0, payload.length);
+			ByteBuffer frame = ByteBuffer.allocate(FRAME_HEADER_SIZE + payload.length);
+			frame.putInt(payload.length).putInt((int) checksum.getValue()).put(payload);
+			frame.flip();
+			while (frame.hasRemaining()) {
+				channel.write(frame);
+			}
+			channel.force(false);
+		} catch (IOException e) {
+			synchronized (this) {
+				byte[] later = take();
+				buffer.write(payload, 0, payload.length);
+				buffer.write(later, 0, later.length);
+				if (generation == target) {
+					generation++;
+				}
+			}
+			closeChannel();
+			throw e;
+		}
+	}
+
+	@GuardedBy("io")
+	private void closeChannel() throws IOException {
+		if (channel != null) {
+			FileChannel closing = channel;
+			channel = null;
+			closing.close();
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		synchronized (io) {
+			closeChannel();
+		}
+	}
+
+	private static Path path(Path directory, long generation) {
+		return directory.resolve(PREFIX + generation + SUFFIX);
+	}
+
+	private static TreeMap<Long, Path> logs(Path directory) throws IOException {
+		TreeMap<Long, Path> logs = new TreeMap<>();
+		try (Stream<Path> listing = Files.list(directory)) {
+			listing.forEach(path -> {
+				String name = path.getFileName().toString();
+				if (name.startsWith(PREFIX) && name.endsWith(SUFFIX)) {
+					try {
+						logs.put(Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length())), path);
+					} catch (NumberFormatException e) {
+						// not one of ours
+					}
+				}
+			});
+		}
+		return logs;
+	}
+
+	/**
+	 * Applies the logs from generation from on, oldest first, to entries by id and deletes the older logs.
+	 * Returns the generation to log to next, after every log found.
+	 */
+	static long replay(Path directory, long from, Map<Integer, SpillIndex.Entry> entries) throws IOException {
+		long next = from;
+		for (Map.Entry<Long, Path> log : logs(directory).entrySet()) {
+			if (log.getKey() < from) {
+				Files.deleteIfExists(log.getValue());
+				continue;
+			}
+			replay(log.getValue(), entries);
+			next = log.getKey() + 1;
+		}
+		return next;
+	}
+
+	private static void replay(Path file, Map<Integer, SpillIndex.Entry> entries) throws IOException {
+		ByteBuffer log = ByteBuffer.wrap(Files.readAllBytes(file));
+		while (log.remaining() >= FRAME_HEADER_SIZE) {
+			int length = log.getInt();
+			int expected = log.getInt();
+			if (length < 0 || length > log.remaining()) {
+				return;
+			}
+			CRC32 checksum = new CRC32();
+			checksum.update(log.array(), log.position(), length);
+			if ((int) checksum.getValue() != expected) {
+				return;
+			}
+			ByteBuffer payload = log.slice();
+			payload.limit(length);
+			log.position(log.position() + length);
+			try {
+				while (payload.hasRemaining()) {
+					byte type = payload.get();
+					if (type == PUT) {
+						SpillIndex.Entry entry = SpillIndex.readEntry(payload, SpillIndex.VERSION);
+						entries.put(entry.id, entry);
+					} else if (type == REMOVE) {
+						entries.remove(payload.getInt());
+					} else {
+						throw new IOException("Corrupt spill journal " + file + ", record type " + type);
+					}
+				}
+			} catch (BufferUnderflowException e) {
+				throw new IOException("Corrupt spill journal " + file, e);
+			}
+		}
+	}
+}
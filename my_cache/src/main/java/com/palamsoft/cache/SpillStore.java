@@ -0,0 +1,580 @@
+package com.palamsoft.cache;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.IntPredicate;
+import java.util.stream.Stream;
+
+import net.jcip.annotations.GuardedBy;
+
+/**
+ *
+ * Disk tier of the cache. Values are appended to segment files, segments are never rewritten in place.
+ * An in-memory index maps node id to (segment, offset, length).
+ *
+ * Every segment is preallocated and memory-mapped once, when it is created. Appends go through the
+ * segment's FileChannel, reads are copies out of the mapping, so a reload of a spilled value costs a
+ * page fault at most. A value larger than the segment size gets a dedicated segment of its own size.
+ *
+ * Writers only hold the store monitor to reserve space and to publish extents, the bytes are written in between
+ * under the lock of the segment they land in, so appends of several threads overlap. Reads take no lock at all.
+ *
+ * Removed and overwritten values leave dead bytes behind. {@link #compact(double)} copies the live values of
+ * mostly dead segments to the active one and deletes the old files. A copy is only published if the id still
+ * maps to the copied extent. A reader that still holds an old extent keeps reading the old mapping, which stays
+ * valid after its file is closed and unlinked.
+ *
+ * A persistent cache keeps the segment files across restarts and hands the extents of its last checkpoint
+ * (see {@link SpillIndex}) to {@link #restore(List)}, which maps the old segments again as full ones.
+ *
+ */
+class SpillStore implements Closeable {
+
+	static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+	private static final String SEGMENT_SUFFIX = ".seg";
+
+	// extents of a batched read this close to each other are read as one run
+	private static final int COALESCE_GAP = 4096;
+
+	// values compaction copies with one gathering write
+	private static final int COMPACTION_BATCH_SIZE = 64;
+
+	// the lock of a segment is held by the gathering write that positions its channel
+	static final class Segment {
+		final int number;
+		final Path path;
+		final FileChannel channel;
+		final MappedByteBuffer map;
+		final int capacity;
+
+		@GuardedBy("SpillStore.this")
+		int writePosition = 0;
+
+		// bytes of values that are still in the index
+		@GuardedBy("SpillStore.this")
+		long liveBytes = 0;
+
+		// reserved appends that are not published yet, compaction leaves the segment alone until they are
+		@GuardedBy("SpillStore.this")
+		int pendingWrites = 0;
+
+		Segment(int number, Path path, int capacity) throws IOException {
+			this.number = number;
+			this.path = path;
+			this.capacity = capacity;
+			try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw")) {
+				file.setLength(capacity);
+			}
+			this.channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+			this.map = channel.map(FileChannel.MapMode.READ_ONLY, 0, capacity);
+		}
+
+		// Reopens a segment of an earlier run. It is never appended to again, so it counts as full.
+		Segment(int number, Path path) throws IOException {
+			this.number = number;
+			this.path = path;
+			this.channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+			long size = channel.size();
+			if (size > Integer.MAX_VALUE) {
+				channel.close();
+				throw new IOException("Segment is too large: " + path);
+			}
+			this.capacity = (int) size;
+			this.map = channel.map(FileChannel.MapMode.READ_ONLY, 0, capacity);
+			this.writePosition = capacity;
+		}
+	}
+
+	static final class Extent {
+		final Segment segment;
+		final int offset;
+		final int length;
+
+		Extent(Segment segment, int offset, int length) {
+			this.segment = segment;
+			this.offset = offset;
+			this.length = length;
+		}
+	}
+
+	private final Path directory;
+	private final int segmentSize;
+
+	@GuardedBy("this")
+	private final List<Segment> segments = new ArrayList<>();
+
+	@GuardedBy("this")
+	private Segment active;
+
+	@GuardedBy("this")
+	private int nextSegmentNumber = 0;
+
+	private final Map<Integer, Extent> index = new ConcurrentHashMap<>();
+
+	// one compaction at a time, writers are not blocked by it
+	private final Object compactionLock = new Object();
+
+	SpillStore(Path directory, int segmentSize) throws IOException {
+		if (segmentSize <= 0) {
+			throw new IllegalArgumentException("Segment size must be positive: " + segmentSize);
+		}
+		this.directory = Files.createDirectories(directory);
+		this.segmentSize = segmentSize;
+	}
+
+	SpillStore(Path directory) throws IOException {
+		this(directory, DEFAULT_SEGMENT_SIZE);
+	}
+
+	Path getDirectory() {
+		return directory;
+	}
+
+	public void write(int id, ByteBuffer data) throws IOException {
+		write(new int[] { id }, new ByteBuffer[] { data }, 1, false);
+	}
+
+	/**
+	 * Appends count values with one gathering write per segment they land in, optionally forces the touched
+	 * segments once, and only then makes the values readable.
+	 */
+	public void write(int[] ids, ByteBuffer[] values, int count, boolean force) throws IOException {
+		write(ids, values, count, force, null);
+	}
+
+	/**
+	 * Same as write, for values whose id may be freed meanwhile: the value of ids[i] is only published if live
+	 * holds for i when it is, under the store's lock. remove() takes that lock too, so a value whose id was
+	 * removed before it was published is never published. A null live publishes every value.
+	 */
+	public void write(int[] ids, ByteBuffer[] values, int count, boolean force, IntPredicate live)
+			throws IOException {
+		CacheEvents.SpillWrite event = CacheEvents.beginSpillWrite();
+		if (event != null) {
+			// before append consumes the values
+			for (int i = 0; i < count; i++) {
+				event.bytes += values[i].remaining();
+			}
+		}
+		append(ids, values, count, force, null, live);
+		if (CacheEvents.shouldCommit(event)) {
+			event.id = (count == 0) ? -1 : ids[0];
+			event.count = count;
+			event.synced = force;
+			event.commit();
+		}
+	}
+
+	// With replaced set, the value of ids[i] is only published if the id still maps to replaced[i], with live set
+	// only if live holds for i
+	private void append(int[] ids, ByteBuffer[] values, int count, boolean force, Extent[] replaced,
+			IntPredicate live) throws IOException {
+		Extent[] extents = reserve(values, count);
+		boolean written = false;
+		try {
+			List<Segment> touched = new ArrayList<>(2);
+			int i = 0;
+			while (i < count) {
+				Segment segment = extents[i].segment;
+				int start = i;
+				long remaining = 0;
+				do {
+					remaining += extents[i].length;
+					i++;
+				} while (i < count && extents[i].segment == segment);
+
+				synchronized (segment) {
+					segment.channel.position(extents[start].offset);
+					while (remaining > 0) {
+						remaining -= segment.channel.write(values, start, i - start);
+					}
+				}
+				touched.add(segment);
+			}
+			if (force) {
+				for (Segment segment : touched) {
+					segment.channel.force(false);
+				}
+			}
+			written = true;
+		} finally {
+			complete(ids, extents, count, written, replaced, live);
+		}
+	}
+
+	// Values that land in the same segment get adjacent extents
+	private synchronized Extent[] reserve(ByteBuffer[] values, int count) throws IOException {
+		Extent[] extents = new Extent[count];
+		for (int i = 0; i < count; i++) {
+			int length = values[i].remaining();
+			Segment segment = segmentFor(length);
+			extents[i] = new Extent(segment, segment.writePosition, length);
+			segment.writePosition += length;
+			segment.pendingWrites++;
+		}
+		return extents;
+	}
+
+	// The bytes of a failed append are never published, they are dead from the start
+	private synchronized void complete(int[] ids, Extent[] extents, int count, boolean written, Extent[] replaced,
+			IntPredicate live) {
+		for (int i = 0; i < count; i++) {
+			Extent extent = extents[i];
+			extent.segment.pendingWrites--;
+			if (!written || (live != null && !live.test(i))) {
+				continue;
+			}
+			if (replaced == null) {
+				publish(ids[i], extent);
+			} else if (index.replace(ids[i], replaced[i], extent)) {
+				extent.segment.liveBytes += extent.length;
+				replaced[i].segment.liveBytes -= replaced[i].length;
+			}
+		}
+	}
+
+	@GuardedBy("this")
+	private void publish(int id, Extent extent) {
+		extent.segment.liveBytes += extent.length;
+		Extent old = index.put(id, extent);
+		if (old != null) {
+			old.segment.liveBytes -= old.length;
+		}
+	}
+
+	/**
+	 * Forgets the value of id, its bytes become dead. Returns false if the id was not on disk.
+	 */
+	public synchronized boolean remove(int id) {
+		Extent old = index.remove(id);
+		if (old == null) {
+			return false;
+		}
+		old.segment.liveBytes -= old.length;
+		return true;
+	}
+
+	/**
+	 * Rewrites every full (not active) segment whose live bytes are below liveRatio of its written bytes and
+	 * deletes it. Returns the number of segments deleted.
+	 */
+	public int compact(double liveRatio) throws IOException {
+		return compact(liveRatio, () -> {
+		});
+	}
+
+	interface IOAction {
+		void run() throws IOException;
+	}
+
+	/**
+	 * Same as compact(liveRatio), running beforeDelete once every value has been moved and before any segment
+	 * is deleted, e.g. to checkpoint the new extents. If beforeDelete throws the segments are kept.
+	 */
+	public int compact(double liveRatio, IOAction beforeDelete) throws IOException {
+		synchronized (compactionLock) {
+			List<Segment> victims = new ArrayList<>();
+			synchronized (this) {
+				for (Segment segment : segments) {
+					if (segment != active && segment.pendingWrites == 0
+							&& segment.liveBytes < segment.writePosition * liveRatio) {
+						victims.add(segment);
+					}
+				}
+			}
+			if (victims.isEmpty()) {
+				return 0;
+			}
+
+			// nothing is appended to a victim any more, so every extent in it is already in the index
+			int[] ids = new int[COMPACTION_BATCH_SIZE];
+			ByteBuffer[] values = new ByteBuffer[COMPACTION_BATCH_SIZE];
+			Extent[] replaced = new Extent[COMPACTION_BATCH_SIZE];
+			int count = 0;
+			for (Map.Entry<Integer, Extent> entry : index.entrySet()) {
+				Extent extent = entry.getValue();
+				if (victims.contains(extent.segment)) {
+					ids[count] = entry.getKey();
+					values[count] = view(extent);
+					replaced[count] = extent;
+					if (++count == COMPACTION_BATCH_SIZE) {
+						append(ids, values, count, false, replaced, null);
+						count = 0;
+					}
+				}
+			}
+			if (count > 0) {
+				append(ids, values, count, false, replaced, null);
+			}
+			beforeDelete.run();
+
+			synchronized (this) {
+				for (Segment segment : victims) {
+					segments.remove(segment);
+					segment.channel.close();
+					Files.deleteIfExists(segment.path);
+				}
+			}
+			return victims.size();
+		}
+	}
+
+	/**
+	 * Takes over the segment files an earlier run left in the directory and makes the given extents readable
+	 * again. Segments that no entry refers to are deleted. Returns the entries that were restored: an entry
+	 * whose segment is gone or too short is skipped.
+	 */
+	public synchronized List<SpillIndex.Entry> restore(List<SpillIndex.Entry> entries) throws IOException {
+		Map<Integer, Path> files = new HashMap<>();
+		try (Stream<Path> listing = Files.list(directory)) {
+			listing.forEach(path -> {
+				String name = path.getFileName().toString();
+				if (name.endsWith(SEGMENT_SUFFIX)) {
+					try {
+						files.put(Integer.parseInt(name.substring(0, name.length() - SEGMENT_SUFFIX.length())), path);
+					} catch (NumberFormatException e) {
+						// not one of ours
+					}
+				}
+			});
+		}
+
+		Map<Integer, Segment> opened = new HashMap<>();
+		List<SpillIndex.Entry> restored = new ArrayList<>(entries.size());
+		for (SpillIndex.Entry entry : entries) {
+			Segment segment = opened.get(entry.segment);
+			if (segment == null) {
+				Path path = files.get(entry.segment);
+				if (path == null) {
+					continue;
+				}
+				segment = new Segment(entry.segment, path);
+				opened.put(entry.segment, segment);
+				segments.add(segment);
+			}
+			if (entry.offset < 0 || entry.length < 0 || (long) entry.offset + entry.length > segment.capacity) {
+				continue;
+			}
+			publish(entry.id, new Extent(segment, entry.offset, entry.length));
+			restored.add(entry);
+		}
+
+		for (Map.Entry<Integer, Path> file : files.entrySet()) {
+			if (!opened.containsKey(file.getKey())) {
+				Files.deleteIfExists(file.getValue());
+			}
+			nextSegmentNumber = Math.max(nextSegmentNumber, file.getKey() + 1);
+		}
+		return restored;
+	}
+
+	synchronized int segmentCount() {
+		return segments.size();
+	}
+
+	public void write(int id, byte[] data) throws IOException {
+		write(id, ByteBuffer.wrap(data));
+	}
+
+	// returns null if the id has never been spilled
+	public byte[] read(int id) {
+		CacheEvents.SpillRead event = CacheEvents.beginSpillRead();
+		Extent extent = index.get(id);
+		if (extent == null) {
+			return null;
+		}
+		byte[] result = new byte[extent.length];
+		view(extent).get(result);
+		commit(event, id, 1, extent.length);
+		return result;
+	}
+
+	// copies the value into dst, returns false if the id has never been spilled
+	public boolean read(int id, ByteBuffer dst) {
+		CacheEvents.SpillRead event = CacheEvents.beginSpillRead();
+		Extent extent = index.get(id);
+		if (extent == null) {
+			return false;
+		}
+		dst.put(view(extent));
+		commit(event, id, 1, extent.length);
+		return true;
+	}
+
+	private static void commit(CacheEvents.SpillRead event, int id, int count, long bytes) {
+		if (CacheEvents.shouldCommit(event)) {
+			event.id = id;
+			event.count = count;
+			event.bytes = bytes;
+			event.commit();
+		}
+	}
+
+	/**
+	 * Writes the value of id to target straight out of the mapping, so the bytes do not pass through the heap.
+	 * target must be blocking. Returns false if the id has never been spilled. The segment channel is not
+	 * involved: an interrupt of the caller closes target at most, never a channel other writers share.
+	 */
+	public boolean transferTo(int id, WritableByteChannel target) throws IOException {
+		CacheEvents.SpillRead event = CacheEvents.beginSpillRead();
+		Extent extent = index.get(id);
+		if (extent == null) {
+			return false;
+		}
+		// the mapping outlives a compaction that closes the segment meanwhile
+		ByteBuffer value = view(extent);
+		while (value.hasRemaining()) {
+			target.write(value);
+		}
+		commit(event, id, 1, extent.length);
+		return true;
+	}
+
+	/**
+	 * Reads the values of the first count ids, result[i] is null if ids[i] has never been spilled. Extents are
+	 * visited in (segment, offset) order, and extents that lie within COALESCE_GAP of each other are copied
+	 * out of one view of the mapping, so a batch sweeps every segment once, front to back.
+	 */
+	public byte[][] read(int[] ids, int count) {
+		CacheEvents.SpillRead event = CacheEvents.beginSpillRead();
+		byte[][] result = new byte[count][];
+		Extent[] extents = new Extent[count];
+		Integer[] order = new Integer[count];
+		int found = 0;
+		for (int i = 0; i < count; i++) {
+			extents[i] = index.get(ids[i]);
+			if (extents[i] != null) {
+				order[found++] = i;
+			}
+		}
+		Arrays.sort(order, 0, found, (a, b) -> {
+			Extent x = extents[a];
+			Extent y = extents[b];
+			int c = Integer.compare(x.segment.number, y.segment.number);
+			return (c != 0) ? c : Integer.compare(x.offset, y.offset);
+		});
+
+		long bytes = 0;
+		int i = 0;
+		while (i < found) {
+			Extent first = extents[order[i]];
+			int end = first.offset + first.length;
+			int last = i + 1;
+			while (last < found) {
+				Extent next = extents[order[last]];
+				if (next.segment != first.segment || next.offset > end + COALESCE_GAP) {
+					break;
+				}
+				end = Math.max(end, next.offset + next.length);
+				last++;
+			}
+
+			ByteBuffer run = first.segment.map.duplicate();
+			run.limit(end);
+			for (; i < last; i++) {
+				int j = order[i];
+				run.position(extents[j].offset);
+				result[j] = new byte[extents[j].length];
+				run.get(result[j]);
+				bytes += extents[j].length;
+			}
+		}
+		commit(event, (count == 0) ? -1 : ids[0], count, bytes);
+		return result;
+	}
+
+	private static ByteBuffer view(Extent extent) {
+		ByteBuffer src = extent.segment.map.duplicate();
+		src.limit(extent.offset + extent.length);
+		src.position(extent.offset);
+		return src;
+	}
+
+	public boolean contains(int id) {
+		return index.containsKey(id);
+	}
+
+	Extent extent(int id) {
+		return index.get(id);
+	}
+
+	// fsync all segments written so far
+	public synchronized void force() throws IOException {
+		for (Segment segment : segments) {
+			segment.channel.force(false);
+		}
+	}
+
+	@GuardedBy("this")
+	private Segment segmentFor(int length) throws IOException {
+		if (active != null && active.capacity - active.writePosition >= length) {
+			return active;
+		}
+		Segment segment = newSegment(Math.max(segmentSize, length));
+		// an oversized value does not displace the segment that is being filled
+		if (length <= segmentSize || active == null) {
+			active = segment;
+		}
+		return segment;
+	}
+
+	@GuardedBy("this")
+	private Segment newSegment(int capacity) throws IOException {
+		int number = nextSegmentNumber++;
+		Path path = directory.resolve(String.format("%08d%s", number, SEGMENT_SUFFIX));
+		Segment segment = new Segment(number, path, capacity);
+		segments.add(segment);
+		return segment;
+	}
+
+	/**
+	 * Closes all segment channels. Mappings are released by GC, which is fine for unlinked files.
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		IOException failure = null;
+		for (Segment segment : segments) {
+			try {
+				segment.channel.close();
+			} catch (IOException e) {
+				failure = e;
+			}
+		}
+		index.clear();
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+	/**
+	 * Closes the store and deletes its segment files and the directory (if it is empty afterwards).
+	 */
+	public synchronized void destroy() throws IOException {
+		close();
+		for (Segment segment : segments) {
+			Files.deleteIfExists(segment.path);
+		}
+		segments.clear();
+		active = null;
+		try (Stream<Path> rest = Files.list(directory)) {
+			if (!rest.findAny().isPresent()) {
+				Files.delete(directory);
+			}
+		}
+	}
+}
@@ -0,0 +1,179 @@
+package com.palamsoft.cache;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.ToIntFunction;
+
+import org.apache.log4j.Logger;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+
+/**
+ *
+ * Group commit of new values in the durable modes of a persistent {@link MyCache}, see {@link Durability}. Puts
+ * register their nodes, and the thread that runs the writer hands everything registered since the last commit
+ * to the committer at once, so the group shares one fsync of the segments and one of the journal.
+ *
+ * pending() completes with the group that covers everything registered so far. A failed group is put back in
+ * front of the queue and retried, so a later group only completes once every node before it is durable.
+ *
+ */
+@ThreadSafe
+final class SpillWriter<T> implements Runnable {
+
+	interface Committer<T> {
+		// Writes the values of group and logs their index entries, group is durable once it returns
+		void commit(List<T> group) throws IOException;
+	}
+
+	private final Logger logger = Logger.getLogger(this.getClass());
+
+	private final CompletableFuture<Void> done = CompletableFuture.completedFuture(null);
+
+	private final Committer<T> committer;
+	private final ToIntFunction<? super T> sizeOf;
+	// 0 in write-through mode: commit as soon as there is something to commit
+	private final long lagNanos;
+	// a group is due at this many queued bytes, and lagging() holds from there on
+	private final long maxQueuedBytes;
+	// how long the writer backs off after a failed commit
+	private final long retryNanos;
+
+	@GuardedBy("this")
+	private final ArrayDeque<T> queue = new ArrayDeque<>();
+	@GuardedBy("this")
+	private long queuedBytes = 0;
+	// System.nanoTime() when the oldest queued node was registered
+	@GuardedBy("this")
+	private long oldestNanos;
+	// completes when the queued nodes are durable
+	@GuardedBy("this")
+	private CompletableFuture<Void> queued = new CompletableFuture<>();
+	// the group being committed, null if there is none
+	@GuardedBy("this")
+	private CompletableFuture<Void> committing;
+	@GuardedBy("this")
+	private boolean stopping = false;
+	// set once the writer has returned, nothing registered later is committed
+	@GuardedBy("this")
+	private boolean stopped = false;
+
+	SpillWriter(Committer<T> committer, ToIntFunction<? super T> sizeOf, long lagNanos, long maxQueuedBytes,
+			long retryNanos) {
+		this.committer = committer;
+		this.sizeOf = sizeOf;
+		this.lagNanos = lagNanos;
+		this.maxQueuedBytes = maxQueuedBytes;
+		this.retryNanos = retryNanos;
+	}
+
+	synchronized void register(T node) {
+		if (queue.isEmpty()) {
+			oldestNanos = System.nanoTime();
+		}
+		queue.addLast(node);
+		queuedBytes += sizeOf.applyAsInt(node);
+		if (lagNanos == 0 || queuedBytes >= maxQueuedBytes || queue.size() == 1) {
+			notifyAll();
+		}
+	}
+
+	synchronized CompletableFuture<Void> pending() {
+		if (!queue.isEmpty()) {
+			if (stopped) {
+				CompletableFuture<Void> failed = new CompletableFuture<>();
+				failed.completeExceptionally(new MyCache.CacheUnavailableException("Cache is closed"));
+				return failed;
+			}
+			return queued;
+		}
+		return (committing != null) ? committing : done;
+	}
+
+	synchronized boolean lagging() {
+		return queuedBytes >= maxQueuedBytes;
+	}
+
+	// Commits what is queued and returns
+	synchronized void stop() {
+		stopping = true;
+		notifyAll();
+	}
+
+	@GuardedBy("this")
+	private boolean due() {
+		return lagNanos == 0 || stopping || queuedBytes >= maxQueuedBytes
+				|| System.nanoTime() - oldestNanos >= lagNanos;
+	}
+
+	// BLOCKS-UNTIL: a node is registered and due, or stop()
+	@Override
+	public void run() {
+		while (true) {
+			List<T> group;
+			CompletableFuture<Void> future;
+			synchronized (this) {
+				try {
+					while (queue.isEmpty() || !due()) {
+						if (queue.isEmpty() && stopping) {
+							stopped = true;
+							return;
+						}
+						if (queue.isEmpty()) {
+							wait();
+						} else {
+							TimeUnit.NANOSECONDS.timedWait(this, lagNanos - (System.nanoTime() - oldestNanos));
+						}
+					}
+				} catch (InterruptedException e) {
+					// nobody interrupts the writer
+					continue;
+				}
+				group = new ArrayList<>(queue);
+				queue.clear();
+				queuedBytes = 0;
+				future = queued;
+				committing = future;
+				queued = new CompletableFuture<>();
+			}
+
+			try {
+				committer.commit(group);
+			} catch (IOException | RuntimeException e) {
+				logger.error("Failed to persist " + group.size() + " nodes, retrying", e);
+				boolean giveUp;
+				synchronized (this) {
+					for (int i = group.size() - 1; i >= 0; i--) {
+						queue.addFirst(group.get(i));
+						queuedBytes += sizeOf.applyAsInt(group.get(i));
+					}
+					oldestNanos = System.nanoTime();
+					committing = null;
+					giveUp = stopping;
+					if (giveUp) {
+						// close() flushes and checkpoints them instead
+						queue.clear();
+						queuedBytes = 0;
+						stopped = true;
+					}
+				}
+				future.completeExceptionally(e);
+				if (giveUp) {
+					return;
+				}
+				LockSupport.parkNanos(retryNanos);
+				continue;
+			}
+			synchronized (this) {
+				committing = null;
+			}
+			future.complete(null);
+		}
+	}
+}
@@ -0,0 +1,137 @@
+package com.palamsoft.cache;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+
+/**
+ *
+ * Hashed timer wheel for entry expiry. A timer goes into the bucket of its deadline tick, buckets wrap around,
+ * so a timer further away than one turn of the wheel is simply skipped until its turn comes. Advancing the
+ * wheel visits only the buckets of the ticks that have passed.
+ *
+ * Each bucket is a doubly linked list, so a timer is cancelled in constant time when its entry is removed or
+ * overwritten, and the wheel does not keep the entry reachable until its deadline.
+ *
+ */
+@ThreadSafe
+final class TimerWheel<T> {
+
+	interface Expiry<T> {
+		void expired(int id, T owner);
+	}
+
+	/**
+	 * Handle of a scheduled timer, pass it to {@link TimerWheel#cancel(Timer)}.
+	 */
+	static final class Timer<T> {
+		final int id;
+		final long deadline;
+		// guarded by the wheel, owner is null once the timer has fired or has been cancelled
+		T owner;
+		Timer<T> prev;
+		Timer<T> next;
+
+		Timer(int id, T owner, long deadline) {
+			this.id = id;
+			this.owner = owner;
+			this.deadline = deadline;
+		}
+	}
+
+	private final long tickNanos;
+	// sentinels of circular lists
+	private final List<Timer<T>> buckets;
+	private final int mask;
+
+	// last tick that has been processed
+	@GuardedBy("this")
+	private long currentTick;
+
+	TimerWheel(long tickNanos, int bucketCount, long nowNanos) {
+		if (Integer.bitCount(bucketCount) != 1) {
+			throw new IllegalArgumentException("Bucket count must be a power of two: " + bucketCount);
+		}
+		this.tickNanos = tickNanos;
+		this.mask = bucketCount - 1;
+		this.buckets = new ArrayList<>(bucketCount);
+		for (int i = 0; i < bucketCount; i++) {
+			Timer<T> sentinel = new Timer<>(-1, null, Long.MAX_VALUE);
+			sentinel.prev = sentinel;
+			sentinel.next = sentinel;
+			buckets.add(sentinel);
+		}
+		this.currentTick = nowNanos / tickNanos;
+	}
+
+	synchronized Timer<T> schedule(int id, T owner, long deadlineNanos) {
+		// a deadline in a tick that has been processed already fires on the next advance
+		long tick = Math.max(deadlineNanos / tickNanos, currentTick + 1);
+		Timer<T> sentinel = buckets.get((int) tick & mask);
+		Timer<T> timer = new Timer<>(id, owner, deadlineNanos);
+		timer.prev = sentinel.prev;
+		timer.next = sentinel;
+		sentinel.prev.next = timer;
+		sentinel.prev = timer;
+		return timer;
+	}
+
+	/**
+	 * Removes a timer that has not fired yet, does nothing if it has fired or has been cancelled already.
+	 */
+	synchronized void cancel(Timer<T> timer) {
+		if (timer.owner != null) {
+			unlink(timer);
+		}
+	}
+
+	// under the wheel's lock
+	private static <T> void unlink(Timer<T> timer) {
+		timer.prev.next = timer.next;
+		timer.next.prev = timer.prev;
+		timer.prev = null;
+		timer.next = null;
+		timer.owner = null;
+	}
+
+	/**
+	 * Fires every timer whose deadline is not after now. Expiry is called outside of the wheel's lock.
+	 */
+	void advance(long nowNanos, Expiry<T> expiry) {
+		List<Timer<T>> fired = new ArrayList<>();
+		List<T> owners = new ArrayList<>();
+		synchronized (this) {
+			long tick = nowNanos / tickNanos;
+			// after a full turn every bucket has been visited once
+			long last = Math.min(tick, currentTick + mask + 1);
+			for (long t = currentTick + 1; t <= last; t++) {
+				Timer<T> sentinel = buckets.get((int) t & mask);
+				for (Timer<T> timer = sentinel.next; timer != sentinel;) {
+					Timer<T> next = timer.next;
+					if (timer.deadline <= nowNanos) {
+						fired.add(timer);
+						owners.add(timer.owner);
+						unlink(timer);
+					}
+					timer = next;
+				}
+			}
+			currentTick = Math.max(currentTick, tick);
+		}
+		for (int i = 0; i < fired.size(); i++) {
+			expiry.expired(fired.get(i).id, owners.get(i));
+		}
+	}
+
+	synchronized int size() {
+		int size = 0;
+		for (Timer<T> sentinel : buckets) {
+			for (Timer<T> timer = sentinel.next; timer != sentinel; timer = timer.next) {
+				size++;
+			}
+		}
+		return size;
+	}
+}
@@ -0,0 +1,106 @@
+package com.palamsoft.cache;
+
+/**
+ *
+ * W-TinyLFU. New nodes enter an LRU window of 1% of resident bytes, window overflow moves to probation of a
+ * segmented LRU. An eviction compares the oldest window node with the main segment's victim and evicts the one
+ * that has been used less often, ties go against the window node. Frequencies come from a
+ * {@link FrequencySketch}, which decays, so nodes that are no longer used lose their advantage.
+ *
+ */
+final class WindowTinyLfuPolicy extends EvictionPolicy {
+
+	private static final int WINDOW = 0;
+	private static final int PROBATION = 1;
+	private static final int PROTECTED = 2;
+
+	private static final double WINDOW_SHARE = 0.01;
+	private static final double PROTECTED_SHARE = 0.8;
+
+	private final IdLists lists = new IdLists(3);
+	private final FrequencySketch sketch = new FrequencySketch(1024);
+
+	WindowTinyLfuPolicy() {
+		super("W-TinyLFU");
+	}
+
+	@Override
+	void onAccess(int id) {
+		sketch.increment(id);
+		int list = lists.listOf(id);
+		if (list == IdLists.NONE) {
+			return;
+		}
+		if (list == WINDOW) {
+			lists.moveToLast(WINDOW, id);
+			return;
+		}
+		lists.moveToLast(PROTECTED, id);
+		if (list == PROBATION) {
+			long main = lists.weight(PROBATION) + lists.weight(PROTECTED);
+			while (lists.weight(PROTECTED) > main * PROTECTED_SHARE && lists.size(PROTECTED) > 1) {
+				lists.moveToLast(PROBATION, lists.first(PROTECTED));
+			}
+		}
+	}
+
+	@Override
+	void onInsert(int id, int weight) {
+		int resident = lists.size(WINDOW) + lists.size(PROBATION) + lists.size(PROTECTED) + 1;
+		sketch.ensureCapacity(resident);
+		sketch.increment(id);
+		lists.addLast(WINDOW, id, weight);
+
+		long total = lists.weight(WINDOW) + lists.weight(PROBATION) + lists.weight(PROTECTED);
+		while (lists.weight(WINDOW) > total * WINDOW_SHARE && lists.size(WINDOW) > 1) {
+			lists.moveToLast(PROBATION, lists.first(WINDOW));
+		}
+	}
+
+	@Override
+	int frequency(int id) {
+		return sketch.frequency(id);
+	}
+
+	@Override
+	void onRestore(int[] ids, int[] frequencies, int count) {
+		sketch.ensureCapacity(count);
+		for (int i = 0; i < count; i++) {
+			for (int f = 0; f < frequencies[i]; f++) {
+				sketch.increment(ids[i]);
+			}
+		}
+	}
+
+	@Override
+	int onEvict() {
+		int candidate = lists.first(WINDOW);
+		int victim = lists.first(PROBATION);
+		if (victim == IdLists.NONE) {
+			victim = lists.first(PROTECTED);
+		}
+
+		int evicted;
+		if (victim == IdLists.NONE) {
+			evicted = candidate;
+		} else if (candidate == IdLists.NONE) {
+			evicted = victim;
+		} else {
+			evicted = (sketch.frequency(candidate) <= sketch.frequency(victim)) ? candidate : victim;
+		}
+		if (evicted != IdLists.NONE) {
+			lists.remove(evicted);
+		}
+		return evicted;
+	}
+
+	@Override
+	void onRemove(int id) {
+		lists.remove(id);
+	}
+
+	@Override
+	void onFree(int id) {
+		sketch.forget(id);
+	}
+}
@@ -0,0 +1,403 @@
+package com.palamsoft.cache.cluster;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.apache.log4j.Logger;
+
+import com.palamsoft.cache.server.CacheClient;
+import com.palamsoft.cache.server.CacheServer;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+
+/**
+ *
+ * Client of a cluster of {@link CacheServer}s. Keys are partitioned over the nodes by a consistent hash ring
+ * and every request goes straight to a node that owns its key. The nodes know nothing of each other.
+ *
+ * With a replication factor above one a put writes every owner, and gets are spread over them, which takes the
+ * load of a hot key off a single node; if an owner cannot be reached the next one is tried.
+ *
+ * {@link #addNode} and {@link #removeNode} move only the keys whose owners change, copying each from a node
+ * that listed it to every new owner that does not hold it. Requests go to the new owners right away, a get that
+ * misses there falls back to the old ones until the move is done. A key written while it is being moved may be
+ * overwritten by its moved, older value. If a key cannot be copied the change is undone, nothing has been
+ * removed yet, and it can be retried.
+ *
+ */
+@ThreadSafe
+public class ClusterClient implements Closeable {
+
+	private final Logger logger = Logger.getLogger(this.getClass());
+
+	// keys fetched from a node per pipelined getAll while moving
+	private static final int MOVE_BATCH_SIZE = 256;
+
+	private final int virtualNodes;
+
+	private final int replicas;
+
+	private final int poolSize;
+
+	private final Map<InetSocketAddress, CacheClient> clients = new ConcurrentHashMap<>();
+
+	private volatile HashRing ring;
+
+	// the ring before a membership change that is still moving keys, null otherwise
+	private volatile HashRing previous;
+
+	// serializes membership changes
+	private final Object membership = new Object();
+
+	private ClusterClient(Builder builder) {
+		this.virtualNodes = builder.virtualNodes;
+		this.replicas = builder.replicas;
+		this.poolSize = builder.poolSize;
+		this.ring = new HashRing(builder.nodes, virtualNodes);
+	}
+
+	public static Builder builder(Collection<InetSocketAddress> nodes) {
+		return new Builder(nodes);
+	}
+
+	public List<InetSocketAddress> getNodes() {
+		return ring.nodes();
+	}
+
+	public void put(String key, byte[] value) throws IOException {
+		IOException failure = null;
+		int written = 0;
+		for (InetSocketAddress node : ring.owners(bytes(key), replicas)) {
+			try {
+				client(node).put(key, value);
+				written++;
+			} catch (IOException e) {
+				logger.warn("Failed to put to " + node + ": " + e);
+				failure = e;
+			}
+		}
+		if (written == 0) {
+			throw (failure != null) ? failure : new IOException("No nodes in the cluster");
+		}
+	}
+
+	// returns null if there is no such key
+	public byte[] get(String key) throws IOException {
+		byte[] value = get(ring, key);
+		HashRing moving = previous;
+		if (value == null && moving != null) {
+			value = get(moving, key);
+		}
+		return value;
+	}
+
+	private byte[] get(HashRing ring, String key) throws IOException {
+		List<InetSocketAddress> owners = ring.owners(bytes(key), replicas);
+		if (owners.isEmpty()) {
+			throw new IOException("No nodes in the cluster");
+		}
+		int first = (owners.size() == 1) ? 0 : ThreadLocalRandom.current().nextInt(owners.size());
+		IOException failure = null;
+		for (int i = 0; i < owners.size(); i++) {
+			InetSocketAddress node = owners.get((first + i) % owners.size());
+			try {
+				return client(node).get(key);
+			} catch (IOException e) {
+				logger.warn("Failed to get from " + node + ": " + e);
+				failure = e;
+			}
+		}
+		throw failure;
+	}
+
+	/**
+	 * Groups the keys by primary owner and pipelines each group to its node. The result has the values in key
+	 * order, null for a missing key.
+	 */
+	public List<byte[]> getAll(List<String> keys) throws IOException {
+		HashRing ring = this.ring;
+		Map<InetSocketAddress, List<Integer>> byNode = new LinkedHashMap<>();
+		for (int i = 0; i < keys.size(); i++) {
+			List<InetSocketAddress> owners = ring.owners(bytes(keys.get(i)), 1);
+			if (owners.isEmpty()) {
+				throw new IOException("No nodes in the cluster");
+			}
+			byNode.computeIfAbsent(owners.get(0), node -> new ArrayList<>()).add(i);
+		}
+
+		List<byte[]> values = new ArrayList<>(keys.size());
+		for (int i = 0; i < keys.size(); i++) {
+			values.add(null);
+		}
+		for (Map.Entry<InetSocketAddress, List<Integer>> entry : byNode.entrySet()) {
+			List<String> group = new ArrayList<>(entry.getValue().size());
+			for (int i : entry.getValue()) {
+				group.add(keys.get(i));
+			}
+			List<byte[]> groupValues;
+			try {
+				groupValues = client(entry.getKey()).getAll(group);
+			} catch (IOException e) {
+				if (replicas == 1) {
+					throw e;
+				}
+				// one by one, over the replicas
+				groupValues = new ArrayList<>(group.size());
+				for (String key : group) {
+					groupValues.add(get(ring, key));
+				}
+			}
+			for (int j = 0; j < group.size(); j++) {
+				values.set(entry.getValue().get(j), groupValues.get(j));
+			}
+		}
+		if (previous != null) {
+			for (int i = 0; i < keys.size(); i++) {
+				if (values.get(i) == null) {
+					values.set(i, get(keys.get(i)));
+				}
+			}
+		}
+		return values;
+	}
+
+	// Like put, fails only if no owner could be reached
+	public boolean remove(String key) throws IOException {
+		List<InetSocketAddress> owners = new ArrayList<>(ring.owners(bytes(key), replicas));
+		HashRing moving = previous;
+		if (moving != null) {
+			owners.addAll(moving.owners(bytes(key), replicas));
+		}
+		IOException failure = null;
+		int reached = 0;
+		boolean removed = false;
+		for (InetSocketAddress node : owners) {
+			try {
+				removed |= client(node).remove(key);
+				reached++;
+			} catch (IOException e) {
+				logger.warn("Failed to remove from " + node + ": " + e);
+				failure = e;
+			}
+		}
+		if (reached == 0) {
+			throw (failure != null) ? failure : new IOException("No nodes in the cluster");
+		}
+		return removed;
+	}
+
+	/**
+	 * Adds a running node and moves to it the keys it now owns. Returns the number of values copied.
+	 */
+	public int addNode(InetSocketAddress node) throws IOException {
+		synchronized (membership) {
+			if (ring.nodes().contains(node)) {
+				throw new IllegalArgumentException("Already in the cluster: " + node);
+			}
+			return move(ring.with(node, virtualNodes));
+		}
+	}
+
+	/**
+	 * Moves the keys of node to their new owners and takes it out of the cluster. If node cannot be reached its
+	 * keys are copied from their replicas, or lost with a replication factor of one. Returns the number of
+	 * values copied.
+	 */
+	public int removeNode(InetSocketAddress node) throws IOException {
+		synchronized (membership) {
+			if (!ring.nodes().contains(node)) {
+				throw new IllegalArgumentException("Not in the cluster: " + node);
+			}
+			int moved = move(ring.without(node, virtualNodes));
+			CacheClient client = clients.remove(node);
+			if (client != null) {
+				client.close();
+			}
+			return moved;
+		}
+	}
+
+	// Copies every key to its new owners first. If a copy fails the cluster goes back to the current ring with
+	// nothing removed, and the change can be retried. Copies on nodes that no longer own their key are removed
+	// at the end, and only for keys whose new owners have confirmed their copy.
+	@GuardedBy("membership")
+	private int move(HashRing next) throws IOException {
+		HashRing current = ring;
+		previous = current;
+		ring = next;
+		Map<InetSocketAddress, List<String>> staleByNode = new HashMap<>();
+		int moved = 0;
+		try {
+			// every node that listed a key holds it, whether it owns it or not: a partly failed put may have
+			// missed an owner
+			Map<String, List<InetSocketAddress>> holders = new HashMap<>();
+			for (InetSocketAddress node : current.nodes()) {
+				List<String> keys;
+				try {
+					keys = client(node).keys();
+				} catch (IOException e) {
+					logger.warn("Cannot list the keys of " + node + ", copying from replicas", e);
+					continue;
+				}
+				for (String key : keys) {
+					holders.computeIfAbsent(key, k -> new ArrayList<>(replicas)).add(node);
+				}
+			}
+
+			Map<InetSocketAddress, List<String>> copiesByNode = new HashMap<>();
+			List<String> settled = new ArrayList<>();
+			for (Map.Entry<String, List<InetSocketAddress>> entry : holders.entrySet()) {
+				String key = entry.getKey();
+				List<InetSocketAddress> missing = new ArrayList<>(next.owners(bytes(key), replicas));
+				missing.removeAll(entry.getValue());
+				if (missing.isEmpty()) {
+					settled.add(key);
+				} else {
+					copiesByNode.computeIfAbsent(copier(current, key, entry.getValue()), node -> new ArrayList<>())
+							.add(key);
+				}
+			}
+			for (Map.Entry<InetSocketAddress, List<String>> entry : copiesByNode.entrySet()) {
+				moved += copy(entry.getKey(), entry.getValue(), holders, next, settled);
+			}
+
+			for (String key : settled) {
+				List<InetSocketAddress> newOwners = next.owners(bytes(key), replicas);
+				for (InetSocketAddress node : holders.get(key)) {
+					if (!newOwners.contains(node)) {
+						staleByNode.computeIfAbsent(node, n -> new ArrayList<>()).add(key);
+					}
+				}
+			}
+		} catch (IOException | RuntimeException e) {
+			ring = current;
+			previous = null;
+			throw e;
+		}
+
+		previous = null;
+		for (Map.Entry<InetSocketAddress, List<String>> entry : staleByNode.entrySet()) {
+			removeStale(entry.getKey(), entry.getValue());
+		}
+		if (logger.isInfoEnabled()) {
+			logger.info("Moved " + moved + " values, cluster is now " + next.nodes());
+		}
+		return moved;
+	}
+
+	// The holder a key is copied from: its first old owner that listed it, any holder otherwise
+	private InetSocketAddress copier(HashRing current, String key, List<InetSocketAddress> holders) {
+		for (InetSocketAddress owner : current.owners(bytes(key), replicas)) {
+			if (holders.contains(owner)) {
+				return owner;
+			}
+		}
+		return holders.get(0);
+	}
+
+	// Copies keys from node to the new owners that do not hold them yet, and adds the keys whose copies were all
+	// written to settled. A key removed since it was listed is not settled, its other holders keep their copies.
+	private int copy(InetSocketAddress node, List<String> keys, Map<String, List<InetSocketAddress>> holders,
+			HashRing next, List<String> settled) throws IOException {
+		CacheClient source = client(node);
+		int moved = 0;
+		for (int from = 0; from < keys.size(); from += MOVE_BATCH_SIZE) {
+			List<String> batch = keys.subList(from, Math.min(keys.size(), from + MOVE_BATCH_SIZE));
+			List<byte[]> values = source.getAll(batch);
+			for (int i = 0; i < batch.size(); i++) {
+				String key = batch.get(i);
+				byte[] value = values.get(i);
+				if (value == null) {
+					continue;
+				}
+				for (InetSocketAddress target : next.owners(bytes(key), replicas)) {
+					if (!holders.get(key).contains(target)) {
+						client(target).put(key, value);
+						moved++;
+					}
+				}
+				settled.add(key);
+			}
+		}
+		return moved;
+	}
+
+	// A key left behind only takes memory on a node that no longer serves it, so a failure is not fatal here
+	private void removeStale(InetSocketAddress node, List<String> stale) {
+		CacheClient source = client(node);
+		try {
+			for (String key : stale) {
+				source.remove(key);
+			}
+		} catch (IOException e) {
+			logger.warn("Failed to remove moved keys from " + node + ": " + e);
+		}
+	}
+
+	private CacheClient client(InetSocketAddress node) {
+		return clients.computeIfAbsent(node, address -> new CacheClient(address, poolSize));
+	}
+
+	private static byte[] bytes(String key) {
+		return key.getBytes(StandardCharsets.UTF_8);
+	}
+
+	@Override
+	public void close() {
+		for (CacheClient client : clients.values()) {
+			client.close();
+		}
+		clients.clear();
+	}
+
+	public static class Builder {
+
+		private final List<InetSocketAddress> nodes;
+
+		private int virtualNodes = 160;
+
+		private int replicas = 1;
+
+		private int poolSize = 4;
+
+		private Builder(Collection<InetSocketAddress> nodes) {
+			this.nodes = new ArrayList<>(nodes);
+		}
+
+		// points per node on the ring, more give a more even split
+		public Builder virtualNodes(int virtualNodes) {
+			this.virtualNodes = virtualNodes;
+			return this;
+		}
+
+		// nodes that hold each key
+		public Builder replicas(int replicas) {
+			if (replicas < 1) {
+				throw new IllegalArgumentException("Invalid replication factor: " + replicas);
+			}
+			this.replicas = replicas;
+			return this;
+		}
+
+		// connections per node
+		public Builder poolSize(int poolSize) {
+			this.poolSize = poolSize;
+			return this;
+		}
+
+		public ClusterClient build() {
+			return new ClusterClient(this);
+		}
+	}
+}
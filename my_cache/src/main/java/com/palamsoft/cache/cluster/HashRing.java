@@ -0,0 +1,99 @@
+package com.palamsoft.cache.cluster;
+
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import net.jcip.annotations.Immutable;
+
+/**
+ *
+ * Consistent hash ring over cache nodes. Every node is placed at virtualNodes points of a 64-bit ring, a key
+ * belongs to the first node clockwise from its hash and its replicas to the next distinct nodes. Adding or
+ * removing a node only changes the owners of the keys next to its points, about 1/n of them.
+ *
+ */
+@Immutable
+final class HashRing {
+
+	private final TreeMap<Long, InetSocketAddress> points = new TreeMap<>();
+
+	private final List<InetSocketAddress> nodes;
+
+	HashRing(Collection<InetSocketAddress> nodes, int virtualNodes) {
+		if (virtualNodes < 1) {
+			throw new IllegalArgumentException("Invalid virtual node count: " + virtualNodes);
+		}
+		this.nodes = Collections.unmodifiableList(new ArrayList<>(nodes));
+		for (InetSocketAddress node : this.nodes) {
+			String name = node.getHostString() + ":" + node.getPort();
+			for (int i = 0; i < virtualNodes; i++) {
+				// a collision just leaves the point to one of the nodes
+				points.put(hash((name + "#" + i).getBytes(StandardCharsets.UTF_8)), node);
+			}
+		}
+	}
+
+	List<InetSocketAddress> nodes() {
+		return nodes;
+	}
+
+	HashRing with(InetSocketAddress node, int virtualNodes) {
+		List<InetSocketAddress> grown = new ArrayList<>(nodes);
+		grown.add(node);
+		return new HashRing(grown, virtualNodes);
+	}
+
+	HashRing without(InetSocketAddress node, int virtualNodes) {
+		List<InetSocketAddress> shrunk = new ArrayList<>(nodes);
+		shrunk.remove(node);
+		return new HashRing(shrunk, virtualNodes);
+	}
+
+	// The owners of key, primary first, at most count and at most the number of nodes
+	List<InetSocketAddress> owners(byte[] key, int count) {
+		int n = Math.min(count, nodes.size());
+		List<InetSocketAddress> owners = new ArrayList<>(n);
+		if (n == 0) {
+			return owners;
+		}
+		long h = hash(key);
+		// clockwise from h, wrapping around
+		if (!collect(points.tailMap(h, true), owners, n)) {
+			collect(points.headMap(h, false), owners, n);
+		}
+		return owners;
+	}
+
+	// returns true once owners has n nodes
+	private static boolean collect(Map<Long, InetSocketAddress> part, List<InetSocketAddress> owners, int n) {
+		for (InetSocketAddress node : part.values()) {
+			if (!owners.contains(node)) {
+				owners.add(node);
+				if (owners.size() == n) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	// FNV-1a, then the murmur3 finalizer to spread the bits of short keys
+	static long hash(byte[] key) {
+		long h = 0xcbf29ce484222325L;
+		for (byte b : key) {
+			h = (h ^ (b & 0xff)) * 0x100000001b3L;
+		}
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+}
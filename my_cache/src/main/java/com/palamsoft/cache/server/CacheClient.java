@@ -0,0 +1,255 @@
+package com.palamsoft.cache.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+
+import com.palamsoft.cache.MyCache.CacheUnavailableException;
+
+import net.jcip.annotations.ThreadSafe;
+
+/**
+ *
+ * Client of {@link CacheServer}. Keeps a pool of up to poolSize connections, opened on demand; a call takes one
+ * for the duration of its request and waits if all are in use. A connection goes back to the pool once every
+ * response to its requests has been read, whatever their status, and is dropped otherwise, since its stream
+ * position is unknown.
+ *
+ * A full cache fails a put with {@link CacheUnavailableException}, as {@link com.palamsoft.cache.MyCache} does.
+ *
+ */
+@ThreadSafe
+public class CacheClient implements Closeable {
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	// requests sent ahead of their responses, well below what the server accepts before it stops reading
+	private static final int PIPELINE_WINDOW = 128;
+
+	private final InetSocketAddress address;
+
+	private final BlockingQueue<Connection> idle;
+
+	// one permit per connection that may be open
+	private final Semaphore permits;
+
+	private volatile boolean closed = false;
+
+	public CacheClient(InetSocketAddress address, int poolSize) {
+		if (poolSize < 1) {
+			throw new IllegalArgumentException("Invalid pool size: " + poolSize);
+		}
+		this.address = address;
+		this.idle = new ArrayBlockingQueue<>(poolSize);
+		this.permits = new Semaphore(poolSize);
+	}
+
+	public byte[] get(String key) throws IOException {
+		return call(connection -> {
+			connection.send(Protocol.GET, key, null);
+			return connection.receive();
+		});
+	}
+
+	public void put(String key, byte[] value) throws IOException {
+		call(connection -> {
+			connection.send(Protocol.PUT, key, value);
+			return connection.receive();
+		});
+	}
+
+	// Returns false if there was no such key
+	public boolean remove(String key) throws IOException {
+		return call(connection -> {
+			connection.send(Protocol.REMOVE, key, null);
+			return connection.receive();
+		}) != null;
+	}
+
+	// The keys on the server, see MyCache.getKeys()
+	public List<String> keys() throws IOException {
+		byte[] body = call(connection -> {
+			connection.send(Protocol.KEYS, "", null);
+			return connection.receive(Protocol.MAX_KEYS_SIZE);
+		});
+		List<String> keys = new ArrayList<>();
+		ByteBuffer buffer = ByteBuffer.wrap(body);
+		while (buffer.hasRemaining()) {
+			int length = buffer.getShort() & 0xffff;
+			keys.add(new String(body, buffer.position(), length, StandardCharsets.UTF_8));
+			buffer.position(buffer.position() + length);
+		}
+		return keys;
+	}
+
+	/**
+	 * Pipelines the gets over one connection, up to PIPELINE_WINDOW ahead of the responses. The result has the
+	 * values in key order, null for a missing key.
+	 */
+	public List<byte[]> getAll(List<String> keys) throws IOException {
+		return call(connection -> {
+			List<byte[]> values = new ArrayList<>(keys.size());
+			int sent = 0;
+			for (String key : keys) {
+				if (sent - values.size() == PIPELINE_WINDOW) {
+					values.add(connection.receive());
+				}
+				connection.send(Protocol.GET, key, null);
+				sent++;
+			}
+			while (values.size() < sent) {
+				values.add(connection.receive());
+			}
+			return values;
+		});
+	}
+
+	private interface Exchange<T> {
+		T run(Connection connection) throws IOException;
+	}
+
+	private <T> T call(Exchange<T> exchange) throws IOException {
+		Connection connection = acquire();
+		try {
+			return exchange.run(connection);
+		} finally {
+			release(connection);
+		}
+	}
+
+	private Connection acquire() throws IOException {
+		if (closed) {
+			throw new IOException("Client is closed");
+		}
+		try {
+			permits.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted waiting for a connection", e);
+		}
+		Connection connection = idle.poll();
+		if (connection != null) {
+			return connection;
+		}
+		try {
+			return new Connection(address);
+		} catch (IOException e) {
+			permits.release();
+			throw e;
+		}
+	}
+
+	// An exchange that threw may have left responses unread, then its connection is not reused. One that threw
+	// on a complete response, e.g. UNAVAILABLE, leaves the connection in step.
+	private void release(Connection connection) {
+		if (!connection.reusable() || closed || !idle.offer(connection)) {
+			connection.close();
+		}
+		permits.release();
+	}
+
+	@Override
+	public void close() {
+		closed = true;
+		Connection connection;
+		while ((connection = idle.poll()) != null) {
+			connection.close();
+		}
+	}
+
+	private static final class Connection {
+		final Socket socket;
+		final DataOutputStream out;
+		final DataInputStream in;
+		// requests whose response has not been read in full
+		int pending = 0;
+		// the server closes the connection after an ERROR response
+		boolean broken = false;
+
+		Connection(InetSocketAddress address) throws IOException {
+			socket = new Socket();
+			try {
+				socket.setTcpNoDelay(true);
+				socket.connect(address);
+				out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE));
+				in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE));
+			} catch (IOException e) {
+				socket.close();
+				throw e;
+			}
+		}
+
+		// Buffers a request, receive() flushes
+		void send(byte op, String key, byte[] value) throws IOException {
+			byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+			if (keyBytes.length > Protocol.MAX_KEY_SIZE) {
+				throw new IllegalArgumentException("Key too long: " + keyBytes.length + " bytes");
+			}
+			if (value != null && value.length > Protocol.MAX_VALUE_SIZE) {
+				throw new IllegalArgumentException("Value too large: " + value.length + " bytes");
+			}
+			pending++;
+			out.writeByte(op);
+			out.writeShort(keyBytes.length);
+			out.writeInt((value == null) ? 0 : value.length);
+			out.write(keyBytes);
+			if (value != null) {
+				out.write(value);
+			}
+		}
+
+		// Returns the body of an OK response, null for NOT_FOUND
+		byte[] receive() throws IOException {
+			return receive(Protocol.MAX_VALUE_SIZE);
+		}
+
+		byte[] receive(int maxBodySize) throws IOException {
+			out.flush();
+			byte status = in.readByte();
+			int length = in.readInt();
+			if (length < 0 || length > maxBodySize) {
+				throw new IOException("Malformed response, body of " + length + " bytes");
+			}
+			byte[] body = new byte[length];
+			in.readFully(body);
+			pending--;
+			broken |= status == Protocol.ERROR;
+			switch (status) {
+			case Protocol.OK:
+				return body;
+			case Protocol.NOT_FOUND:
+				return null;
+			case Protocol.UNAVAILABLE:
+				throw new CacheUnavailableException("Cache is full. Please retry later");
+			case Protocol.ERROR:
+				throw new IOException("Server error: " + new String(body, StandardCharsets.UTF_8));
+			default:
+				throw new IOException("Malformed response, status " + status);
+			}
+		}
+
+		boolean reusable() {
+			return pending == 0 && !broken;
+		}
+
+		void close() {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// nothing to release beyond the socket
+			}
+		}
+	}
+}
@@ -0,0 +1,429 @@
+package com.palamsoft.cache.server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.apache.log4j.Logger;
+
+import com.palamsoft.cache.MyCache;
+import com.palamsoft.cache.MyCache.CacheUnavailableException;
+
+import net.jcip.annotations.ThreadSafe;
+
+/**
+ *
+ * Serves a {@link MyCache} over TCP with the binary protocol described in {@link Protocol}. One selector thread
+ * accepts, reads and writes all connections without blocking.
+ *
+ * Requests use the cache's async API: a hit or a put that fits completes inline, a cold read or a put that waits
+ * for room completes on the cache's threads, which hand the connection back to the selector. Responses are kept
+ * in request order per connection. A GET response is written with one gathering write of its header and a view
+ * of the cached value, without copying the value into a response buffer.
+ *
+ * A connection stops being read while it has MAX_PIPELINED responses outstanding, so a client that sends
+ * without reading cannot make the server queue without bound.
+ *
+ */
+@ThreadSafe
+public class CacheServer implements Closeable {
+
+	private final Logger logger = Logger.getLogger(this.getClass());
+
+	private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+	// responses a connection may have outstanding before the server stops reading from it
+	private static final int MAX_PIPELINED = 1024;
+
+	// responses written with one gathering write at most
+	private static final int WRITE_BATCH = 64;
+
+	private final MyCache cache;
+
+	private final Selector selector;
+
+	private final ServerSocketChannel server;
+
+	private final Thread selectorThread;
+
+	// connections with responses completed off the selector thread
+	private final ConcurrentLinkedQueue<Connection> completed = new ConcurrentLinkedQueue<>();
+
+	private volatile boolean closed = false;
+
+	/**
+	 * Binds to address (port 0 picks a free one) and starts serving. Closing the server does not close cache.
+	 */
+	public CacheServer(MyCache cache, InetSocketAddress address) throws IOException {
+		this.cache = cache;
+		this.selector = Selector.open();
+		this.server = ServerSocketChannel.open();
+		try {
+			server.bind(address);
+			server.configureBlocking(false);
+			server.register(selector, SelectionKey.OP_ACCEPT);
+		} catch (IOException e) {
+			server.close();
+			selector.close();
+			throw e;
+		}
+		selectorThread = new Thread(this::run, "my_cache-server");
+		selectorThread.setDaemon(true);
+		selectorThread.start();
+		if (logger.isInfoEnabled()) {
+			logger.info("Serving cache on " + server.getLocalAddress());
+		}
+	}
+
+	public int getPort() throws IOException {
+		return ((InetSocketAddress) server.getLocalAddress()).getPort();
+	}
+
+	private void run() {
+		try {
+			while (!closed) {
+				selector.select();
+				Connection connection;
+				while ((connection = completed.poll()) != null) {
+					if (connection.channel.isOpen()) {
+						try {
+							connection.serve();
+						} catch (RuntimeException e) {
+							connection.failed(e);
+						}
+					}
+				}
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					if (!key.isValid()) {
+						continue;
+					}
+					if (key.isAcceptable()) {
+						accept();
+						continue;
+					}
+					connection = (Connection) key.attachment();
+					try {
+						if (key.isReadable()) {
+							connection.read();
+						} else if (key.isWritable()) {
+							connection.serve();
+						}
+					} catch (RuntimeException e) {
+						connection.failed(e);
+					}
+				}
+			}
+		} catch (IOException | ClosedSelectorException e) {
+			if (!closed) {
+				logger.error("Cache server stopped", e);
+			}
+		}
+	}
+
+	private void accept() {
+		SocketChannel channel = null;
+		try {
+			channel = server.accept();
+			if (channel == null) {
+				return;
+			}
+			channel.configureBlocking(false);
+			channel.socket().setTcpNoDelay(true);
+			Connection connection = new Connection(channel);
+			connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+		} catch (IOException e) {
+			// out of file descriptors, or the client is gone already: the server goes on with the others
+			logger.warn("Failed to accept a connection", e);
+			if (channel != null) {
+				try {
+					channel.close();
+				} catch (IOException closing) {
+					logger.warn("Failed to close connection", closing);
+				}
+			}
+		}
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		selector.wakeup();
+		try {
+			selectorThread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		for (SelectionKey key : selector.keys()) {
+			key.channel().close();
+		}
+		selector.close();
+	}
+
+	// One response, the header and the body once it is known. ready publishes them.
+	private static final class Response {
+		final ByteBuffer header = ByteBuffer.allocate(Protocol.RESPONSE_HEADER_SIZE);
+		ByteBuffer body;
+		volatile boolean ready;
+
+		void complete(byte status, ByteBuffer body) {
+			header.put(status).putInt((body == null) ? 0 : body.remaining()).flip();
+			this.body = body;
+			ready = true;
+		}
+
+		boolean written() {
+			return !header.hasRemaining() && (body == null || !body.hasRemaining());
+		}
+	}
+
+	// Everything but complete() runs on the selector thread
+	private final class Connection {
+		final SocketChannel channel;
+		SelectionKey key;
+		ByteBuffer in = ByteBuffer.allocate(READ_BUFFER_SIZE);
+		final ArrayDeque<Response> responses = new ArrayDeque<>();
+		final ByteBuffer[] gather = new ByteBuffer[WRITE_BATCH * 2];
+		// a malformed request was answered, nothing after it is read
+		boolean closing = false;
+
+		Connection(SocketChannel channel) {
+			this.channel = channel;
+		}
+
+		void read() {
+			try {
+				if (channel.read(in) < 0) {
+					close();
+					return;
+				}
+			} catch (IOException e) {
+				close();
+				return;
+			}
+			serve();
+		}
+
+		// Dispatches the buffered requests the pipeline has room for and writes what is ready
+		void serve() {
+			boolean paused;
+			do {
+				paused = false;
+				in.flip();
+				while (!closing) {
+					if (responses.size() >= MAX_PIPELINED) {
+						paused = true;
+						break;
+					}
+					if (!parse()) {
+						break;
+					}
+				}
+				in.compact();
+				if (in.position() == 0 && in.capacity() > READ_BUFFER_SIZE) {
+					// done with a large request
+					in = ByteBuffer.allocate(READ_BUFFER_SIZE);
+				}
+				if (!write()) {
+					return;
+				}
+			} while (paused && responses.size() < MAX_PIPELINED);
+
+			if (closing && responses.isEmpty()) {
+				close();
+				return;
+			}
+			int ops = (closing || responses.size() >= MAX_PIPELINED) ? 0 : SelectionKey.OP_READ;
+			if (!responses.isEmpty() && responses.peekFirst().ready) {
+				// the socket did not take all of it
+				ops |= SelectionKey.OP_WRITE;
+			}
+			key.interestOps(ops);
+		}
+
+		// Dispatches the request at the front of in, returns false if it has not fully arrived
+		boolean parse() {
+			if (in.remaining() < Protocol.REQUEST_HEADER_SIZE) {
+				return false;
+			}
+			int start = in.position();
+			byte op = in.get(start);
+			int keyLength = in.getShort(start + 1) & 0xffff;
+			int valueLength = in.getInt(start + 3);
+			if (op < Protocol.GET || op > Protocol.KEYS || valueLength < 0 || valueLength > Protocol.MAX_VALUE_SIZE
+					|| (op != Protocol.PUT && valueLength != 0)) {
+				reject("Malformed request");
+				return false;
+			}
+			int size = Protocol.REQUEST_HEADER_SIZE + keyLength + valueLength;
+			if (in.remaining() < size) {
+				if (size > in.capacity()) {
+					// a large value: grow to hold the whole request
+					ByteBuffer bigger = ByteBuffer.allocate(size);
+					bigger.put(in);
+					bigger.flip();
+					in = bigger;
+				}
+				return false;
+			}
+
+			byte[] requestKey = new byte[keyLength];
+			in.position(start + Protocol.REQUEST_HEADER_SIZE);
+			in.get(requestKey);
+			Response response = new Response();
+			responses.addLast(response);
+			switch (op) {
+			case Protocol.GET:
+				reply(response, cache.getBufferAsync(requestKey));
+				break;
+			case Protocol.PUT:
+				byte[] value = new byte[valueLength];
+				in.get(value);
+				reply(response, cache.putAsync(requestKey, value).thenApply(ignored -> EMPTY));
+				break;
+			case Protocol.REMOVE:
+				reply(response, cache.removeAsync(requestKey).thenApply(removed -> removed ? EMPTY : null));
+				break;
+			default:
+				// an admin request, the scan runs on the cache's I/O threads like a cold read
+				reply(response, cache.getKeysAsync().thenApply(CacheServer::encodeKeys));
+			}
+			return true;
+		}
+
+		void reply(Response response, CompletableFuture<ByteBuffer> future) {
+			if (future.isDone()) {
+				complete(response, future);
+				return;
+			}
+			future.whenComplete((value, failure) -> {
+				complete(response, future);
+				completed.add(this);
+				selector.wakeup();
+			});
+		}
+
+		// any thread
+		void complete(Response response, CompletableFuture<ByteBuffer> future) {
+			try {
+				ByteBuffer value = future.join();
+				if (value == null) {
+					response.complete(Protocol.NOT_FOUND, null);
+				} else {
+					response.complete(Protocol.OK, (value == EMPTY) ? null : value);
+				}
+			} catch (CompletionException e) {
+				if (e.getCause() instanceof CacheUnavailableException) {
+					response.complete(Protocol.UNAVAILABLE, null);
+				} else {
+					logger.error("Request failed", e.getCause());
+					response.complete(Protocol.ERROR, message(String.valueOf(e.getCause())));
+				}
+			}
+		}
+
+		void reject(String reason) {
+			Response response = new Response();
+			response.complete(Protocol.ERROR, message(reason));
+			responses.addLast(response);
+			closing = true;
+			in.position(in.limit());
+		}
+
+		// Writes the ready responses at the head of the queue until one is not, or the socket is full.
+		// Returns false if the connection was closed.
+		boolean write() {
+			try {
+				while (true) {
+					int count = 0;
+					long bytes = 0;
+					Iterator<Response> pending = responses.iterator();
+					for (int n = 0; n < WRITE_BATCH && pending.hasNext(); n++) {
+						Response response = pending.next();
+						if (!response.ready) {
+							break;
+						}
+						gather[count++] = response.header;
+						bytes += response.header.remaining();
+						if (response.body != null) {
+							gather[count++] = response.body;
+							bytes += response.body.remaining();
+						}
+					}
+					if (count == 0) {
+						return true;
+					}
+					long written = channel.write(gather, 0, count);
+					Arrays.fill(gather, 0, count, null);
+					while (!responses.isEmpty() && responses.peekFirst().ready && responses.peekFirst().written()) {
+						responses.pollFirst();
+					}
+					if (written < bytes) {
+						// the socket is full, OP_WRITE resumes
+						return true;
+					}
+				}
+			} catch (IOException e) {
+				close();
+				return false;
+			}
+		}
+
+		// A bug in serving one connection closes that connection only, the selector thread goes on
+		void failed(RuntimeException e) {
+			logger.error("Closing connection after a failure", e);
+			close();
+		}
+
+		void close() {
+			key.cancel();
+			try {
+				channel.close();
+			} catch (IOException e) {
+				logger.warn("Failed to close connection", e);
+			}
+		}
+	}
+
+	private static ByteBuffer encodeKeys(List<byte[]> keys) {
+		long size = 0;
+		for (byte[] key : keys) {
+			size += 2 + key.length;
+		}
+		if (size > Protocol.MAX_KEYS_SIZE) {
+			throw new IllegalStateException("Keys take " + size + " bytes, more than a response can carry");
+		}
+		ByteBuffer body = ByteBuffer.allocate((int) size);
+		for (byte[] key : keys) {
+			body.putShort((short) key.length).put(key);
+		}
+		body.flip();
+		return body;
+	}
+
+	// marks a completed put, which has no body
+	private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+	private static ByteBuffer message(String text) {
+		return ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8));
+	}
+}
@@ -0,0 +1,42 @@
+package com.palamsoft.cache.server;
+
+/**
+ *
+ * Wire format of {@link CacheServer}, all integers big-endian.
+ *
+ * Request: op (1 byte), key length (2 bytes, unsigned), value length (4 bytes), key, value. Only PUT has a value.
+ * Response: status (1 byte), body length (4 bytes), body. A GET that finds the key returns the value as body,
+ * ERROR returns a UTF-8 message.
+ *
+ * KEYS lists the keys of the cache: its body is a sequence of key length (2 bytes), key. It lists every key at
+ * once, so its body has a limit of its own, MAX_KEYS_SIZE.
+ *
+ * A client may send any number of requests without waiting, responses come back in request order.
+ *
+ */
+final class Protocol {
+
+	static final byte GET = 1;
+	static final byte PUT = 2;
+	static final byte REMOVE = 3;
+	static final byte KEYS = 4;
+
+	static final byte OK = 0;
+	// GET or REMOVE of a key that is not in the cache
+	static final byte NOT_FOUND = 1;
+	// the cache has no room for a PUT, or too many reads are queued
+	static final byte UNAVAILABLE = 2;
+	// malformed request, the server closes the connection after this response
+	static final byte ERROR = 3;
+
+	static final int REQUEST_HEADER_SIZE = 7;
+	static final int RESPONSE_HEADER_SIZE = 5;
+
+	static final int MAX_KEY_SIZE = 0xffff;
+	static final int MAX_VALUE_SIZE = 64 * 1024 * 1024;
+	// body of a KEYS response, about 20 million keys of 50 bytes
+	static final int MAX_KEYS_SIZE = 1024 * 1024 * 1024;
+
+	private Protocol() {
+	}
+}
@@ -0,0 +1,47 @@
+package com.palamsoft.cache;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class CodecTest {
+
+	private final Codec codec = Codec.deflate();
+
+	@Test
+	public void roundTripsHeapAndDirectBuffers() {
+		byte[] value = new byte[10_000];
+		for (int i = 0; i < value.length; i++) {
+			value[i] = (byte) (i % 13);
+		}
+		byte[] compressed = codec.compress(ByteBuffer.wrap(value));
+		Assert.assertTrue(compressed.length < value.length / 10);
+		Assert.assertArrayEquals(value, codec.decompress(compressed, value.length));
+
+		ByteBuffer direct = ByteBuffer.allocateDirect(value.length);
+		direct.put(value).flip();
+		Assert.assertArrayEquals(compressed, codec.compress(direct));
+		Assert.assertEquals(0, direct.position());
+	}
+
+	@Test
+	public void incompressibleValuesRoundTrip() {
+		byte[] value = new byte[5_000];
+		new Random().nextBytes(value);
+		ByteBuffer slice = ByteBuffer.wrap(value, 100, 4_000).slice();
+		byte[] compressed = codec.compress(slice);
+		Assert.assertArrayEquals(Arrays.copyOfRange(value, 100, 4_100), codec.decompress(compressed, 4_000));
+		Assert.assertArrayEquals(new byte[0], codec.decompress(codec.compress(ByteBuffer.allocate(0)), 0));
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void truncatedInputIsRejected() {
+		byte[] value = new byte[1_000];
+		new Random().nextBytes(value);
+		byte[] compressed = codec.compress(ByteBuffer.wrap(value));
+		codec.decompress(Arrays.copyOf(compressed, compressed.length / 2), value.length);
+	}
+}
@@ -0,0 +1,126 @@
+package com.palamsoft.cache;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class EvictionPolicyTest {
+
+	private static final int KEYS = 20_000;
+	private static final int CAPACITY = 2_000;
+	private static final int ACCESSES = 500_000;
+
+	@Test
+	public void clock() {
+		simulate(EvictionPolicy.clock());
+	}
+
+	@Test
+	public void segmentedLru() {
+		simulate(EvictionPolicy.segmentedLru());
+	}
+
+	@Test
+	public void windowTinyLfu() {
+		simulate(EvictionPolicy.windowTinyLfu());
+	}
+
+	@Test
+	public void tinyLfuKeepsHotSetThroughScan() {
+		EvictionPolicy policy = EvictionPolicy.windowTinyLfu();
+		boolean[] resident = new boolean[KEYS];
+		int[] count = new int[1];
+		for (int round = 0; round < 20; round++) {
+			for (int id = 0; id < 100; id++) {
+				access(policy, resident, count, id);
+			}
+		}
+		for (int id = 100; id < KEYS; id++) {
+			access(policy, resident, count, id);
+		}
+		int hot = 0;
+		for (int id = 0; id < 100; id++) {
+			if (resident[id]) {
+				hot++;
+			}
+		}
+		Assert.assertTrue("hot entries left: " + hot, hot > 90);
+	}
+
+	@Test
+	public void recycledIdStartsWithoutFrequency() {
+		EvictionPolicy policy = EvictionPolicy.windowTinyLfu();
+		policy.recordInsert(7, 1);
+		for (int i = 0; i < 10; i++) {
+			policy.recordAccess(7);
+		}
+		policy.recordInsert(8, 1);
+		policy.recordAccess(8);
+		policy.recordFree(7);
+		policy.recordInsert(7, 1);
+
+		int[] frequencies = policy.frequencies(new int[] { 7, 8 }, 2);
+		Assert.assertEquals(1, frequencies[0]);
+		Assert.assertEquals(2, frequencies[1]);
+	}
+
+	private void simulate(EvictionPolicy policy) {
+		ZipfGenerator zipf = new ZipfGenerator(KEYS, 0.99, new Random(42));
+		boolean[] resident = new boolean[KEYS];
+		int[] count = new int[1];
+		int hits = 0;
+		int scanFrom = 0;
+		for (int i = 0; i < ACCESSES; i++) {
+			// every tenth access belongs to a sequential scan over the whole key space
+			int id = (i % 10 == 0) ? (scanFrom++ % KEYS) : zipf.next();
+			if (access(policy, resident, count, id)) {
+				hits++;
+			}
+		}
+		double hitRatio = (double) hits / ACCESSES;
+		Assert.assertTrue(count[0] <= CAPACITY);
+		Assert.assertTrue(String.format("%s: hit ratio %.3f, %s", policy.getName(), hitRatio, policy),
+				hitRatio > 0.3);
+	}
+
+	private boolean access(EvictionPolicy policy, boolean[] resident, int[] count, int id) {
+		if (resident[id]) {
+			policy.recordAccess(id);
+			return true;
+		}
+		policy.recordInsert(id, 1);
+		resident[id] = true;
+		if (++count[0] > CAPACITY) {
+			int victim = policy.evict();
+			Assert.assertTrue(resident[victim]);
+			resident[victim] = false;
+			count[0]--;
+		}
+		return false;
+	}
+
+	static class ZipfGenerator {
+		private final double[] cumulative;
+		private final Random random;
+
+		ZipfGenerator(int n, double skew, Random random) {
+			this.random = random;
+			cumulative = new double[n];
+			double sum = 0;
+			for (int i = 0; i < n; i++) {
+				sum += 1 / Math.pow(i + 1, skew);
+				cumulative[i] = sum;
+			}
+			for (int i = 0; i < n; i++) {
+				cumulative[i] /= sum;
+			}
+		}
+
+		int next() {
+			int i = Arrays.binarySearch(cumulative, random.nextDouble());
+			return (i >= 0) ? i : Math.min(-i - 1, cumulative.length - 1);
+		}
+	}
+}
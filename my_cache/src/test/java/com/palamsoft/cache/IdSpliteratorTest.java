@@ -0,0 +1,53 @@
+package com.palamsoft.cache;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.stream.Collectors;
+import java.util.stream.StreamSupport;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class IdSpliteratorTest {
+
+	// even ids only
+	private static Integer evens(int id) {
+		return (id % 2 == 0) ? id : null;
+	}
+
+	@Test
+	public void skipsNullsAndSplitsIntoAdjacentHalves() {
+		IdSpliterator<Integer> suffix = new IdSpliterator<>(IdSpliteratorTest::evens, 0, 4 * IdSpliterator.MIN_SPLIT);
+		Spliterator<Integer> prefix = suffix.trySplit();
+		Assert.assertEquals(2 * IdSpliterator.MIN_SPLIT, prefix.estimateSize());
+		Assert.assertEquals(2 * IdSpliterator.MIN_SPLIT, suffix.estimateSize());
+
+		List<Integer> seen = new ArrayList<>();
+		Assert.assertTrue(prefix.tryAdvance(seen::add));
+		Assert.assertTrue(prefix.tryAdvance(seen::add));
+		prefix.forEachRemaining(seen::add);
+		suffix.forEachRemaining(seen::add);
+		Assert.assertFalse(suffix.tryAdvance(seen::add));
+		Assert.assertEquals(2 * IdSpliterator.MIN_SPLIT, seen.size());
+		for (int i = 0; i < seen.size(); i++) {
+			Assert.assertEquals(Integer.valueOf(2 * i), seen.get(i));
+		}
+	}
+
+	@Test
+	public void smallRangesAreNotSplit() {
+		Assert.assertNull(new IdSpliterator<>(IdSpliteratorTest::evens, 0, IdSpliterator.MIN_SPLIT).trySplit());
+	}
+
+	@Test
+	public void parallelStreamSeesEveryElementOnce() {
+		int size = 100_000;
+		List<Integer> seen = StreamSupport.stream(new IdSpliterator<>(IdSpliteratorTest::evens, 0, size), true)
+				.collect(Collectors.toList());
+		Assert.assertEquals(size / 2, seen.size());
+		for (int i = 0; i < seen.size(); i++) {
+			Assert.assertEquals(Integer.valueOf(2 * i), seen.get(i));
+		}
+	}
+}
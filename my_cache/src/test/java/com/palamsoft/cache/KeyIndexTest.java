@@ -0,0 +1,53 @@
+package com.palamsoft.cache;
+
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class KeyIndexTest {
+
+	private static byte[] key(int i) {
+		return ("key-" + i).getBytes(StandardCharsets.UTF_8);
+	}
+
+	@Test
+	public void putGetAndOverwrite() {
+		KeyIndex<String> index = new KeyIndex<>();
+		for (int i = 0; i < 10_000; i++) {
+			Assert.assertNull(index.put(key(i), "v" + i));
+		}
+		Assert.assertEquals(10_000, index.size());
+		Assert.assertEquals("v1", index.put(key(1), "w1"));
+		for (int i = 2; i < 10_000; i++) {
+			Assert.assertEquals("v" + i, index.get(key(i)));
+		}
+		Assert.assertEquals("w1", index.get(key(1)));
+		Assert.assertNull(index.get(key(10_000)));
+	}
+
+	@Test
+	public void removeOnlyExpectedValue() {
+		KeyIndex<String> index = new KeyIndex<>();
+		String value = new String("v");
+		index.put(key(0), value);
+		Assert.assertFalse(index.remove(key(0), new String("v")));
+		Assert.assertTrue(index.remove(key(0), value));
+		Assert.assertNull(index.get(key(0)));
+		Assert.assertEquals(0, index.size());
+	}
+
+	@Test
+	public void tombstonesAreReused() {
+		KeyIndex<Integer> index = new KeyIndex<>();
+		for (int round = 0; round < 100; round++) {
+			for (int i = 0; i < 1_000; i++) {
+				index.put(key(i), i);
+			}
+			for (int i = 0; i < 1_000; i++) {
+				Assert.assertTrue(index.remove(key(i), index.get(key(i))));
+			}
+		}
+		Assert.assertEquals(0, index.size());
+	}
+}
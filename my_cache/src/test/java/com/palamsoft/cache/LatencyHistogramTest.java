@@ -0,0 +1,42 @@
+package com.palamsoft.cache;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+	@Test
+	public void bucketsCoverValuesWithBoundedError() {
+		for (long value : new long[] { 0, 1, 7, 8, 15, 16, 100, 1_000, 123_456_789, Long.MAX_VALUE }) {
+			int bucket = LatencyHistogram.bucket(value);
+			long upper = LatencyHistogram.upperBound(bucket);
+			Assert.assertTrue(value + " <= " + upper, value <= upper);
+			Assert.assertTrue(upper - value <= value / 8);
+			if (bucket > 0) {
+				Assert.assertTrue(LatencyHistogram.upperBound(bucket - 1) < value);
+			}
+		}
+	}
+
+	@Test
+	public void percentilesFollowRecordedValues() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		for (int i = 1; i <= 1_000; i++) {
+			histogram.record(i * 1_000L);
+		}
+		LatencySummary summary = histogram.summary();
+		Assert.assertEquals(1_000, summary.getCount());
+		Assert.assertEquals(500_500, summary.getMeanNanos());
+		Assert.assertEquals(500_000, summary.getP50Nanos(), 500_000 / 8);
+		Assert.assertEquals(990_000, summary.getP99Nanos(), 990_000 / 8);
+		Assert.assertEquals(1_000_000, summary.getMaxNanos());
+		Assert.assertTrue(summary.getP999Nanos() <= summary.getMaxNanos());
+	}
+
+	@Test
+	public void emptyHistogramIsAllZero() {
+		LatencySummary summary = new LatencyHistogram().summary();
+		Assert.assertEquals(0, summary.getCount());
+		Assert.assertEquals(0, summary.getP99Nanos());
+	}
+}
@@ -1,17 +1,45 @@
 package com.palamsoft.cache;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.CyclicBarrier;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
 
 import org.junit.Assert;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 import com.palamsoft.cache.MyCache.CacheUnavailableException;
 
@@ -19,8 +47,11 @@ public class MyCacheTest {
 	private static final int THREADS_COUNT = 10;
 	private static CyclicBarrier barrier = new CyclicBarrier(THREADS_COUNT + 1);
 
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
 	@Test
-	public void test() {
+	public void test() throws IOException {
 		MyCache myCache = new MyCache(100, 100_000_000, 80_000_000);
 
 		ExecutorService executor = Executors.newFixedThreadPool(THREADS_COUNT);
@@ -33,7 +64,858 @@ public class MyCacheTest {
 		} catch (InterruptedException | BrokenBarrierException e) {
 			throw new RuntimeException("failed to wait barrier", e);
 		}
+		executor.shutdown();
+		myCache.close();
+
+	}
+
+	@Test
+	public void zeroCopyReads() throws IOException {
+		try (MyCache myCache = new MyCache(1_000)) {
+			byte[] data = new byte[] { 1, 2, 3, 4 };
+			int id = myCache.putToCacheOwned(data);
+
+			ByteBuffer view = myCache.getBufferFromCache(id);
+			Assert.assertTrue(view.isReadOnly());
+			Assert.assertEquals(ByteBuffer.wrap(data), view);
+			Assert.assertEquals(Integer.valueOf(10), myCache.readFromCache(id, b -> {
+				int sum = 0;
+				while (b.hasRemaining()) {
+					sum += b.get();
+				}
+				return sum;
+			}));
+			Assert.assertNull(myCache.getBufferFromCache(id + 1));
+		}
+	}
+
+	@Test
+	public void zeroCopyHitsDoNotCopyTheValue() throws IOException {
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		try (MyCache myCache = new MyCache(1_000_000)) {
+			int id = myCache.putToCacheOwned(new byte[100_000]);
+			int hits = 20_000;
+			// warmed up, so one-off allocations (counter cells, JIT) are not counted
+			for (int i = 0; i < hits; i++) {
+				myCache.readFromCache(id, b -> b.get(0));
+				myCache.getBufferFromCache(id);
+			}
+			long before = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+			for (int i = 0; i < hits; i++) {
+				myCache.readFromCache(id, b -> b.get(0));
+				myCache.getBufferFromCache(id);
+			}
+			long perHit = (threads.getThreadAllocatedBytes(Thread.currentThread().getId()) - before) / (2 * hits);
+			// at most the view, which escape analysis often removes
+			Assert.assertTrue(perHit + " bytes per hit", perHit < 128);
+		}
+	}
+
+	@Test
+	@SuppressWarnings("deprecation")
+	public void fileNameOverloadsDelegateToIds() throws IOException {
+		try (MyCache myCache = new MyCache(1_000)) {
+			myCache.saveToFile("7", new byte[] { 1, 2 });
+			Assert.assertArrayEquals(new byte[] { 1, 2 }, myCache.loadFromFile(7));
+			Assert.assertArrayEquals(new byte[] { 1, 2 }, myCache.loadFromFile("7"));
+			Assert.assertNull(myCache.loadFromFile("8"));
+			Assert.assertNull(myCache.loadFromFile("not an id"));
+		}
+	}
+
+	@Test
+	public void blockingPutWaitsForCleaner() throws Exception {
+		try (MyCache myCache = MyCache.builder(10_000).lowLimit(5_000).build()) {
+			for (int i = 0; i < 100; i++) {
+				int id = myCache.putToCache(new byte[1_000], 5, TimeUnit.SECONDS);
+				Assert.assertEquals(i, id);
+			}
+			Assert.assertEquals(1_000, myCache.getFromCache(99).length);
+		}
+	}
+
+	@Test
+	public void tryPutFailsWithoutWaiting() throws IOException {
+		try (MyCache myCache = MyCache.builder(1_000).lowLimit(1_000).build()) {
+			Assert.assertEquals(-1, myCache.tryPutToCache(new byte[2_000]));
+			Assert.assertEquals(0, myCache.tryPutToCache(new byte[500]));
+		}
+	}
+
+	@Test
+	public void removeFreesMemoryAndRecyclesId() throws IOException {
+		try (MyCache myCache = MyCache.builder(1_000).lowLimit(1_000).build()) {
+			int first = myCache.putToCache(new byte[600]);
+			Assert.assertEquals(-1, myCache.tryPutToCache(new byte[600]));
+
+			Assert.assertTrue(myCache.remove(first));
+			Assert.assertFalse(myCache.remove(first));
+			Assert.assertNull(myCache.getFromCache(first));
+
+			int second = myCache.putToCache(new byte[] { 7 });
+			Assert.assertEquals(first, second);
+			Assert.assertArrayEquals(new byte[] { 7 }, myCache.getFromCache(second));
+		}
+	}
+
+	@Test
+	public void overwriteByKeyChargesMemoryOnce() throws IOException {
+		try (MyCache myCache = MyCache.builder(2_000).lowLimit(2_000).build()) {
+			for (int i = 0; i < 10; i++) {
+				myCache.put("key", new byte[] { (byte) i });
+				myCache.put("big".getBytes(StandardCharsets.UTF_8), new byte[600]);
+			}
+			Assert.assertArrayEquals(new byte[] { 9 }, myCache.get("key"));
+			Assert.assertEquals(600, myCache.get("big").length);
+			Assert.assertNull(myCache.get("missing"));
+
+			Assert.assertTrue(myCache.remove("big"));
+			Assert.assertNull(myCache.get("big"));
+			Assert.assertNotEquals(-1, myCache.tryPutToCache(new byte[1_900]));
+		}
+	}
+
+	@Test
+	public void expiredEntriesDisappear() throws Exception {
+		try (MyCache myCache = new MyCache(1_000)) {
+			int lazy = myCache.putToCacheWithTtl(new byte[] { 1 }, 50, TimeUnit.MILLISECONDS);
+			int timed = myCache.putToCacheWithTtl(new byte[] { 2 }, 50, TimeUnit.MILLISECONDS);
+			int kept = myCache.putToCache(new byte[] { 3 });
+			Thread.sleep(100);
+			Assert.assertNull(myCache.getFromCache(lazy));
+
+			// the timer wheel removes entries that nobody reads
+			Thread.sleep(300);
+			Assert.assertFalse(myCache.remove(timed));
+			Assert.assertArrayEquals(new byte[] { 3 }, myCache.getFromCache(kept));
+		}
+	}
+
+	@Test
+	public void recycledIdIsNotExpiredByTheRemovedNodesTimer() throws Exception {
+		try (MyCache myCache = new MyCache(1_000)) {
+			int removed = myCache.putToCacheWithTtl(new byte[] { 1 }, 50, TimeUnit.MILLISECONDS);
+			Assert.assertTrue(myCache.remove(removed));
+			int reused = myCache.putToCache(new byte[] { 2 });
+			Assert.assertEquals(removed, reused);
+
+			Thread.sleep(300);
+			Assert.assertArrayEquals(new byte[] { 2 }, myCache.getFromCache(reused));
+		}
+	}
+
+	@Test
+	public void offHeapValuesSurviveEviction() throws IOException {
+		try (MyCache myCache = MyCache.builder(10_000).lowLimit(2_000).slabSize(4_096).offHeap(true).build()) {
+			Random random = new Random();
+			Map<Integer, byte[]> data = new HashMap<>();
+			while (data.size() < 100) {
+				byte[] b = new byte[random.nextInt(1_000)];
+				random.nextBytes(b);
+				try {
+					data.put(myCache.putToCache(b), b);
+				} catch (CacheUnavailableException e) {
+					Thread.yield();
+				}
+			}
+			for (Map.Entry<Integer, byte[]> entry : data.entrySet()) {
+				Assert.assertArrayEquals(entry.getValue(), myCache.getFromCache(entry.getKey()));
+			}
+		}
+	}
+
+	@Test
+	public void bulkOperationsMixMemoryAndDisk() throws Exception {
+		try (MyCache myCache = MyCache.builder(4_000).lowLimit(1_000).build()) {
+			Random random = new Random();
+			byte[][] values = new byte[10][];
+			for (int i = 0; i < values.length; i++) {
+				values[i] = new byte[300];
+				random.nextBytes(values[i]);
+			}
+			int[] ids = myCache.putAll(values);
+			// the cleaner spills down to the low limit
+			Thread.sleep(200);
+
+			int[] query = new int[ids.length + 1];
+			System.arraycopy(ids, 0, query, 0, ids.length);
+			query[ids.length] = 1000;
+			byte[][] read = myCache.getAll(query);
+			for (int i = 0; i < ids.length; i++) {
+				Assert.assertArrayEquals(values[i], read[i]);
+			}
+			Assert.assertNull(read[ids.length]);
+
+			try {
+				myCache.putAll(new byte[2_000], new byte[2_000], new byte[2_000]);
+				Assert.fail("Batch does not fit");
+			} catch (CacheUnavailableException e) {
+				// expected, nothing of it is added
+			}
+
+			Map<String, byte[]> entries = new HashMap<>();
+			entries.put("a", values[0]);
+			entries.put("b", values[1]);
+			myCache.putAll(entries);
+			Map<String, byte[]> byKey = myCache.getAll(Arrays.asList("a", "b", "c"));
+			Assert.assertEquals(2, byKey.size());
+			Assert.assertArrayEquals(values[1], byKey.get("b"));
+		}
+	}
+
+	@Test
+	public void compressedTierKeepsWarmEntriesOffDisk() throws Exception {
+		try (MyCache myCache = MyCache.builder(20_000).compressedTier(Codec.deflate(), 10_000).build()) {
+			Map<Integer, byte[]> data = new HashMap<>();
+			for (int i = 0; i < 200; i++) {
+				byte[] b = new byte[1_000];
+				Arrays.fill(b, (byte) i);
+				b[i] = 1;
+				data.put(myCache.putToCache(b, 1, TimeUnit.SECONDS), b);
+			}
+			// ten times the limit in raw bytes, yet nothing has to be read back from disk
+			for (int pass = 0; pass < 2; pass++) {
+				for (Map.Entry<Integer, byte[]> entry : data.entrySet()) {
+					Assert.assertArrayEquals(entry.getValue(), myCache.getFromCache(entry.getKey()));
+				}
+			}
+			Assert.assertEquals(1.0, myCache.getHitRatio(), 0.0);
+		}
+	}
+
+	@Test
+	public void nameClashClosesTheSpillStore() throws Exception {
+		Path spillDirectory = folder.getRoot().toPath().resolve("clash");
+		try (MyCache myCache = MyCache.builder(1_000).jmxName("clash-test").build()) {
+			try {
+				MyCache.builder(1_000).spillDirectory(spillDirectory).jmxName("clash-test").build();
+				Assert.fail("Two caches registered as clash-test");
+			} catch (IllegalArgumentException e) {
+				Assert.assertFalse(Files.exists(spillDirectory));
+			}
+		}
+	}
+
+	@Test
+	public void metricsArePublishedOverJmx() throws Exception {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName name = new ObjectName("com.palamsoft.cache:type=MyCache,name=\"metrics-test\"");
+		try (MyCache myCache = MyCache.builder(1_000).lowLimit(1_000).jmxName("metrics-test").build()) {
+			int id = myCache.putToCache(new byte[600]);
+			Assert.assertEquals(-1, myCache.tryPutToCache(new byte[600]));
+			myCache.getFromCache(id);
+
+			MyCacheMXBean metrics = myCache.getMetrics();
+			Assert.assertEquals(1, metrics.getHitCount());
+			Assert.assertEquals(1, metrics.getRejectedPutCount());
+			Assert.assertEquals(1, metrics.getIdSpaceSize());
+			Assert.assertEquals(2, metrics.getPutLatency().getCount());
+
+			Assert.assertEquals(1, server.getAttribute(name, "IdSpaceSize"));
+			CompositeData latency = (CompositeData) server.getAttribute(name, "GetLatency");
+			Assert.assertEquals(1L, latency.get("count"));
+		}
+		Assert.assertFalse(server.isRegistered(name));
+	}
+
+	@Test
+	public void flightRecorderEventsCoverPutsGetsAndSpills() throws Exception {
+		Path file = folder.newFile().toPath();
+		try (Recording recording = new Recording()) {
+			for (String event : new String[] { "Get", "Put", "LockWait", "Eviction", "SpillRead", "SpillWrite" }) {
+				recording.enable("com.palamsoft.cache." + event).withThreshold(Duration.ZERO);
+			}
+			recording.start();
+			try (MyCache myCache = MyCache.builder(10_000).build()) {
+				List<Integer> ids = new ArrayList<>();
+				for (int i = 0; i < 50; i++) {
+					ids.add(myCache.putToCache(new byte[1_000], 1, TimeUnit.SECONDS));
+				}
+				for (int id : ids) {
+					Assert.assertEquals(1_000, myCache.getFromCache(id).length);
+				}
+			}
+			recording.stop();
+			recording.dump(file);
+
+			Map<String, List<RecordedEvent>> byName = new HashMap<>();
+			for (RecordedEvent event : RecordingFile.readAllEvents(file)) {
+				byName.computeIfAbsent(event.getEventType().getName(), name -> new ArrayList<>()).add(event);
+			}
+			for (String event : new String[] { "Get", "Put", "LockWait", "Eviction", "SpillRead", "SpillWrite" }) {
+				Assert.assertTrue(event, byName.containsKey("com.palamsoft.cache." + event));
+			}
+			List<RecordedEvent> puts = byName.get("com.palamsoft.cache.Put");
+			Assert.assertEquals(50, puts.size());
+			Assert.assertEquals(1_000, puts.get(0).getLong("bytes"));
+			Assert.assertTrue(byName.get("com.palamsoft.cache.Eviction").stream()
+					.anyMatch(eviction -> eviction.getInt("victims") > 0));
+		}
+	}
 
+	@Test
+	public void scanReadsSpilledValuesWithoutPromotingThem() throws Exception {
+		try (MyCache myCache = MyCache.builder(50_000).chunkSize(10_000).build()) {
+			Map<Integer, byte[]> data = new HashMap<>();
+			for (int i = 0; i < 3_000; i++) {
+				byte[] b = new byte[100];
+				new Random(i).nextBytes(b);
+				data.put(myCache.putToCache(b, 1, TimeUnit.SECONDS), b);
+			}
+			int removed = data.keySet().iterator().next();
+			myCache.remove(removed);
+			data.remove(removed);
+			myCache.put("key", new byte[] { 1, 2, 3 });
+			byte[] streamed = new byte[35_000];
+			new Random(-1).nextBytes(streamed);
+			myCache.putStream("streamed", new ByteArrayInputStream(streamed), 1, TimeUnit.SECONDS);
+			MyCacheMXBean metrics = myCache.getMetrics();
+			long hits = metrics.getHitCount();
+			long misses = metrics.getMissCount();
+			long promotions = metrics.getPromotionCount();
+			long diskLoads = metrics.getDiskLoadCount();
+
+			Map<Integer, MyCache.Entry> entries = myCache.scan().parallel()
+					.collect(Collectors.toMap(MyCache.Entry::getId, entry -> entry));
+			Assert.assertEquals(data.size() + 2, entries.size());
+			for (Map.Entry<Integer, byte[]> entry : data.entrySet()) {
+				MyCache.Entry scanned = entries.get(entry.getKey());
+				Assert.assertNull(scanned.getKey());
+				Assert.assertArrayEquals(entry.getValue(), scanned.getValue());
+			}
+			Map<String, byte[]> keyed = new HashMap<>();
+			for (MyCache.Entry entry : entries.values()) {
+				if (entry.getKey() != null) {
+					keyed.put(new String(entry.getKey(), StandardCharsets.UTF_8), entry.getValue());
+				}
+			}
+			Assert.assertArrayEquals(new byte[] { 1, 2, 3 }, keyed.get("key"));
+			Assert.assertArrayEquals(streamed, keyed.get("streamed"));
+
+			Assert.assertEquals(hits, metrics.getHitCount());
+			Assert.assertEquals(misses, metrics.getMissCount());
+			Assert.assertEquals(promotions, metrics.getPromotionCount());
+			Assert.assertEquals(diskLoads, metrics.getDiskLoadCount());
+		}
+	}
+
+	@Test
+	public void concurrentColdReadsShareLoads() throws Exception {
+		try (MyCache myCache = MyCache.builder(50_000).build()) {
+			Map<Integer, byte[]> data = new HashMap<>();
+			for (int i = 0; i < 200; i++) {
+				byte[] b = new byte[1_000];
+				new Random(i).nextBytes(b);
+				data.put(myCache.putToCache(b, 1, TimeUnit.SECONDS), b);
+			}
+			ExecutorService executor = Executors.newFixedThreadPool(8);
+			try {
+				List<Future<?>> futures = new ArrayList<>();
+				for (int t = 0; t < 8; t++) {
+					futures.add(executor.submit(() -> {
+						for (int pass = 0; pass < 5; pass++) {
+							for (Map.Entry<Integer, byte[]> entry : data.entrySet()) {
+								Assert.assertArrayEquals(entry.getValue(), myCache.getFromCache(entry.getKey()));
+							}
+						}
+						return null;
+					}));
+				}
+				for (Future<?> future : futures) {
+					future.get();
+				}
+			} finally {
+				executor.shutdownNow();
+			}
+		}
+	}
+
+	@Test
+	public void asyncPutsWaitForRoomWithoutBlocking() throws Exception {
+		try (MyCache myCache = MyCache.builder(10_000).build()) {
+			// ten times the limit, most puts are queued until the cleaner has spilled earlier ones
+			Map<CompletableFuture<Integer>, byte[]> puts = new HashMap<>();
+			for (int i = 0; i < 100; i++) {
+				byte[] b = new byte[1_000];
+				Arrays.fill(b, (byte) i);
+				puts.put(myCache.putAsync(b), b);
+			}
+			CompletableFuture<Void> keyed = myCache.putAsync("key", new byte[] { 1, 2, 3 });
+
+			List<CompletableFuture<Boolean>> reads = new ArrayList<>();
+			for (Map.Entry<CompletableFuture<Integer>, byte[]> put : puts.entrySet()) {
+				byte[] expected = put.getValue();
+				reads.add(put.getKey().thenCompose(myCache::getAsync).thenApply(b -> Arrays.equals(expected, b)));
+			}
+			for (CompletableFuture<Boolean> read : reads) {
+				Assert.assertTrue(read.get(10, TimeUnit.SECONDS));
+			}
+			keyed.get(10, TimeUnit.SECONDS);
+			Assert.assertArrayEquals(new byte[] { 1, 2, 3 }, myCache.getAsync("key").get(10, TimeUnit.SECONDS));
+
+			try {
+				myCache.putAsync(new byte[20_000]).join();
+				Assert.fail();
+			} catch (CompletionException e) {
+				Assert.assertTrue(e.getCause() instanceof CacheUnavailableException);
+			}
+		}
+	}
+
+	@Test
+	public void persistentCacheReopensItsEntries() throws Exception {
+		Path directory = folder.newFolder().toPath();
+		Map<Integer, byte[]> data = new HashMap<>();
+		byte[] keyed = new byte[800];
+		Arrays.fill(keyed, (byte) 7);
+		int removedId;
+		try (MyCache myCache = MyCache.builder(10_000).spillDirectory(directory).persistent(true).build()) {
+			myCache.put("kept", keyed);
+			myCache.put("removed", keyed);
+			for (int i = 0; i < 30; i++) {
+				byte[] b = new byte[1_000];
+				Arrays.fill(b, (byte) i);
+				data.put(myCache.putToCache(b, 1, TimeUnit.SECONDS), b);
+			}
+			Assert.assertTrue(myCache.remove("removed"));
+			removedId = data.keySet().iterator().next();
+			Assert.assertTrue(myCache.remove(removedId));
+			data.remove(removedId);
+		}
+
+		try (MyCache myCache = MyCache.builder(10_000).spillDirectory(directory).persistent(true).build()) {
+			for (Map.Entry<Integer, byte[]> entry : data.entrySet()) {
+				Assert.assertArrayEquals(entry.getValue(), myCache.getFromCache(entry.getKey()));
+			}
+			Assert.assertNull(myCache.getFromCache(removedId));
+			Assert.assertArrayEquals(keyed, myCache.get("kept"));
+			Assert.assertNull(myCache.get("removed"));
+			// the id of the removed entry is free again
+			Assert.assertEquals(removedId, myCache.putToCache(new byte[10], 1, TimeUnit.SECONDS));
+		}
+	}
+
+	@Test
+	public void deduplicationStoresIdenticalValuesOnce() throws Exception {
+		byte[] template = new byte[10_000];
+		new Random(22).nextBytes(template);
+		try (MyCache myCache = MyCache.builder(1_000_000).deduplicate(true).build()) {
+			List<Integer> ids = new ArrayList<>();
+			for (int i = 0; i < 100; i++) {
+				ids.add(myCache.putToCache(template));
+			}
+			myCache.put("key", template);
+			int distinct = myCache.putToCache(new byte[10_000]);
+			Assert.assertEquals(100, myCache.getMetrics().getDeduplicatedPutCount());
+			long memory = myCache.getMetrics().getMemorySize();
+			Assert.assertTrue("" + memory, memory < 25_000);
+
+			for (int id : ids) {
+				Assert.assertArrayEquals(template, myCache.getFromCache(id));
+			}
+			Assert.assertArrayEquals(template, myCache.get("key"));
+			Assert.assertArrayEquals(new byte[10_000], myCache.getFromCache(distinct));
+
+			// the value lives as long as one reference to it does
+			for (int id : ids) {
+				Assert.assertTrue(myCache.remove(id));
+			}
+			Assert.assertArrayEquals(template, myCache.get("key"));
+			Assert.assertTrue(myCache.remove("key"));
+			Assert.assertTrue(myCache.getMetrics().getMemorySize() < memory - 9_000);
+
+			// the chunks of a stream are shared too
+			byte[] repeated = new byte[4 * 32 * 1024];
+			for (int i = 0; i < repeated.length; i++) {
+				repeated[i] = (byte) (i % (32 * 1024));
+			}
+			long before = myCache.getMetrics().getMemorySize();
+			myCache.putStream("stream", new ByteArrayInputStream(repeated), 1, TimeUnit.SECONDS);
+			Assert.assertTrue(myCache.getMetrics().getMemorySize() - before < 300_000);
+			Assert.assertArrayEquals(repeated, myCache.get("stream"));
+		}
+	}
+
+	@Test
+	public void putAllDeduplicatesLikePut() throws Exception {
+		byte[] template = new byte[10_000];
+		new Random(26).nextBytes(template);
+		try (MyCache myCache = MyCache.builder(100_000).deduplicate(true).build()) {
+			int single = myCache.putToCache(template);
+			int[] ids = myCache.putAll(template, template, new byte[] { 1 });
+			Map<String, byte[]> entries = new HashMap<>();
+			entries.put("a", template);
+			entries.put("b", template);
+			myCache.putAll(entries);
+			Assert.assertEquals(4, myCache.getMetrics().getDeduplicatedPutCount());
+			Assert.assertTrue(myCache.getMetrics().getMemorySize() < 12_000);
+
+			Assert.assertArrayEquals(template, myCache.getFromCache(ids[0]));
+			Assert.assertArrayEquals(new byte[] { 1 }, myCache.getFromCache(ids[2]));
+			Assert.assertArrayEquals(template, myCache.get("b"));
+			Assert.assertTrue(myCache.remove(single));
+			Assert.assertArrayEquals(template, myCache.getFromCache(ids[1]));
+
+			// the check assumes nothing is shared, ten values would not fit, and nothing is added
+			byte[][] many = new byte[10][];
+			Arrays.fill(many, template);
+			try {
+				myCache.putAll(many);
+				Assert.fail();
+			} catch (CacheUnavailableException e) {
+				// all or nothing
+			}
+			Assert.assertEquals(4, myCache.getMetrics().getDeduplicatedPutCount());
+		}
+	}
+
+	@Test
+	public void asyncPutsAreDeduplicatedLikeSyncOnes() throws Exception {
+		byte[] template = new byte[10_000];
+		new Random(24).nextBytes(template);
+		try (MyCache myCache = MyCache.builder(1_000_000).deduplicate(true).build()) {
+			int sync = myCache.putToCache(template);
+			int async = myCache.putAsync(template).get(1, TimeUnit.SECONDS);
+			myCache.putAsync("key", template).get(1, TimeUnit.SECONDS);
+			Assert.assertEquals(2, myCache.getMetrics().getDeduplicatedPutCount());
+			Assert.assertTrue(myCache.getMetrics().getMemorySize() < 11_000);
+
+			Assert.assertTrue(myCache.remove(sync));
+			Assert.assertArrayEquals(template, myCache.getFromCache(async));
+			Assert.assertArrayEquals(template, myCache.get("key"));
+		}
+	}
+
+	@Test
+	public void deduplicatedValuesAreSpilledOnceAndSurviveRestart() throws Exception {
+		Path directory = folder.newFolder().toPath();
+		byte[][] values = new byte[50][];
+		Random random = new Random(23);
+		for (int i = 0; i < values.length; i++) {
+			values[i] = new byte[10_000];
+			random.nextBytes(values[i]);
+		}
+		Map<Integer, byte[]> data = new HashMap<>();
+		try (MyCache myCache = MyCache.builder(200_000).deduplicate(true).spillDirectory(directory)
+				.persistent(true).build()) {
+			myCache.put("first", values[0]);
+			myCache.put("second", values[0]);
+			// 10 MB of puts, 500 KB of distinct values
+			for (int round = 0; round < 20; round++) {
+				for (byte[] value : values) {
+					data.put(myCache.putToCache(value, 1, TimeUnit.SECONDS), value);
+				}
+			}
+			for (Map.Entry<Integer, byte[]> entry : data.entrySet()) {
+				Assert.assertArrayEquals(entry.getValue(), myCache.getFromCache(entry.getKey()));
+			}
+			long flushed = myCache.getMetrics().getFlushedBytes();
+			Assert.assertTrue("" + flushed, flushed < 1_000_000);
+		}
+
+		try (MyCache myCache = MyCache.builder(200_000).deduplicate(true).spillDirectory(directory)
+				.persistent(true).build()) {
+			for (Map.Entry<Integer, byte[]> entry : data.entrySet()) {
+				Assert.assertArrayEquals(entry.getValue(), myCache.getFromCache(entry.getKey()));
+			}
+			Assert.assertTrue(myCache.remove("first"));
+			Assert.assertArrayEquals(values[0], myCache.get("second"));
+		}
+	}
+
+	@Test
+	public void interruptedStreamLeavesTheSpillFilesUsable() throws Exception {
+		Path file = folder.newFile().toPath();
+		try (MyCache myCache = MyCache.builder(20_000).build()) {
+			Map<Integer, byte[]> data = new HashMap<>();
+			for (int i = 0; i < 40; i++) {
+				byte[] b = new byte[1_000];
+				Arrays.fill(b, (byte) i);
+				data.put(myCache.putToCache(b, 1, TimeUnit.SECONDS), b);
+			}
+			// half of them are spilled, those are sent from the spill files
+			for (int id : data.keySet()) {
+				Thread.currentThread().interrupt();
+				try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+					myCache.getStream(id, channel);
+					Assert.fail("The interrupt should have closed the channel");
+				} catch (IOException e) {
+					// the caller's channel is closed, the spill files are not
+				} finally {
+					Thread.interrupted();
+				}
+			}
+
+			// the cleaner spills into the same segment, and everything reads back
+			for (int i = 40; i < 80; i++) {
+				byte[] b = new byte[1_000];
+				Arrays.fill(b, (byte) i);
+				data.put(myCache.putToCache(b, 1, TimeUnit.SECONDS), b);
+			}
+			for (Map.Entry<Integer, byte[]> entry : data.entrySet()) {
+				Assert.assertArrayEquals(entry.getValue(), myCache.getFromCache(entry.getKey()));
+			}
+		}
+	}
+
+	@Test
+	public void streamsValuesLargerThanMemory() throws Exception {
+		byte[] large = new byte[3_000_000];
+		new Random(21).nextBytes(large);
+		Path file = folder.newFile().toPath();
+		try (MyCache myCache = MyCache.builder(500_000).lowLimit(400_000).chunkSize(64 * 1024).build()) {
+			int id = myCache.putStream(new ByteArrayInputStream(large), 5, TimeUnit.SECONDS);
+			myCache.putStream("small", new ByteArrayInputStream(new byte[] { 1, 2, 3 }), 1, TimeUnit.SECONDS);
+			Assert.assertTrue(myCache.getMetrics().getMemorySize() <= 500_000);
+
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			Assert.assertTrue(myCache.getStream(id, out));
+			Assert.assertArrayEquals(large, out.toByteArray());
+			// spilled chunks are sent from the spill file to the channel
+			try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+				Assert.assertTrue(myCache.getStream(id, channel));
+			}
+			Assert.assertArrayEquals(large, Files.readAllBytes(file));
+			Assert.assertArrayEquals(large, myCache.getFromCache(id));
+
+			out.reset();
+			Assert.assertTrue(myCache.getStream("small", out));
+			Assert.assertArrayEquals(new byte[] { 1, 2, 3 }, out.toByteArray());
+			Assert.assertArrayEquals(new byte[] { 1, 2, 3 }, myCache.get("small"));
+			Assert.assertFalse(myCache.getStream("missing", out));
+
+			// removing the value frees its chunks
+			Assert.assertTrue(myCache.remove(id));
+			Assert.assertFalse(myCache.getStream(id, out));
+			Assert.assertTrue(myCache.getMetrics().getMemorySize() < 100);
+		}
+	}
+
+	@Test
+	public void chunkIdsAreNotEntries() throws Exception {
+		byte[] large = new byte[100_000];
+		new Random(25).nextBytes(large);
+		try (MyCache myCache = MyCache.builder(1_000_000).chunkSize(32 * 1024).deduplicate(true).build()) {
+			int streamed = myCache.putStream(new ByteArrayInputStream(large), 1, TimeUnit.SECONDS);
+			int deduplicated = myCache.putToCache(new byte[] { 1, 2, 3 });
+			List<Integer> chunks = new ArrayList<>();
+			for (int id = 0; id < deduplicated; id++) {
+				if (id != streamed) {
+					chunks.add(id);
+				}
+			}
+			// four chunks and the blob of the deduplicated value
+			Assert.assertEquals(5, chunks.size());
+
+			for (int id : chunks) {
+				Assert.assertNull(myCache.getFromCache(id));
+				Assert.assertNull(myCache.getBufferFromCache(id));
+				Assert.assertNull(myCache.getAsync(id).get(1, TimeUnit.SECONDS));
+				Assert.assertNull(myCache.getAll(id)[0]);
+				Assert.assertFalse(myCache.getStream(id, new ByteArrayOutputStream()));
+				Assert.assertFalse(myCache.remove(id));
+			}
+			Assert.assertArrayEquals(large, myCache.getFromCache(streamed));
+			Assert.assertArrayEquals(new byte[] { 1, 2, 3 }, myCache.getFromCache(deduplicated));
+		}
+	}
+
+	@Test
+	public void persistentCacheReopensStreamedValues() throws Exception {
+		Path directory = folder.newFolder().toPath();
+		byte[] large = new byte[1_000_000];
+		new Random(7).nextBytes(large);
+		try (MyCache myCache = MyCache.builder(200_000).chunkSize(32 * 1024).spillDirectory(directory)
+				.persistent(true).build()) {
+			myCache.putStream("large", new ByteArrayInputStream(large), 5, TimeUnit.SECONDS);
+		}
+		try (MyCache myCache = MyCache.builder(200_000).chunkSize(32 * 1024).spillDirectory(directory)
+				.persistent(true).build()) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			Assert.assertTrue(myCache.getStream("large", out));
+			Assert.assertArrayEquals(large, out.toByteArray());
+		}
+	}
+
+	@Test
+	public void oneChunkStreamIsNotTakenForADeduplicatedValue() throws Exception {
+		Path directory = folder.newFolder().toPath();
+		// exactly one chunk, so the stream is a manifest with a single chunk like a deduplicated value
+		byte[] value = new byte[1024];
+		new Random(22).nextBytes(value);
+		try (MyCache myCache = MyCache.builder(100_000).chunkSize(1024).deduplicate(true).spillDirectory(directory)
+				.persistent(true).build()) {
+			myCache.putStream("streamed", new ByteArrayInputStream(value), 1, TimeUnit.SECONDS);
+			// shares the stream's chunk as its blob
+			myCache.put("deduplicated", value);
+			Assert.assertEquals(1, myCache.getMetrics().getDeduplicatedPutCount());
+
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			Assert.assertTrue(myCache.getStream("streamed", out));
+			Assert.assertArrayEquals(value, out.toByteArray());
+			Assert.assertArrayEquals(value, myCache.get("streamed"));
+			Assert.assertArrayEquals(value, myCache.get("deduplicated"));
+		}
+		try (MyCache myCache = MyCache.builder(100_000).chunkSize(1024).deduplicate(true).spillDirectory(directory)
+				.persistent(true).build()) {
+			Assert.assertArrayEquals(value, myCache.get("streamed"));
+			Assert.assertArrayEquals(value, myCache.get("deduplicated"));
+			Assert.assertTrue(myCache.remove("streamed"));
+			Assert.assertArrayEquals(value, myCache.get("deduplicated"));
+		}
+	}
+
+	@Test
+	public void writeThroughPutsSurviveACrash() throws Exception {
+		Path directory = folder.newFolder().toPath();
+		Path crashed = folder.newFolder().toPath();
+		Map<Integer, byte[]> data = new HashMap<>();
+		byte[] keyed = new byte[800];
+		Arrays.fill(keyed, (byte) 7);
+		int removedId;
+		try (MyCache myCache = MyCache.builder(10_000).spillDirectory(directory).persistent(true)
+				.checkpointInterval(1, TimeUnit.HOURS).durability(Durability.WRITE_THROUGH).build()) {
+			myCache.put("kept", keyed);
+			for (int i = 0; i < 30; i++) {
+				byte[] b = new byte[1_000];
+				Arrays.fill(b, (byte) i);
+				data.put(myCache.putToCache(b, 1, TimeUnit.SECONDS), b);
+			}
+			removedId = data.keySet().iterator().next();
+			Assert.assertTrue(myCache.remove(removedId));
+			data.remove(removedId);
+			// takes the freed id, its commit carries the removal
+			Assert.assertEquals(removedId, myCache.putToCache(new byte[] { 1 }));
+
+			// what a crash would leave behind: no flush, no checkpoint
+			try (Stream<Path> files = Files.list(directory)) {
+				for (Path file : (Iterable<Path>) files::iterator) {
+					Files.copy(file, crashed.resolve(file.getFileName()));
+				}
+			}
+		}
+
+		try (MyCache myCache = MyCache.builder(10_000).spillDirectory(crashed).persistent(true).build()) {
+			for (Map.Entry<Integer, byte[]> entry : data.entrySet()) {
+				Assert.assertArrayEquals(entry.getValue(), myCache.getFromCache(entry.getKey()));
+			}
+			Assert.assertArrayEquals(new byte[] { 1 }, myCache.getFromCache(removedId));
+			Assert.assertArrayEquals(keyed, myCache.get("kept"));
+		}
+	}
+
+	@Test
+	public void evictionDoesNotRewriteValuesTheWriterPersisted() throws Exception {
+		for (Durability durability : new Durability[] { Durability.WRITE_BEHIND, Durability.WRITE_THROUGH }) {
+			Path directory = folder.newFolder().toPath();
+			Map<Integer, byte[]> data = new HashMap<>();
+			try (MyCache myCache = MyCache.builder(10_000).spillDirectory(directory).persistent(true)
+					.durability(durability).writeBehindLag(10, TimeUnit.MILLISECONDS).build()) {
+				for (int i = 0; i < 100; i++) {
+					byte[] b = new byte[1_000];
+					Arrays.fill(b, (byte) i);
+					data.put(myCache.putToCache(b, 1, TimeUnit.SECONDS), b);
+				}
+				for (Map.Entry<Integer, byte[]> entry : data.entrySet()) {
+					Assert.assertArrayEquals(entry.getValue(), myCache.getFromCache(entry.getKey()));
+				}
+				MyCacheMXBean metrics = myCache.getMetrics();
+				Assert.assertTrue(metrics.getEvictionCount() > 50);
+				// every value is written once, by the writer or by the cleaner. A value both pick up at the
+				// same moment may be written twice.
+				long flushed = metrics.getFlushedBytes();
+				Assert.assertTrue(durability + ": " + flushed, flushed <= 105_000);
+			}
+		}
+	}
+
+	@Test
+	public void durableAsyncPutsCompleteOffTheWriterThread() throws Exception {
+		try (MyCache myCache = MyCache.builder(1_000_000).spillDirectory(folder.newFolder().toPath())
+				.persistent(true).durability(Durability.WRITE_THROUGH).build()) {
+			List<CompletableFuture<String>> threads = new ArrayList<>();
+			for (int i = 0; i < 50; i++) {
+				threads.add(myCache.putAsync(new byte[1_000]).thenApply(id -> Thread.currentThread().getName()));
+			}
+			for (CompletableFuture<String> thread : threads) {
+				Assert.assertNotEquals("my_cache-writer", thread.get(10, TimeUnit.SECONDS));
+			}
+		}
+	}
+
+	@Test(timeout = 10_000)
+	public void failedBatchLoadPutsItsNodesBackOnDisk() throws Exception {
+		FailingPolicy policy = new FailingPolicy();
+		try (MyCache myCache = MyCache.builder(20_000).evictionPolicy(policy).build()) {
+			int[] ids = new int[40];
+			for (int i = 0; i < ids.length; i++) {
+				byte[] b = new byte[1_000];
+				Arrays.fill(b, (byte) i);
+				ids[i] = myCache.putToCache(b, 1, TimeUnit.SECONDS);
+			}
+			// room to load the oldest ones, which are spilled
+			for (int i = 30; i < ids.length; i++) {
+				myCache.remove(ids[i]);
+			}
+			long memory = myCache.getMetrics().getMemorySize();
+
+			policy.failing = true;
+			try {
+				myCache.getAll(Arrays.copyOf(ids, 5));
+				Assert.fail("The eviction policy should have failed the load");
+			} catch (IllegalStateException e) {
+				// the node the policy failed for is resident, the others are spilled again
+			}
+			policy.failing = false;
+			for (int i = 1; i < 5; i++) {
+				byte[] b = new byte[1_000];
+				Arrays.fill(b, (byte) i);
+				Assert.assertArrayEquals(b, myCache.getAll(ids[i])[0]);
+			}
+			for (int i = 0; i < 5; i++) {
+				Assert.assertTrue(myCache.remove(ids[i]));
+			}
+			Assert.assertEquals(memory, myCache.getMetrics().getMemorySize());
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void durableModesNeedAPersistentCache() {
+		MyCache.builder(10_000).durability(Durability.WRITE_THROUGH).build();
+	}
+
+	// CLOCK that fails inserts while failing is set
+	private static class FailingPolicy extends EvictionPolicy {
+
+		private final EvictionPolicy clock = EvictionPolicy.clock();
+		volatile boolean failing;
+
+		FailingPolicy() {
+			super("failing");
+		}
+
+		@Override
+		void onAccess(int id) {
+			clock.onAccess(id);
+		}
+
+		@Override
+		void onInsert(int id, int weight) {
+			if (failing) {
+				throw new IllegalStateException("Insert of node id: " + id + " failed");
+			}
+			clock.onInsert(id, weight);
+		}
+
+		@Override
+		int onEvict() {
+			return clock.onEvict();
+		}
+
+		@Override
+		void onRemove(int id) {
+			clock.onRemove(id);
+		}
 	}
 
 	private static class Reader implements Runnable {
@@ -68,7 +950,7 @@ public class MyCacheTest {
 						byte[] b = new byte[random.nextInt(MAX_OBJECT_SIZE)];
 						random.nextBytes(b);
 						try {
-							data.put(cache.putToCache(b), b);
+							data.put(cache.putToCache(b, 1, TimeUnit.SECONDS), b);
 							countWrote++;
 						}
 						catch(CacheUnavailableException e) {
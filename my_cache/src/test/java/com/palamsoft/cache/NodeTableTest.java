@@ -0,0 +1,27 @@
+package com.palamsoft.cache;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class NodeTableTest {
+
+	@Test
+	public void growsAcrossChunks() {
+		NodeTable<Integer> table = new NodeTable<>(0);
+		for (int i = 0; i < 5000; i++) {
+			Assert.assertEquals(i, table.append(i));
+		}
+		Assert.assertEquals(5000, table.size());
+		for (int i = 0; i < 5000; i++) {
+			Assert.assertEquals(Integer.valueOf(i), table.get(i));
+		}
+	}
+
+	@Test
+	public void outOfRangeIsNull() {
+		NodeTable<Integer> table = new NodeTable<>(16);
+		table.append(1);
+		Assert.assertNull(table.get(-1));
+		Assert.assertNull(table.get(1));
+	}
+}
@@ -0,0 +1,107 @@
+package com.palamsoft.cache;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.palamsoft.cache.PromotionPolicy.Decision;
+
+public class PromotionPolicyTest {
+
+	private static final int KEYS = 1_000;
+	private static final int VALUE_SIZE = 1_000;
+	private static final int READS = 20_000;
+
+	@Test
+	public void frequencyThresholds() {
+		PromotionPolicy policy = PromotionPolicy.frequency(2, 4);
+		Assert.assertEquals(Decision.SKIP, policy.onDiskRead(7));
+		Assert.assertEquals(Decision.IF_ROOM, policy.onDiskRead(7));
+		Assert.assertEquals(Decision.IF_ROOM, policy.onDiskRead(7));
+		Assert.assertEquals(Decision.FORCE, policy.onDiskRead(7));
+		// other ids are counted separately
+		Assert.assertEquals(Decision.SKIP, policy.onDiskRead(8));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void forceBelowAdmissionIsRejected() {
+		PromotionPolicy.frequency(3, 2);
+	}
+
+	@Test
+	public void frequencyKeepsHotSetThroughScan() throws Exception {
+		try (MyCache myCache = MyCache.builder(100 * VALUE_SIZE).evictionPolicy(EvictionPolicy.clock())
+				.promotionPolicy(PromotionPolicy.frequency(2)).build()) {
+			int[] cold = put(myCache, 300);
+			int[] hot = put(myCache, 20);
+			// until the hot set is promoted and the cleaner has settled
+			for (int pass = 0; pass < 100 && missesReading(myCache, hot) > 0; pass++) {
+				Thread.sleep(10);
+			}
+
+			long promotions = myCache.getMetrics().getPromotionCount();
+			missesReading(myCache, cold);
+			Assert.assertEquals(promotions, myCache.getMetrics().getPromotionCount());
+			Assert.assertEquals(0, missesReading(myCache, hot));
+		}
+	}
+
+	@Test
+	public void always() throws Exception {
+		MyCacheMXBean metrics = readThroughScan(PromotionPolicy.always());
+		Assert.assertEquals(0, metrics.getPromotionsSkippedCount());
+		Assert.assertEquals(0, metrics.getForcedPromotionCount());
+	}
+
+	@Test
+	public void frequency() throws Exception {
+		MyCacheMXBean metrics = readThroughScan(PromotionPolicy.frequency(2));
+		// the first read of every key
+		Assert.assertTrue(metrics.getPromotionsSkippedCount() >= KEYS);
+		Assert.assertEquals(0, metrics.getForcedPromotionCount());
+	}
+
+	@Test
+	public void frequencyWithForcedPromotion() throws Exception {
+		MyCacheMXBean metrics = readThroughScan(PromotionPolicy.frequency(2, 4));
+		Assert.assertTrue(metrics.getPromotionsSkippedCount() >= KEYS);
+		Assert.assertTrue(metrics.getForcedPromotionCount() > 0);
+	}
+
+	// Zipf reads with every tenth read part of a sequential scan, on a cache that holds a tenth of the keys
+	private MyCacheMXBean readThroughScan(PromotionPolicy policy) throws Exception {
+		try (MyCache myCache = MyCache.builder(KEYS / 10 * VALUE_SIZE).evictionPolicy(EvictionPolicy.clock())
+				.promotionPolicy(policy).build()) {
+			int[] ids = put(myCache, KEYS);
+			EvictionPolicyTest.ZipfGenerator zipf = new EvictionPolicyTest.ZipfGenerator(KEYS, 0.99, new Random(42));
+			int scanFrom = 0;
+			for (int i = 0; i < READS; i++) {
+				int key = (i % 10 == 0) ? (scanFrom++ % KEYS) : zipf.next();
+				Assert.assertNotNull(myCache.getFromCache(ids[key]));
+			}
+			MyCacheMXBean metrics = myCache.getMetrics();
+			Assert.assertTrue(String.format("%s: hit ratio %.3f, promotions %d, not admitted %d", policy.getName(),
+					metrics.getHitRatio(), metrics.getPromotionCount(), metrics.getLoadsNotAdmittedCount()),
+					metrics.getHitRatio() > 0.1);
+			return metrics;
+		}
+	}
+
+	private static int[] put(MyCache myCache, int count) throws InterruptedException {
+		int[] ids = new int[count];
+		for (int i = 0; i < count; i++) {
+			ids[i] = myCache.putToCache(new byte[VALUE_SIZE], 1, TimeUnit.SECONDS);
+		}
+		return ids;
+	}
+
+	private static long missesReading(MyCache myCache, int[] ids) {
+		long misses = myCache.getMetrics().getMissCount();
+		for (int id : ids) {
+			myCache.getFromCache(id);
+		}
+		return myCache.getMetrics().getMissCount() - misses;
+	}
+}
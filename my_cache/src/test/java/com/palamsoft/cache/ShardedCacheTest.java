@@ -0,0 +1,83 @@
+package com.palamsoft.cache;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ShardedCacheTest {
+
+	@Test
+	public void idsAndKeysRouteToTheirShard() throws Exception {
+		try (ShardedCache cache = ShardedCache.builder(40_000).shards(4).build()) {
+			// before memory fills up, these puts do not wait
+			for (int i = 0; i < 20; i++) {
+				cache.put("key-" + i, new byte[] { (byte) i });
+			}
+			Map<Integer, byte[]> data = new HashMap<>();
+			for (int i = 0; i < 100; i++) {
+				byte[] b = new byte[1_000];
+				b[i] = (byte) i;
+				data.put(cache.putToCache(b, 1, TimeUnit.SECONDS), b);
+			}
+			for (Map.Entry<Integer, byte[]> entry : data.entrySet()) {
+				Assert.assertArrayEquals(entry.getValue(), cache.getFromCache(entry.getKey()));
+			}
+			int id = data.keySet().iterator().next();
+			Assert.assertTrue(cache.remove(id));
+			Assert.assertNull(cache.getFromCache(id));
+
+			for (int i = 0; i < 20; i++) {
+				Assert.assertArrayEquals(new byte[] { (byte) i }, cache.get("key-" + i));
+			}
+			Assert.assertTrue(cache.remove("key-3"));
+			Assert.assertNull(cache.get("key-3"));
+			Assert.assertArrayEquals(new byte[] { 4 }, cache.getAsync("key-4").get(1, TimeUnit.SECONDS));
+		}
+	}
+
+	@Test
+	public void budgetFollowsDemand() throws Exception {
+		try (ShardedCache cache = ShardedCache.builder(40_000).shards(4).rebalanceInterval(1, TimeUnit.HOURS).build()) {
+			BudgetCoordinator coordinator = cache.coordinator();
+			Assert.assertFalse(coordinator.rebalance());
+			for (int round = 0; round < 5; round++) {
+				for (int i = 0; i < 20; i++) {
+					cache.shard(0).putToCache(new byte[1_000], 1, TimeUnit.SECONDS);
+				}
+				cache.shard(1).putToCache(new byte[1_000], 1, TimeUnit.SECONDS);
+				Assert.assertTrue(coordinator.rebalance());
+			}
+
+			long total = 0;
+			for (int i = 0; i < 4; i++) {
+				long limit = cache.shard(i).highMemoryLimit();
+				Assert.assertEquals(coordinator.limit(i), limit);
+				// half of the even share is kept whatever the demand
+				Assert.assertTrue("shard " + i + ": " + limit, limit >= 5_000);
+				total += limit;
+			}
+			Assert.assertEquals(40_000, total);
+			Assert.assertTrue(cache.shard(0).highMemoryLimit() > 20_000);
+			Assert.assertTrue(cache.shard(1).highMemoryLimit() > cache.shard(2).highMemoryLimit());
+		}
+	}
+
+	@Test
+	public void shardsShareTheirThreads() throws Exception {
+		long before = maintenanceThreads();
+		try (ShardedCache cache = ShardedCache.builder(40_000).shards(8).build()) {
+			for (int i = 0; i < 8; i++) {
+				cache.put("key-" + i, new byte[100]);
+			}
+			Assert.assertEquals(before + 1, maintenanceThreads());
+		}
+	}
+
+	private static long maintenanceThreads() {
+		return Thread.getAllStackTraces().keySet().stream()
+				.filter(thread -> thread.isAlive() && thread.getName().equals("my_cache-maintenance")).count();
+	}
+}
@@ -0,0 +1,52 @@
+package com.palamsoft.cache;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class SlabAllocatorTest {
+
+	@Test
+	public void reusesFreedSlotInPlace() {
+		SlabAllocator allocator = new SlabAllocator(4096, 1024);
+		SlabAllocator.Slot first = allocator.allocate(100);
+		allocator.allocate(100);
+		allocator.free(first);
+
+		SlabAllocator.Slot reused = allocator.allocate(90);
+		Assert.assertSame(first.slab, reused.slab);
+		Assert.assertEquals(first.index, reused.index);
+		Assert.assertEquals(90, reused.buffer.remaining());
+		Assert.assertEquals(allocator.slotSize(100), reused.buffer.capacity());
+	}
+
+	@Test
+	public void failsWhenCapacityIsExhausted() {
+		SlabAllocator allocator = new SlabAllocator(2048, 1024);
+		Assert.assertNotNull(allocator.allocate(1000));
+		Assert.assertNotNull(allocator.allocate(1000));
+		Assert.assertNull(allocator.allocate(1000));
+		Assert.assertNull(allocator.allocate(3000));
+		Assert.assertEquals(2048, allocator.reserved());
+	}
+
+	@Test
+	public void emptySlabIsRecutForAnotherClass() {
+		SlabAllocator allocator = new SlabAllocator(1024, 1024);
+		SlabAllocator.Slot small = allocator.allocate(64);
+		Assert.assertNull(allocator.allocate(1000));
+
+		allocator.free(small);
+		SlabAllocator.Slot large = allocator.allocate(1000);
+		Assert.assertSame(small.slab, large.slab);
+	}
+
+	@Test
+	public void oversizedValueGetsDedicatedBuffer() {
+		SlabAllocator allocator = new SlabAllocator(10_000, 1024);
+		SlabAllocator.Slot slot = allocator.allocate(5000);
+		Assert.assertNull(slot.slab);
+		Assert.assertEquals(5000, allocator.reserved());
+		allocator.free(slot);
+		Assert.assertEquals(0, allocator.reserved());
+	}
+}
@@ -0,0 +1,90 @@
+package com.palamsoft.cache;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SpillJournalTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private Path directory;
+
+	@Before
+	public void setUp() {
+		directory = folder.getRoot().toPath();
+	}
+
+	private static SpillIndex.Entry entry(int id, int offset) {
+		return new SpillIndex.Entry(id, 0, offset, 10, SpillIndex.NO_EXPIRY, (id == 1) ? new byte[] { 1 } : null,
+				false, false, 0);
+	}
+
+	@Test
+	public void replaysCommittedRecordsInOrder() throws IOException {
+		try (SpillJournal journal = new SpillJournal(directory, 0)) {
+			journal.put(entry(1, 0));
+			journal.put(entry(2, 10));
+			journal.commit();
+			journal.remove(2);
+			journal.put(entry(1, 20));
+			journal.commit();
+			// never committed
+			journal.put(entry(3, 30));
+		}
+
+		Map<Integer, SpillIndex.Entry> entries = new TreeMap<>();
+		Assert.assertEquals(1, SpillJournal.replay(directory, 0, entries));
+		Assert.assertEquals(1, entries.size());
+		SpillIndex.Entry entry = entries.get(1);
+		Assert.assertEquals(20, entry.offset);
+		Assert.assertArrayEquals(new byte[] { 1 }, entry.key);
+	}
+
+	@Test
+	public void rollStartsALogThatOutlivesTheOlderOnes() throws IOException {
+		try (SpillJournal journal = new SpillJournal(directory, 5)) {
+			journal.put(entry(1, 0));
+			journal.commit();
+			journal.put(entry(2, 10));
+			Assert.assertEquals(6, journal.roll());
+			journal.put(entry(3, 20));
+			journal.commit();
+			journal.deleteBefore(6);
+		}
+
+		Map<Integer, SpillIndex.Entry> entries = new TreeMap<>();
+		Assert.assertEquals(7, SpillJournal.replay(directory, 6, entries));
+		Assert.assertEquals(1, entries.size());
+		Assert.assertTrue(entries.containsKey(3));
+	}
+
+	@Test
+	public void replayStopsAtATornFrame() throws IOException {
+		try (SpillJournal journal = new SpillJournal(directory, 0)) {
+			journal.put(entry(1, 0));
+			journal.commit();
+			journal.put(entry(2, 10));
+			journal.commit();
+		}
+		Path log = directory.resolve("spill.0.log");
+		try (FileChannel channel = FileChannel.open(log, StandardOpenOption.WRITE)) {
+			channel.truncate(channel.size() - 3);
+		}
+
+		Map<Integer, SpillIndex.Entry> entries = new TreeMap<>();
+		SpillJournal.replay(directory, 0, entries);
+		Assert.assertEquals(1, entries.size());
+		Assert.assertTrue(entries.containsKey(1));
+	}
+}
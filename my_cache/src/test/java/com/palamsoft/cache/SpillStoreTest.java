@@ -0,0 +1,203 @@
+package com.palamsoft.cache;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SpillStoreTest {
+
+	private Path directory;
+	private SpillStore store;
+
+	@Before
+	public void setUp() throws IOException {
+		directory = Files.createTempDirectory("spill_store_test");
+		store = new SpillStore(directory, 1024);
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		store.destroy();
+		Assert.assertFalse(Files.exists(directory));
+	}
+
+	@Test
+	public void readsBackWrittenValues() throws IOException {
+		Random random = new Random();
+		byte[][] values = new byte[20][];
+		for (int id = 0; id < values.length; id++) {
+			values[id] = new byte[random.nextInt(300)];
+			random.nextBytes(values[id]);
+			store.write(id, values[id]);
+		}
+		for (int id = 0; id < values.length; id++) {
+			Assert.assertArrayEquals(values[id], store.read(id));
+		}
+	}
+
+	@Test
+	public void batchReadKeepsCallerOrder() throws IOException {
+		Random random = new Random();
+		byte[][] values = new byte[30][];
+		for (int id = 0; id < values.length; id++) {
+			values[id] = new byte[random.nextInt(300)];
+			random.nextBytes(values[id]);
+			store.write(id, values[id]);
+		}
+		// descending ids, spread over several segments, plus one that was never written
+		int[] ids = new int[values.length + 1];
+		for (int i = 0; i < values.length; i++) {
+			ids[i] = values.length - 1 - i;
+		}
+		ids[values.length] = 1000;
+
+		byte[][] read = store.read(ids, ids.length);
+		for (int i = 0; i < values.length; i++) {
+			Assert.assertArrayEquals(values[ids[i]], read[i]);
+		}
+		Assert.assertNull(read[values.length]);
+	}
+
+	@Test
+	public void oversizedValueGetsOwnSegment() throws IOException {
+		byte[] small = new byte[] { 1, 2, 3 };
+		byte[] large = new byte[5000];
+		new Random().nextBytes(large);
+
+		store.write(0, small);
+		store.write(1, large);
+		store.write(2, small);
+
+		Assert.assertArrayEquals(large, store.read(1));
+		Assert.assertSame(store.extent(0).segment, store.extent(2).segment);
+		Assert.assertNotSame(store.extent(0).segment, store.extent(1).segment);
+	}
+
+	@Test
+	public void batchWriteSpansSegments() throws IOException {
+		Random random = new Random();
+		int count = 10;
+		int[] ids = new int[count];
+		byte[][] values = new byte[count][];
+		ByteBuffer[] buffers = new ByteBuffer[count];
+		for (int i = 0; i < count; i++) {
+			ids[i] = 100 + i;
+			values[i] = new byte[(i == 5) ? 2000 : random.nextInt(400)];
+			random.nextBytes(values[i]);
+			buffers[i] = ByteBuffer.wrap(values[i]);
+		}
+		store.write(ids, buffers, count, true);
+		for (int i = 0; i < count; i++) {
+			Assert.assertArrayEquals(values[i], store.read(ids[i]));
+		}
+	}
+
+	@Test
+	public void compactionRewritesMostlyDeadSegments() throws IOException {
+		byte[] value = new byte[200];
+		new Random().nextBytes(value);
+		// five values fill a 1024 byte segment
+		for (int id = 0; id < 12; id++) {
+			store.write(id, value);
+		}
+		Assert.assertEquals(3, store.segmentCount());
+		for (int id = 0; id < 4; id++) {
+			Assert.assertTrue(store.remove(id));
+		}
+		Assert.assertFalse(store.remove(0));
+
+		Assert.assertEquals(1, store.compact(0.5));
+		Assert.assertEquals(2, store.segmentCount());
+		for (int id = 4; id < 12; id++) {
+			Assert.assertArrayEquals(value, store.read(id));
+		}
+		Assert.assertNull(store.read(0));
+	}
+
+	@Test
+	public void unknownIdIsNull() {
+		Assert.assertNull(store.read(42));
+		Assert.assertFalse(store.contains(42));
+	}
+
+	@Test
+	public void restoreReopensReferencedSegments() throws IOException {
+		Random random = new Random();
+		byte[][] values = new byte[20][];
+		for (int id = 0; id < values.length; id++) {
+			values[id] = new byte[100 + random.nextInt(200)];
+			random.nextBytes(values[id]);
+			store.write(id, values[id]);
+		}
+		// keep the even ids, the segments holding only odd ones are dropped
+		List<SpillIndex.Entry> entries = new ArrayList<>();
+		for (int id = 0; id < values.length; id += 2) {
+			SpillStore.Extent extent = store.extent(id);
+			entries.add(new SpillIndex.Entry(id, extent.segment.number, extent.offset, extent.length,
+					SpillIndex.NO_EXPIRY, null, false, false, 0));
+		}
+		int segmentCount = store.segmentCount();
+		store.close();
+
+		store = new SpillStore(directory, 1024);
+		Assert.assertEquals(entries.size(), store.restore(entries).size());
+		Assert.assertTrue(store.segmentCount() <= segmentCount);
+		for (int id = 0; id < values.length; id++) {
+			Assert.assertArrayEquals((id % 2 == 0) ? values[id] : null, store.read(id));
+		}
+		byte[] value = new byte[500];
+		random.nextBytes(value);
+		store.write(values.length, value);
+		Assert.assertArrayEquals(value, store.read(values.length));
+	}
+
+	@Test
+	public void concurrentWritersAndCompaction() throws Exception {
+		final int threads = 4;
+		final int idsPerThread = 200;
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<byte[][]>> futures = new ArrayList<>();
+			for (int t = 0; t < threads; t++) {
+				final int first = t * idsPerThread;
+				futures.add(executor.submit(() -> {
+					Random random = new Random(first);
+					byte[][] values = new byte[idsPerThread][];
+					// every id is written twice, so compaction finds dead bytes while writers go on
+					for (int round = 0; round < 2; round++) {
+						for (int i = 0; i < idsPerThread; i++) {
+							values[i] = new byte[1 + random.nextInt(200)];
+							random.nextBytes(values[i]);
+							store.write(first + i, values[i]);
+						}
+					}
+					return values;
+				}));
+			}
+			while (!futures.stream().allMatch(Future::isDone)) {
+				store.compact(0.5);
+			}
+			store.compact(0.5);
+			for (int t = 0; t < threads; t++) {
+				byte[][] values = futures.get(t).get();
+				for (int i = 0; i < idsPerThread; i++) {
+					Assert.assertArrayEquals(values[i], store.read(t * idsPerThread + i));
+				}
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+}
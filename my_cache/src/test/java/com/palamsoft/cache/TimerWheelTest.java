@@ -0,0 +1,69 @@
+package com.palamsoft.cache;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TimerWheelTest {
+
+	private static final long TICK = 100;
+
+	@Test
+	public void firesOnlyExpiredTimers() {
+		TimerWheel<String> wheel = new TimerWheel<>(TICK, 8, 0);
+		wheel.schedule(1, "a", 250);
+		wheel.schedule(2, "b", 450);
+		List<Integer> fired = new ArrayList<>();
+
+		wheel.advance(300, (id, owner) -> fired.add(id));
+		Assert.assertEquals(1, fired.size());
+		Assert.assertEquals(Integer.valueOf(1), fired.get(0));
+
+		wheel.advance(500, (id, owner) -> fired.add(id));
+		Assert.assertEquals(2, fired.size());
+		Assert.assertEquals(0, wheel.size());
+	}
+
+	@Test
+	public void timerBeyondOneTurnWaitsForItsRound() {
+		TimerWheel<String> wheel = new TimerWheel<>(TICK, 8, 0);
+		// 20 ticks ahead, the wheel turns every 8 ticks
+		wheel.schedule(1, "a", 2_000);
+		List<Integer> fired = new ArrayList<>();
+
+		wheel.advance(1_000, (id, owner) -> fired.add(id));
+		Assert.assertTrue(fired.isEmpty());
+		wheel.advance(2_050, (id, owner) -> fired.add(id));
+		Assert.assertEquals(1, fired.size());
+	}
+
+	@Test
+	public void cancelledTimerNeverFires() {
+		TimerWheel<String> wheel = new TimerWheel<>(TICK, 8, 0);
+		TimerWheel.Timer<String> timer = wheel.schedule(1, "a", 250);
+		wheel.schedule(2, "b", 250);
+		wheel.cancel(timer);
+		// the owner is no longer referenced by the wheel
+		Assert.assertNull(timer.owner);
+		Assert.assertEquals(1, wheel.size());
+		List<Integer> fired = new ArrayList<>();
+
+		wheel.advance(300, (id, owner) -> fired.add(id));
+		Assert.assertEquals(1, fired.size());
+		Assert.assertEquals(Integer.valueOf(2), fired.get(0));
+		// cancelling a fired timer does nothing
+		wheel.cancel(timer);
+		Assert.assertEquals(0, wheel.size());
+	}
+
+	@Test
+	public void pastDeadlineFiresOnNextAdvance() {
+		TimerWheel<String> wheel = new TimerWheel<>(TICK, 8, 1_000);
+		wheel.schedule(1, "a", 500);
+		List<Integer> fired = new ArrayList<>();
+		wheel.advance(1_100, (id, owner) -> fired.add(id));
+		Assert.assertEquals(1, fired.size());
+	}
+}
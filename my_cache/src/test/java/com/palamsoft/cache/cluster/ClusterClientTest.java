@@ -0,0 +1,202 @@
+package com.palamsoft.cache.cluster;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.palamsoft.cache.MyCache;
+import com.palamsoft.cache.server.CacheClient;
+import com.palamsoft.cache.server.CacheServer;
+
+public class ClusterClientTest {
+
+	private final List<MyCache> caches = new ArrayList<>();
+
+	private final Map<InetSocketAddress, CacheServer> servers = new HashMap<>();
+
+	private InetSocketAddress startNode() throws IOException {
+		MyCache cache = MyCache.builder(1_000_000).lowLimit(800_000).build();
+		caches.add(cache);
+		CacheServer server = new CacheServer(cache, new InetSocketAddress("localhost", 0));
+		InetSocketAddress address = new InetSocketAddress("localhost", server.getPort());
+		servers.put(address, server);
+		return address;
+	}
+
+	private List<InetSocketAddress> startNodes(int n) throws IOException {
+		List<InetSocketAddress> nodes = new ArrayList<>();
+		for (int i = 0; i < n; i++) {
+			nodes.add(startNode());
+		}
+		return nodes;
+	}
+
+	@After
+	public void stopNodes() throws IOException {
+		for (CacheServer server : servers.values()) {
+			server.close();
+		}
+		for (MyCache cache : caches) {
+			cache.close();
+		}
+	}
+
+	private static Map<InetSocketAddress, List<String>> keysByNode(List<InetSocketAddress> nodes) throws IOException {
+		Map<InetSocketAddress, List<String>> keys = new HashMap<>();
+		for (InetSocketAddress node : nodes) {
+			try (CacheClient client = new CacheClient(node, 1)) {
+				keys.put(node, client.keys());
+			}
+		}
+		return keys;
+	}
+
+	private static byte[] value(int i) {
+		byte[] b = new byte[100];
+		Arrays.fill(b, (byte) i);
+		return b;
+	}
+
+	@Test
+	public void partitionsAndRebalancesOnlyMovedKeys() throws Exception {
+		List<InetSocketAddress> nodes = startNodes(3);
+		try (ClusterClient cluster = ClusterClient.builder(nodes).build()) {
+			List<String> keys = new ArrayList<>();
+			for (int i = 0; i < 600; i++) {
+				cluster.put("key-" + i, value(i));
+				keys.add("key-" + i);
+			}
+			Map<InetSocketAddress, List<String>> before = keysByNode(nodes);
+			int total = 0;
+			for (List<String> onNode : before.values()) {
+				Assert.assertTrue(onNode.size() > 100);
+				total += onNode.size();
+			}
+			Assert.assertEquals(600, total);
+
+			InetSocketAddress added = startNode();
+			int moved = cluster.addNode(added);
+			Assert.assertTrue("moved " + moved, moved > 60 && moved < 300);
+			List<InetSocketAddress> grown = new ArrayList<>(nodes);
+			grown.add(added);
+			Map<InetSocketAddress, List<String>> after = keysByNode(grown);
+			Assert.assertEquals(moved, after.get(added).size());
+			for (InetSocketAddress node : nodes) {
+				// the old nodes kept their other keys and got none
+				Assert.assertEquals(before.get(node).size() - after.get(node).size(), after.get(added).stream()
+						.filter(before.get(node)::contains).count());
+				Assert.assertTrue(before.get(node).containsAll(after.get(node)));
+			}
+
+			List<byte[]> values = cluster.getAll(keys);
+			for (int i = 0; i < 600; i++) {
+				Assert.assertArrayEquals(value(i), values.get(i));
+			}
+
+			cluster.removeNode(nodes.get(0));
+			Assert.assertEquals(3, cluster.getNodes().size());
+			Assert.assertTrue(keysByNode(nodes.subList(0, 1)).get(nodes.get(0)).isEmpty());
+			for (int i = 0; i < 600; i++) {
+				Assert.assertArrayEquals(value(i), cluster.get("key-" + i));
+			}
+			Assert.assertTrue(cluster.remove("key-1"));
+			Assert.assertNull(cluster.get("key-1"));
+		}
+	}
+
+	@Test
+	public void replicasServeKeysOfAFailedNode() throws Exception {
+		List<InetSocketAddress> nodes = startNodes(3);
+		try (ClusterClient cluster = ClusterClient.builder(nodes).replicas(2).build()) {
+			for (int i = 0; i < 300; i++) {
+				cluster.put("key-" + i, value(i));
+			}
+			int total = 0;
+			for (List<String> onNode : keysByNode(nodes).values()) {
+				total += onNode.size();
+			}
+			Assert.assertEquals(600, total);
+
+			servers.get(nodes.get(1)).close();
+			for (int i = 0; i < 300; i++) {
+				Assert.assertArrayEquals(value(i), cluster.get("key-" + i));
+			}
+			// removed from the replicas that can be reached
+			for (int i = 0; i < 300; i += 2) {
+				Assert.assertTrue(cluster.remove("key-" + i));
+			}
+
+			// the failed node's keys are copied from the replicas, so every key has two owners again
+			cluster.removeNode(nodes.get(1));
+			List<InetSocketAddress> left = Arrays.asList(nodes.get(0), nodes.get(2));
+			Map<InetSocketAddress, List<String>> keys = keysByNode(left);
+			Assert.assertEquals(150, keys.get(nodes.get(0)).size());
+			Assert.assertEquals(150, keys.get(nodes.get(2)).size());
+		}
+	}
+
+	@Test
+	public void keysAreCopiedFromTheNodesThatHoldThem() throws Exception {
+		List<InetSocketAddress> nodes = startNodes(3);
+		HashRing ring = new HashRing(nodes, 160);
+		try (ClusterClient cluster = ClusterClient.builder(nodes).replicas(2).build()) {
+			// puts that reached only the second owner of their key
+			for (int i = 0; i < 300; i++) {
+				InetSocketAddress holder = ring.owners(("key-" + i).getBytes(StandardCharsets.UTF_8), 2).get(1);
+				try (CacheClient client = new CacheClient(holder, 1)) {
+					client.put("key-" + i, value(i));
+				}
+			}
+
+			InetSocketAddress added = startNode();
+			cluster.addNode(added);
+			List<InetSocketAddress> grown = new ArrayList<>(nodes);
+			grown.add(added);
+			int total = 0;
+			for (List<String> onNode : keysByNode(grown).values()) {
+				total += onNode.size();
+			}
+			// every key is on both of its new owners, and only there
+			Assert.assertEquals(600, total);
+			for (int i = 0; i < 300; i++) {
+				Assert.assertArrayEquals(value(i), cluster.get("key-" + i));
+			}
+		}
+	}
+
+	@Test
+	public void failedMoveLeavesTheClusterAsItWas() throws Exception {
+		List<InetSocketAddress> nodes = startNodes(2);
+		try (ClusterClient cluster = ClusterClient.builder(nodes).build()) {
+			for (int i = 0; i < 200; i++) {
+				cluster.put("key-" + i, value(i));
+			}
+			Map<InetSocketAddress, List<String>> before = keysByNode(nodes);
+			InetSocketAddress dead = startNode();
+			servers.get(dead).close();
+
+			for (int attempt = 0; attempt < 2; attempt++) {
+				try {
+					cluster.addNode(dead);
+					Assert.fail();
+				} catch (IOException e) {
+					// the keys it would own cannot be copied to it
+				}
+				Assert.assertEquals(nodes, cluster.getNodes());
+			}
+			Assert.assertEquals(before, keysByNode(nodes));
+			for (int i = 0; i < 200; i++) {
+				Assert.assertArrayEquals(value(i), cluster.get("key-" + i));
+			}
+		}
+	}
+}
@@ -0,0 +1,71 @@
+package com.palamsoft.cache.cluster;
+
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class HashRingTest {
+
+	private static List<InetSocketAddress> nodes(int n) {
+		List<InetSocketAddress> nodes = new ArrayList<>();
+		for (int i = 0; i < n; i++) {
+			nodes.add(InetSocketAddress.createUnresolved("localhost", 7000 + i));
+		}
+		return nodes;
+	}
+
+	private static byte[] key(int i) {
+		return ("key-" + i).getBytes(StandardCharsets.UTF_8);
+	}
+
+	@Test
+	public void keysSpreadEvenly() {
+		HashRing ring = new HashRing(nodes(4), 160);
+		Map<InetSocketAddress, Integer> counts = new HashMap<>();
+		for (int i = 0; i < 40_000; i++) {
+			counts.merge(ring.owners(key(i), 1).get(0), 1, Integer::sum);
+		}
+		Assert.assertEquals(4, counts.size());
+		for (int count : counts.values()) {
+			Assert.assertTrue("" + counts, count > 7_000 && count < 13_000);
+		}
+	}
+
+	@Test
+	public void addingANodeMovesOnlyItsShare() {
+		HashRing ring = new HashRing(nodes(4), 160);
+		InetSocketAddress added = InetSocketAddress.createUnresolved("localhost", 7004);
+		HashRing grown = ring.with(added, 160);
+		int moved = 0;
+		for (int i = 0; i < 40_000; i++) {
+			InetSocketAddress before = ring.owners(key(i), 1).get(0);
+			InetSocketAddress after = grown.owners(key(i), 1).get(0);
+			if (!before.equals(after)) {
+				// keys only ever move to the new node
+				Assert.assertEquals(added, after);
+				moved++;
+			}
+		}
+		Assert.assertTrue("moved " + moved, moved > 5_000 && moved < 11_000);
+		Assert.assertEquals(ring.nodes(), grown.without(added, 160).nodes());
+	}
+
+	@Test
+	public void replicasAreDistinctNodes() {
+		HashRing ring = new HashRing(nodes(3), 16);
+		for (int i = 0; i < 1_000; i++) {
+			List<InetSocketAddress> owners = ring.owners(key(i), 2);
+			Assert.assertEquals(2, owners.size());
+			Assert.assertNotEquals(owners.get(0), owners.get(1));
+			Assert.assertEquals(owners.get(0), ring.owners(key(i), 1).get(0));
+		}
+		Assert.assertEquals(3, ring.owners(key(0), 5).size());
+		Assert.assertTrue(new HashRing(new ArrayList<>(), 16).owners(key(0), 1).isEmpty());
+	}
+}
@@ -0,0 +1,227 @@
+package com.palamsoft.cache.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.palamsoft.cache.MyCache;
+import com.palamsoft.cache.MyCache.CacheUnavailableException;
+
+public class CacheServerTest {
+
+	private static InetSocketAddress localhost(CacheServer server) throws Exception {
+		return new InetSocketAddress("localhost", server.getPort());
+	}
+
+	private static byte[] value(int i, int size) {
+		byte[] b = new byte[size];
+		Arrays.fill(b, (byte) i);
+		return b;
+	}
+
+	@Test
+	public void putGetRemoveAndPipelinedGets() throws Exception {
+		try (MyCache cache = MyCache.builder(1_000_000).lowLimit(800_000).build();
+				CacheServer server = new CacheServer(cache, new InetSocketAddress("localhost", 0));
+				CacheClient client = new CacheClient(localhost(server), 2)) {
+			client.put("a", new byte[] { 1, 2, 3 });
+			Assert.assertArrayEquals(new byte[] { 1, 2, 3 }, client.get("a"));
+			Assert.assertArrayEquals(new byte[] { 1, 2, 3 }, cache.get("a"));
+			Assert.assertNull(client.get("missing"));
+
+			List<String> keys = new ArrayList<>();
+			for (int i = 0; i < 500; i++) {
+				client.put("key-" + i, value(i, 100));
+				keys.add("key-" + i);
+			}
+			keys.add(250, "missing");
+			List<byte[]> values = client.getAll(keys);
+			Assert.assertEquals(501, values.size());
+			Assert.assertNull(values.get(250));
+			for (int i = 0; i < 500; i++) {
+				Assert.assertArrayEquals(value(i, 100), values.get((i < 250) ? i : i + 1));
+			}
+
+			Assert.assertTrue(client.remove("a"));
+			Assert.assertFalse(client.remove("a"));
+			Assert.assertNull(client.get("a"));
+			Assert.assertEquals(500, client.keys().size());
+			Assert.assertTrue(client.keys().contains("key-499"));
+		}
+	}
+
+	@Test
+	public void servesSpilledValuesAndLargeValues() throws Exception {
+		try (MyCache cache = MyCache.builder(100_000).lowLimit(80_000).build();
+				CacheServer server = new CacheServer(cache, new InetSocketAddress("localhost", 0));
+				CacheClient client = new CacheClient(localhost(server), 1)) {
+			List<String> keys = new ArrayList<>();
+			// ten times the memory limit, puts wait while older values are spilled
+			for (int i = 0; i < 1_000; i++) {
+				client.put("key-" + i, value(i, 1_000));
+				keys.add("key-" + i);
+			}
+			List<byte[]> values = client.getAll(keys);
+			for (int i = 0; i < 1_000; i++) {
+				Assert.assertArrayEquals(value(i, 1_000), values.get(i));
+			}
+
+			// larger than the server's read buffer
+			byte[] large = new byte[90_000];
+			for (int i = 0; i < large.length; i++) {
+				large[i] = (byte) (i * 31);
+			}
+			client.put("large", large);
+			Assert.assertArrayEquals(large, client.get("large"));
+		}
+	}
+
+	@Test
+	public void concurrentClientsShareThePool() throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try (MyCache cache = MyCache.builder(1_000_000).lowLimit(800_000).build();
+				CacheServer server = new CacheServer(cache, new InetSocketAddress("localhost", 0));
+				CacheClient client = new CacheClient(localhost(server), 2)) {
+			List<Future<?>> results = new ArrayList<>();
+			for (int t = 0; t < 4; t++) {
+				int thread = t;
+				results.add(executor.submit(() -> {
+					for (int i = 0; i < 200; i++) {
+						String key = thread + "-" + i;
+						client.put(key, value(i, 64));
+						Assert.assertArrayEquals(value(i, 64), client.get(key));
+					}
+					return null;
+				}));
+			}
+			for (Future<?> result : results) {
+				result.get(30, TimeUnit.SECONDS);
+			}
+			Assert.assertArrayEquals(value(7, 64), client.get("3-7"));
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private interface FakeServer {
+		void serve(DataInputStream in, DataOutputStream out) throws Exception;
+	}
+
+	// Accepts one connection, serves it and stops listening, so the client cannot open a second one
+	private static Future<?> fakeServer(ServerSocket listener, ExecutorService executor, FakeServer server) {
+		return executor.submit(() -> {
+			try (Socket socket = listener.accept()) {
+				listener.close();
+				server.serve(new DataInputStream(new BufferedInputStream(socket.getInputStream())),
+						new DataOutputStream(new BufferedOutputStream(socket.getOutputStream())));
+			}
+			return null;
+		});
+	}
+
+	// Reads a request and returns its op
+	private static byte readRequest(DataInputStream in) throws IOException {
+		byte op = in.readByte();
+		int keyLength = in.readUnsignedShort();
+		int valueLength = in.readInt();
+		in.readFully(new byte[keyLength + valueLength]);
+		return op;
+	}
+
+	@Test
+	public void unavailableResponseKeepsTheConnection() throws Exception {
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try (ServerSocket listener = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+				CacheClient client = new CacheClient(new InetSocketAddress(listener.getInetAddress(),
+						listener.getLocalPort()), 1)) {
+			Future<?> served = fakeServer(listener, executor, (in, out) -> {
+				readRequest(in);
+				out.writeByte(Protocol.UNAVAILABLE);
+				out.writeInt(0);
+				out.flush();
+				readRequest(in);
+				out.writeByte(Protocol.OK);
+				out.writeInt(0);
+				out.flush();
+			});
+			try {
+				client.put("a", new byte[] { 1 });
+				Assert.fail();
+			} catch (CacheUnavailableException e) {
+				// the cache is full, the response was read in full
+			}
+			// a new connection would be refused
+			client.put("a", new byte[] { 1 });
+			served.get(10, TimeUnit.SECONDS);
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void keysMayExceedTheValueLimit() throws Exception {
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		int keyLength = 1_000;
+		int count = Protocol.MAX_VALUE_SIZE / (2 + keyLength) + 1;
+		try (ServerSocket listener = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+				CacheClient client = new CacheClient(new InetSocketAddress(listener.getInetAddress(),
+						listener.getLocalPort()), 1)) {
+			Future<?> served = fakeServer(listener, executor, (in, out) -> {
+				Assert.assertEquals(Protocol.KEYS, readRequest(in));
+				byte[] key = new byte[keyLength];
+				Arrays.fill(key, (byte) 'k');
+				out.writeByte(Protocol.OK);
+				out.writeInt(count * (2 + keyLength));
+				for (int i = 0; i < count; i++) {
+					out.writeShort(keyLength);
+					out.write(key);
+				}
+				out.flush();
+			});
+			Assert.assertEquals(count, client.keys().size());
+			served.get(10, TimeUnit.SECONDS);
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void malformedRequestClosesTheConnection() throws Exception {
+		try (MyCache cache = MyCache.builder(1_000_000).lowLimit(800_000).build();
+				CacheServer server = new CacheServer(cache, new InetSocketAddress("localhost", 0));
+				Socket socket = new Socket("localhost", server.getPort())) {
+			DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+			out.writeByte(42);
+			out.writeShort(0);
+			out.writeInt(0);
+			out.flush();
+
+			DataInputStream in = new DataInputStream(socket.getInputStream());
+			Assert.assertEquals(Protocol.ERROR, in.readByte());
+			in.readFully(new byte[in.readInt()]);
+			Assert.assertEquals(-1, in.read());
+
+			// other connections are unaffected
+			try (CacheClient client = new CacheClient(localhost(server), 1)) {
+				client.put("a", new byte[] { 1 });
+				Assert.assertArrayEquals(new byte[] { 1 }, client.get("a"));
+			}
+		}
+	}
+}